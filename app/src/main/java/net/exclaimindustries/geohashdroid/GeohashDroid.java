@@ -294,6 +294,18 @@ public class GeohashDroid extends Activity {
             toReturn = true;
         }
         
+        // Cached stocks more than a year away from today get tossed.
+        if(!prefs.contains(GHDConstants.PREF_STOCK_CACHE_MAX_AGE)) {
+            editor.putString(GHDConstants.PREF_STOCK_CACHE_MAX_AGE, "365");
+            toReturn = true;
+        }
+        
+        // The in-memory hash cache defaults to 64 hashes.
+        if(!prefs.contains(GHDConstants.PREF_QUICK_CACHE_SIZE)) {
+            editor.putString(GHDConstants.PREF_QUICK_CACHE_SIZE, "64");
+            toReturn = true;
+        }
+        
         // Nearby points defaults to off (it makes eight new overlays with
         // transparencies, it can be a bit hefty on the processor)
         if(!prefs.contains(GHDConstants.PREF_NEARBY_POINTS)) {
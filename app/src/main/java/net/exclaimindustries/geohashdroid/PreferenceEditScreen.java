@@ -8,6 +8,8 @@
 package net.exclaimindustries.geohashdroid;
 
 import net.exclaimindustries.geohashdroid.services.AlarmService;
+import net.exclaimindustries.geohashdroid.services.WikiService;
+import net.exclaimindustries.tools.QueueService;
 import net.exclaimindustries.geohashdroid.util.GHDConstants;
 import net.exclaimindustries.geohashdroid.util.HashBuilder;
 import android.app.AlertDialog;
@@ -34,6 +36,11 @@ import android.widget.Toast;
 public class PreferenceEditScreen extends PreferenceActivity {
     
     private final static int DIALOG_WIPESURE = 0;
+    
+    // Whether the wiki username or password changed.  If so, WikiService gets
+    // told to resume when we leave, in case it was paused waiting on a fixed
+    // login.
+    private boolean mWikiLoginChanged = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -316,6 +323,8 @@ public class PreferenceEditScreen extends PreferenceActivity {
                     else
                         passPref.setEnabled(true);
                 }
+                
+                mWikiLoginChanged = true;
                 return true;
             }
             
@@ -324,6 +333,32 @@ public class PreferenceEditScreen extends PreferenceActivity {
         // Wiki password!
         // This one only changes in that it gets disabled if there's no username
         // entered.
+        passPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+
+            @Override
+            public boolean onPreferenceChange(Preference preference,
+                    Object newValue) {
+                mWikiLoginChanged = true;
+                return true;
+            }
+            
+        });
 
     }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        
+        // The new login's been written out by now, so if WikiService is
+        // paused because of the old one, it can try again.  If it isn't
+        // paused, it'll just ignore this.
+        if(mWikiLoginChanged) {
+            mWikiLoginChanged = false;
+            
+            Intent i = new Intent(this, WikiService.class);
+            i.putExtra(QueueService.COMMAND_EXTRA, QueueService.COMMAND_RESUME);
+            startService(i);
+        }
+    }
 }
@@ -0,0 +1,203 @@
+/**
+ * AlarmBackoff.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.services;
+
+import java.util.Random;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * <p>
+ * <code>AlarmBackoff</code> works out when {@link AlarmService} should try
+ * again after a stock check didn't pan out.  It used to just be "thirty
+ * minutes from now, every time", which is both too slow after a network hiccup
+ * and too chatty on a day when the stock just isn't showing up.
+ * </p>
+ *
+ * <p>
+ * Instead, retries back off exponentially (with some random jitter so a whole
+ * lot of devices don't all hit the mirrors at the same instant).  A stock
+ * that isn't posted yet starts out at {@link #NOT_POSTED_BASE} and works up to
+ * {@link #NOT_POSTED_MAX}.  A network error starts much shorter, at
+ * {@link #ERROR_BASE}, but gives up after {@value #MAX_ERROR_RETRIES} tries,
+ * since something's probably really wrong at that point.
+ * </p>
+ *
+ * <p>
+ * It also learns about how long after 9:30am ET the stock usually shows up,
+ * going by the days we actually had to wait for it.  If that time hasn't come
+ * yet today, the first retry just waits until then instead of guessing.
+ * Everything's kept in its own SharedPreferences file, since AlarmService
+ * doesn't stick around between alarms.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+class AlarmBackoff {
+    private static final String DEBUG_TAG = "AlarmBackoff";
+
+    private static final String PREFS_NAME = "AlarmBackoff";
+    private static final String KEY_ATTEMPTS = "Attempts";
+    private static final String KEY_ERRORS = "Errors";
+    private static final String KEY_LAST_NOT_POSTED = "LastNotPosted";
+    private static final String KEY_LATENCY = "PostingLatency";
+
+    /** First wait after a stock wasn't posted, in milliseconds. */
+    static final long NOT_POSTED_BASE = 5 * 60 * 1000L;
+    /** Longest wait after a stock wasn't posted, in milliseconds. */
+    static final long NOT_POSTED_MAX = 60 * 60 * 1000L;
+    /** First wait after a network error, in milliseconds. */
+    static final long ERROR_BASE = 60 * 1000L;
+    /** Longest wait after a network error, in milliseconds. */
+    static final long ERROR_MAX = 15 * 60 * 1000L;
+    /** How many times in a row to retry network errors before giving up. */
+    static final int MAX_ERROR_RETRIES = 5;
+    /**
+     * The latest we'll ever believe the stock usually shows up, in
+     * milliseconds after 9:30am ET.  Anything past that is a bad day, not a
+     * trend.
+     */
+    static final long MAX_LATENCY = 60 * 60 * 1000L;
+
+    // Weight given to each new day in the learned latency.
+    private static final double ALPHA = 0.3;
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom = new Random();
+
+    /**
+     * Makes a new AlarmBackoff.
+     *
+     * @param con Context used to get at the preferences
+     */
+    AlarmBackoff(Context con) {
+        mPrefs = con.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    /**
+     * Starts fresh for a new day's check.  Call this when the daily alarm
+     * goes off.
+     */
+    void reset() {
+        mPrefs.edit()
+            .putInt(KEY_ATTEMPTS, 0)
+            .putInt(KEY_ERRORS, 0)
+            .putLong(KEY_LAST_NOT_POSTED, -1)
+            .apply();
+    }
+
+    /**
+     * Works out how long to wait after the stock wasn't posted yet.  This
+     * counts as a retry.
+     *
+     * @param now the current time, in milliseconds since the epoch
+     * @param nineThirty today's 9:30am ET, in milliseconds since the epoch
+     * @return how long to wait, in milliseconds
+     */
+    long notPosted(long now, long nineThirty) {
+        int attempts = mPrefs.getInt(KEY_ATTEMPTS, 0);
+        long latency = mPrefs.getLong(KEY_LATENCY, -1);
+
+        // The server answered, so whatever network trouble we had is over.
+        mPrefs.edit()
+            .putInt(KEY_ATTEMPTS, attempts + 1)
+            .putInt(KEY_ERRORS, 0)
+            .putLong(KEY_LAST_NOT_POSTED, now - nineThirty)
+            .apply();
+
+        // If it usually shows up later than this, just wait until then (plus
+        // a minute or so, to be safe).
+        if(latency >= 0) {
+            long expected = nineThirty + latency + ERROR_BASE;
+            if(expected > now && expected - now <= NOT_POSTED_MAX) {
+                Log.d(DEBUG_TAG, "Stock usually shows up about " + (latency / 60000) + " minutes after 9:30, waiting until then...");
+                return jitter(expected - now);
+            }
+        }
+
+        return jitter(backoff(NOT_POSTED_BASE, NOT_POSTED_MAX, attempts));
+    }
+
+    /**
+     * Works out how long to wait after a network error.  These are counted
+     * separately from "not posted" retries, and the count starts over
+     * whenever the server gives any real answer.
+     *
+     * @return how long to wait, in milliseconds, or -1 if it's time to give up
+     */
+    long networkError() {
+        int errors = mPrefs.getInt(KEY_ERRORS, 0);
+
+        if(errors >= MAX_ERROR_RETRIES)
+            return -1;
+
+        mPrefs.edit().putInt(KEY_ERRORS, errors + 1).apply();
+        return jitter(backoff(ERROR_BASE, ERROR_MAX, errors));
+    }
+
+    /**
+     * Records that today's stock came in, and when.  This updates the learned
+     * posting latency and starts the retry count over.  Only call this for
+     * today's stock as freshly fetched (not from the cache), or it'll learn
+     * the wrong thing.
+     *
+     * @param now the current time, in milliseconds since the epoch
+     * @param nineThirty today's 9:30am ET, in milliseconds since the epoch
+     */
+    void posted(long now, long nineThirty) {
+        long lastNotPosted = mPrefs.getLong(KEY_LAST_NOT_POSTED, -1);
+        long latency = mPrefs.getLong(KEY_LATENCY, -1);
+
+        // All we really know is it showed up sometime between the last time
+        // it wasn't there (or 9:30, if we got it first try) and now.  Split
+        // the difference.  That way, if it's usually up right away, the guess
+        // creeps earlier over time instead of getting stuck.
+        long sample = (Math.max(0, lastNotPosted) + Math.max(0, now - nineThirty)) / 2;
+        sample = Math.min(sample, MAX_LATENCY);
+
+        if(latency < 0)
+            latency = sample;
+        else
+            latency += (long)(ALPHA * (sample - latency));
+
+        Log.d(DEBUG_TAG, "Stock posted; typical latency is now " + (latency / 1000) + " seconds after 9:30.");
+
+        mPrefs.edit()
+            .putLong(KEY_LATENCY, latency)
+            .putInt(KEY_ATTEMPTS, 0)
+            .putInt(KEY_ERRORS, 0)
+            .putLong(KEY_LAST_NOT_POSTED, -1)
+            .apply();
+    }
+
+    /**
+     * Gets how long after 9:30am ET the stock usually shows up.
+     *
+     * @return the learned latency in milliseconds, or zero if we don't know
+     *         yet
+     */
+    long getPostingLatency() {
+        return Math.max(0, mPrefs.getLong(KEY_LATENCY, 0));
+    }
+
+    private static long backoff(long base, long max, int attempts) {
+        return Math.min(max, base << Math.min(attempts, 16));
+    }
+
+    private long jitter(long delay) {
+        // Anywhere from 75% to 125% of the delay.  That's enough to spread
+        // everybody out without making it wildly unpredictable.
+        long spread = delay / 2;
+        if(spread <= 0)
+            return delay;
+
+        return delay - spread / 2 + (long)(mRandom.nextDouble() * spread);
+    }
+}
@@ -24,8 +24,12 @@ import net.exclaimindustries.geohashdroid.R;
 import net.exclaimindustries.geohashdroid.util.GHDConstants;
 import net.exclaimindustries.geohashdroid.util.Graticule;
 import net.exclaimindustries.geohashdroid.util.Info;
+import net.exclaimindustries.geohashdroid.util.StockPrefetcher;
+import net.exclaimindustries.geohashdroid.util.TradingCalendar;
 import net.exclaimindustries.tools.AndroidUtil;
+import net.exclaimindustries.tools.EpochDay;
 
+import java.io.Serializable;
 import java.text.DateFormat;
 import java.util.Calendar;
 import java.util.TimeZone;
@@ -58,6 +62,15 @@ public class AlarmService extends WakefulIntentService {
     
     private Notification.Builder mNotificationBuilder;
     
+    private AlarmBackoff mBackoff;
+    
+    /**
+     * How many days back to look for stocks we missed once today's check
+     * comes through.  Two weeks covers a vacation's worth of being offline
+     * without hammering the mirrors if the cache got wiped.
+     */
+    private static final int CATCH_UP_DAYS = 14;
+    
     /**
      * Broadcast intent for the alarm that tells StockService that it's time to
      * go fetch a stock.  At that time, it'll retrieve stock data for "today"
@@ -195,6 +208,11 @@ public class AlarmService extends WakefulIntentService {
      * chances are it'll be in the same time zone as what is given (or the
      * default time zone if not given).
      *
+     * If the NYSE isn't open at all today (a weekend or holiday, see
+     * {@link TradingCalendar}), there's no 9:30am to wait for, so the date
+     * stays put.  Either way, the stock date that works out to is a day we've
+     * most likely already got a stock for.
+     *
      * This implicitly assumes that source is today, if given.  This won't
      * return an accurate date if, say, source is next week.
      *
@@ -215,8 +233,10 @@ public class AlarmService extends WakefulIntentService {
         // First, get 9:30 for today.
         Calendar nineThirty = makeNineThirty(base);
 
-        // Then, compare it to the base.
-        if(base.before(nineThirty)) {
+        // Then, compare it to the base.  That only matters if there's going
+        // to be an opening today at all, though.
+        if(TradingCalendar.isTradingDay(EpochDay.fromCalendar(nineThirty))
+                && base.before(nineThirty)) {
             // It's before 9:30am!  Rewind!
             base.add(Calendar.DAY_OF_MONTH, -1);
         }
@@ -225,6 +245,36 @@ public class AlarmService extends WakefulIntentService {
         return base;
     }
     
+    private void learnPostingTime(Intent intent, Graticule g) {
+        // If it came from the cache, we don't know when it showed up.
+        if((intent.getIntExtra(StockService.EXTRA_RESPONSE_FLAGS, 0) & StockService.FLAG_CACHED) != 0)
+            return;
+        
+        Serializable s = intent.getSerializableExtra(StockService.EXTRA_DATE);
+        if(!(s instanceof Calendar))
+            return;
+        
+        // It's only today's opening if the stock date works out to today in
+        // New York, and today's a trading day at all.
+        Calendar nineThirty = makeNineThirty(null);
+        EpochDay today = EpochDay.fromCalendar(nineThirty);
+        
+        if(TradingCalendar.isTradingDay(today)
+                && Info.makeAdjustedDay(EpochDay.fromCalendar((Calendar)s), g).equals(today))
+            mBackoff.posted(System.currentTimeMillis(), nineThirty.getTimeInMillis());
+    }
+    
+    private void catchUp() {
+        // We're already on the service's worker thread, so blocking here is
+        // fine.  StockPrefetcher skips anything already in the database, so
+        // if we haven't missed anything, this is just a few quick lookups.
+        EpochDay end = EpochDay.fromCalendar(getMostRecentStockDate(null));
+        int fetched = StockPrefetcher.prefetch(this, end.plusDays(-CATCH_UP_DAYS), end);
+        
+        if(fetched > 0)
+            Log.d(DEBUG_TAG, "Caught up on " + fetched + " missed stock(s).");
+    }
+    
     public AlarmService() {
         super("AlarmService");
     }
@@ -247,16 +297,23 @@ public class AlarmService extends WakefulIntentService {
         mNotificationManager.cancel(R.id.alarm_notification);
     }
     
-    private void snooze() {
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.MINUTE, 30);
+    @SuppressLint("NewApi")
+    private void snooze(long delay) {
+        long when = System.currentTimeMillis() + delay;
         
         Intent alarmIntent = new Intent(this, StockAlarmReceiver.class);
         alarmIntent.setAction(STOCK_ALARM_RETRY);
+        PendingIntent pending = PendingIntent.getBroadcast(this, 0, alarmIntent, 0);
+        
+        Log.d(DEBUG_TAG, "Snoozing for " + (delay / 1000) + " seconds...");
         
-        mAlarmManager.set(AlarmManager.RTC_WAKEUP,
-                cal.getTimeInMillis(),
-                PendingIntent.getBroadcast(this, 0, alarmIntent, 0));
+        // If we can, let the system fudge the time a bit so it can line this
+        // up with whatever else is waking the device.  A quarter of the delay
+        // is plenty of wiggle room without being late enough to matter.
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            mAlarmManager.setWindow(AlarmManager.RTC_WAKEUP, when, delay / 4, pending);
+        else
+            mAlarmManager.set(AlarmManager.RTC_WAKEUP, when, pending);
     }
     
     private void sendRequest(Graticule g) {
@@ -301,6 +358,8 @@ public class AlarmService extends WakefulIntentService {
         // Notification.  It's not really sensitive.
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
             mNotificationBuilder.setVisibility(Notification.VISIBILITY_PUBLIC);
+        
+        mBackoff = new AlarmBackoff(this);
     }
     
     @Override
@@ -330,8 +389,13 @@ public class AlarmService extends WakefulIntentService {
             // NEXT 9:30am ET.  If the user wants to take a chance and get a
             // stock value closer to 9:00am ET than that, well, they can do it
             // themselves.
+            //
+            // Well, 9:30am ET plus however long it usually takes for the stock
+            // to show up, as far as AlarmBackoff's noticed.  No sense waking up
+            // just to be told it's not there yet.
             Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("America/New_York"));
             Calendar alarmTime = makeNineThirty(cal);
+            alarmTime.add(Calendar.MILLISECOND, (int)mBackoff.getPostingLatency());
             
             if(alarmTime.before(cal)) {
                 alarmTime.add(Calendar.DAY_OF_MONTH, 1);
@@ -365,6 +429,10 @@ public class AlarmService extends WakefulIntentService {
             // at the same time.
             mAlarmManager.cancel(PendingIntent.getBroadcast(this, 0, new Intent(STOCK_ALARM_RETRY).setClass(this, StockAlarmReceiver.class), 0));
             
+            // The real alarm means a new day, so the retries start over.
+            if(intent.getAction().equals(STOCK_ALARM))
+                mBackoff.reset();
+            
             // StockService takes care of all the network connectivity checks
             // and other things that the alarm-checking StockService used to
             // take care of.  It'll also tell us if the stock hasn't been
@@ -386,23 +454,37 @@ public class AlarmService extends WakefulIntentService {
                 
                 if(result == StockService.RESPONSE_NOT_POSTED_YET) {
                     // Not posted yet means we hit the snooze and try again in a
-                    // half hour or so.  Good night!
-                    Log.d(DEBUG_TAG, "Stock wasn't posted yet, snoozing for a half hour...");
-                    snooze();
+                    // little while.  AlarmBackoff knows how little.  Good
+                    // night!
+                    Log.d(DEBUG_TAG, "Stock wasn't posted yet, snoozing...");
+                    snooze(mBackoff.notPosted(System.currentTimeMillis(), makeNineThirty(null).getTimeInMillis()));
                     clearNotification();
                     return;
                 }
                 
                 if(result == StockService.RESPONSE_NETWORK_ERROR) {
-                    // A network error that ISN'T "no connection" is really bad.
-                    // So bad, in fact, that we're not even going to bother
-                    // figuring it out.  Give up now.
-                    Log.w(DEBUG_TAG, "Network reported an error, NOT rescheduling!");
+                    // A network error that ISN'T "no connection" might just be
+                    // a hiccup, so try again soon.  If it keeps happening,
+                    // though, it's really bad.  So bad, in fact, that we're not
+                    // even going to bother figuring it out.  Give up then.
+                    long delay = mBackoff.networkError();
+                    
+                    if(delay < 0) {
+                        Log.w(DEBUG_TAG, "Network keeps reporting an error, NOT rescheduling!");
+                    } else {
+                        Log.d(DEBUG_TAG, "Network reported an error, trying again soon...");
+                        snooze(delay);
+                    }
+                    
                     clearNotification();
                     return;
                 }
                 
                 if(result == StockService.RESPONSE_OKAY) {
+                    // If that was today's opening, fresh off the internet, let
+                    // AlarmBackoff know when it showed up.
+                    learnPostingTime(intent, g);
+                    
                     // An okay response means the Graticule IS good.  If not,
                     // fix StockService.
                     if(g.uses30WRule()) {
@@ -416,6 +498,11 @@ public class AlarmService extends WakefulIntentService {
                         // done!  Yay!
                         Log.d(DEBUG_TAG, "The 30W response!  We're done!");
                         clearNotification();
+                        
+                        // Now that we know the network's good, fill in any
+                        // days we missed while it wasn't (or the phone was
+                        // off, or whatever).
+                        catchUp();
                     }
                 }
             } else {
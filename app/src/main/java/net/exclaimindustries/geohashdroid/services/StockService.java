@@ -9,11 +9,12 @@ package net.exclaimindustries.geohashdroid.services;
 
 import java.io.Serializable;
 import java.util.Calendar;
+import java.util.concurrent.Executor;
 
 import net.exclaimindustries.geohashdroid.util.Graticule;
 import net.exclaimindustries.geohashdroid.util.HashBuilder;
-import net.exclaimindustries.geohashdroid.util.HashBuilder.StockRunner;
 import net.exclaimindustries.geohashdroid.util.Info;
+import net.exclaimindustries.geohashdroid.util.StockRequest;
 import net.exclaimindustries.tools.AndroidUtil;
 import android.content.Intent;
 import android.os.Parcelable;
@@ -155,6 +156,21 @@ public class StockService extends WakefulIntentService {
      */
     public static final Graticule DUMMY_TODAY = new Graticule(38, false, 84, true);
     
+    /**
+     * How long, in milliseconds, to wait on the network for a stock before
+     * giving up and calling it a network error.
+     */
+    public static final long STOCK_TIMEOUT = 45 * 1000L;
+
+    // We're already on WakefulIntentService's worker thread, so there's no
+    // reason to hop over to another one just to wait on it.
+    private static final Executor IN_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    
     public StockService() {
         super("StockService");
     }
@@ -202,16 +218,17 @@ public class StockService extends WakefulIntentService {
                 // ...if we CAN go to the web, that is.
                 dispatchIntent(RESPONSE_NO_CONNECTION, requestId, flags, respFlags, cal, graticule, null);
             } else {
-                StockRunner runner = HashBuilder.requestStockRunner(this, cal, graticule, null);
-                runner.runStock();
+                // Since this runs in this thread, it's done by the time
+                // requestStock returns.
+                StockRequest request = HashBuilder.requestStock(this, cal, graticule, STOCK_TIMEOUT, IN_THREAD, null);
 
                 // And the results are in!
-                int result = runner.getStatus();
+                int result = request.getStatus();
                 
                 switch(result) {
                     case HashBuilder.StockRunner.ALL_OKAY:
                         // Hooray!  We win!  Dispatch an intent with the info.
-                        dispatchIntent(RESPONSE_OKAY, requestId, flags, respFlags, cal, graticule, runner.getLastResultObject());
+                        dispatchIntent(RESPONSE_OKAY, requestId, flags, respFlags, cal, graticule, request.getInfo());
                         break;
                     case HashBuilder.StockRunner.ERROR_NOT_POSTED:
                         // Aw.  It's not posted yet.
@@ -219,10 +236,10 @@ public class StockService extends WakefulIntentService {
                         break;
                     default:
                         // In all other cases, just assume it's a network error.
-                        // We either got ERROR_NETWORK, which is just that, or
-                        // we got IDLE, BUSY, or ABORTED, none of which make any
-                        // sense in this context, which means something went
-                        // horribly, horribly wrong.
+                        // We either got ERROR_SERVER, which is just that (a
+                        // timeout counts, too), or we got BUSY or ABORTED,
+                        // neither of which make any sense in this context,
+                        // which means something went horribly, horribly wrong.
                         dispatchIntent(RESPONSE_NETWORK_ERROR, requestId, flags, respFlags, cal, graticule, null);
                 }
             }
@@ -0,0 +1,379 @@
+/**
+ * WikiIntentCodec.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+
+package net.exclaimindustries.geohashdroid.services;
+
+import android.content.Intent;
+import android.location.Location;
+import android.net.Uri;
+
+import net.exclaimindustries.geohashdroid.util.Graticule;
+import net.exclaimindustries.geohashdroid.util.Info;
+import net.exclaimindustries.tools.EpochDay;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.Calendar;
+
+/**
+ * <p>
+ * <code>WikiIntentCodec</code> turns {@link WikiService}'s queued Intents into
+ * bytes and back again.  It used to be a bunch of lines of text, with doubles
+ * run through Double.toString() and the whole message URI-encoded, which got
+ * slow once a multi-day trip piled up a big queue.  Now it's a compact binary
+ * record:
+ * </p>
+ *
+ * <pre>
+ * byte    {@link #MAGIC}
+ * byte    version ({@link #VERSION})
+ * varint  which fields are present (the FIELD_* bits)
+ * varint  timestamp, zigzagged (if present)
+ * double  location latitude, double location longitude (if present)
+ * string  image URI (if present)
+ * double  info latitude, double info longitude, varint info date as days
+ *         since 1970, zigzagged (if present)
+ * varint  graticule latitude, varint graticule longitude (if present)
+ * string  message (if present)
+ * </pre>
+ *
+ * <p>
+ * Doubles are the usual eight bytes, so they come back exactly the same.
+ * Strings are a varint byte count followed by that many bytes of UTF-8, which
+ * means no 64k limit like DataOutput.writeUTF() has.
+ * </p>
+ *
+ * <p>
+ * The Info date is a plain day count, not a moment in time, so it comes back
+ * as the same date no matter what time zone the device is in by then (a trip
+ * can cross a few).
+ * </p>
+ *
+ * <p>
+ * The old text format never starts with {@link #MAGIC}, so anything that
+ * doesn't gets read the old way.  That way, whatever was queued up before an
+ * upgrade still comes through.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+final class WikiIntentCodec {
+    /**
+     * The first byte of every binary record.  The old text format always
+     * started with a digit, a minus sign, or a newline, so this can't be
+     * mistaken for one of those.
+     */
+    static final int MAGIC = 0xB7;
+    /** The current version of the binary format. */
+    static final int VERSION = 1;
+
+    private static final int FIELD_TIMESTAMP = 0x01;
+    private static final int FIELD_LOCATION = 0x02;
+    private static final int FIELD_IMAGE = 0x04;
+    private static final int FIELD_INFO = 0x08;
+    private static final int FIELD_GRATICULE = 0x10;
+    private static final int FIELD_SOUTH = 0x20;
+    private static final int FIELD_WEST = 0x40;
+    private static final int FIELD_MESSAGE = 0x80;
+
+    // Any string longer than this means the record's garbage.  A wiki message
+    // has no business being a megabyte.
+    private static final int MAX_STRING = 1024 * 1024;
+
+    private WikiIntentCodec() { }
+
+    /**
+     * Writes the WikiService extras from the given Intent out to the stream.
+     * The stream is flushed, but not closed.
+     *
+     * @param i the Intent to write
+     * @param os where to write it
+     * @throws IOException something went wrong writing
+     */
+    static void write(Intent i, OutputStream os) throws IOException {
+        Serializable timestamp = i.getSerializableExtra(WikiService.EXTRA_TIMESTAMP);
+        Calendar cal = (timestamp instanceof Calendar ? (Calendar)timestamp : null);
+        Location loc = (Location)i.getParcelableExtra(WikiService.EXTRA_LOCATION);
+        Uri uri = (Uri)i.getParcelableExtra(WikiService.EXTRA_IMAGE);
+        Info info = (Info)i.getParcelableExtra(WikiService.EXTRA_INFO);
+        String message = i.getStringExtra(WikiService.EXTRA_MESSAGE);
+
+        Graticule grat = (info != null && !info.isGlobalHash() ? info.getGraticule() : null);
+
+        int fields = 0;
+        if(cal != null) fields |= FIELD_TIMESTAMP;
+        if(loc != null) fields |= FIELD_LOCATION;
+        if(uri != null) fields |= FIELD_IMAGE;
+        if(info != null) fields |= FIELD_INFO;
+        if(grat != null) {
+            fields |= FIELD_GRATICULE;
+            if(grat.isSouth()) fields |= FIELD_SOUTH;
+            if(grat.isWest()) fields |= FIELD_WEST;
+        }
+        if(message != null) fields |= FIELD_MESSAGE;
+
+        DataOutputStream out = new DataOutputStream(os);
+
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        writeVarLong(out, fields);
+
+        if(cal != null)
+            writeVarLong(out, zigzag(cal.getTimeInMillis()));
+
+        if(loc != null) {
+            out.writeDouble(loc.getLatitude());
+            out.writeDouble(loc.getLongitude());
+        }
+
+        if(uri != null)
+            writeString(out, uri.toString());
+
+        if(info != null) {
+            // Info's constructor wants the raw hash values for a globalhash,
+            // not the final coordinates getLatitude() and getLongitude() work
+            // out, so write those.
+            out.writeDouble(grat != null ? info.getLatitude() : info.getLatitudeHash());
+            out.writeDouble(grat != null ? info.getLongitude() : info.getLongitudeHash());
+            writeVarLong(out, zigzag(info.getEpochDay().getDay()));
+        }
+
+        if(grat != null) {
+            writeVarLong(out, grat.getLatitude());
+            writeVarLong(out, grat.getLongitude());
+        }
+
+        if(message != null)
+            writeString(out, message);
+
+        out.flush();
+    }
+
+    /**
+     * Reads an Intent back in, either from the binary format or the old text
+     * one.
+     *
+     * @param is where to read from
+     * @return a new Intent with whatever extras were written
+     * @throws IOException something went wrong reading, or the data's bad
+     */
+    static Intent read(InputStream is) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(is, 1);
+
+        int first = in.read();
+
+        if(first == MAGIC)
+            return readBinary(new DataInputStream(in));
+
+        // Not binary, so it's the old format (or empty, which the old format
+        // happily turned into an Intent with nothing in it).
+        if(first >= 0)
+            in.unread(first);
+
+        return readText(in);
+    }
+
+    private static Intent readBinary(DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        if(version != VERSION)
+            throw new IOException("Unknown record version " + version);
+
+        long fields = readVarLong(in);
+        if((fields & ~0xFFL) != 0)
+            throw new IOException("Unknown fields in record: " + fields);
+
+        Intent toReturn = new Intent();
+
+        if((fields & FIELD_TIMESTAMP) != 0) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(unzigzag(readVarLong(in)));
+            toReturn.putExtra(WikiService.EXTRA_TIMESTAMP, cal);
+        }
+
+        if((fields & FIELD_LOCATION) != 0) {
+            Location loc = new Location("");
+            loc.setLatitude(in.readDouble());
+            loc.setLongitude(in.readDouble());
+            toReturn.putExtra(WikiService.EXTRA_LOCATION, loc);
+        }
+
+        if((fields & FIELD_IMAGE) != 0)
+            toReturn.putExtra(WikiService.EXTRA_IMAGE, Uri.parse(readString(in)));
+
+        if((fields & FIELD_INFO) != 0) {
+            double lat = in.readDouble();
+            double lon = in.readDouble();
+            long date = unzigzag(readVarLong(in));
+            if(date < Integer.MIN_VALUE || date > Integer.MAX_VALUE)
+                throw new IOException("Date out of range: " + date);
+            Calendar cal = EpochDay.of((int)date).toCalendar();
+
+            Graticule grat = null;
+            if((fields & FIELD_GRATICULE) != 0) {
+                int glat = readSmallInt(in);
+                int glon = readSmallInt(in);
+                grat = new Graticule(glat, (fields & FIELD_SOUTH) != 0, glon, (fields & FIELD_WEST) != 0);
+            }
+
+            toReturn.putExtra(WikiService.EXTRA_INFO, new Info(lat, lon, grat, cal));
+        }
+
+        if((fields & FIELD_MESSAGE) != 0)
+            toReturn.putExtra(WikiService.EXTRA_MESSAGE, readString(in));
+
+        return toReturn;
+    }
+
+    private static Intent readText(InputStream is) throws IOException {
+        // This is the old line-based format, kept around just so anything
+        // queued before the switch doesn't get lost.  Nothing writes it
+        // anymore.
+        BufferedReader br = new BufferedReader(new InputStreamReader(is));
+        Intent toReturn = new Intent();
+
+        try {
+            // Date, as a long.
+            String read = br.readLine();
+            if(read != null && !read.isEmpty()) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(Long.parseLong(read));
+                toReturn.putExtra(WikiService.EXTRA_TIMESTAMP, cal);
+            }
+
+            // Location, as two doubles.
+            read = br.readLine();
+            if(read != null && !read.isEmpty()) {
+                String parts[] = read.split(":");
+                Location loc = new Location("");
+                loc.setLatitude(Double.parseDouble(parts[0]));
+                loc.setLongitude(Double.parseDouble(parts[1]));
+                toReturn.putExtra(WikiService.EXTRA_LOCATION, loc);
+            }
+
+            // Image URI, as a string.
+            read = br.readLine();
+            if(read != null && !read.isEmpty())
+                toReturn.putExtra(WikiService.EXTRA_IMAGE, Uri.parse(read));
+
+            // The Info object, as a mess of things.
+            read = br.readLine();
+            if(read != null && !read.isEmpty()) {
+                String parts[] = read.split(":");
+                double lat = Double.parseDouble(parts[0]);
+                double lon = Double.parseDouble(parts[1]);
+                Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(Long.parseLong(parts[2]));
+
+                Graticule grat = null;
+
+                // If there's less than seven elements, this is a null
+                // Graticule and thus a globalhash.  Otherwise...
+                if(parts.length >= 7) {
+                    int glat = Integer.parseInt(parts[3]);
+                    boolean gsouth = parts[4].equals("1");
+                    int glon = Integer.parseInt(parts[5]);
+                    boolean gwest = parts[6].equals("1");
+                    grat = new Graticule(glat, gsouth, glon, gwest);
+                } else {
+                    // The old format wrote a globalhash's final coordinates,
+                    // but Info wants the hash values back.  Undo that.
+                    lat = (lat + 90) / 180;
+                    lon = (lon + 180) / 360;
+                }
+
+                toReturn.putExtra(WikiService.EXTRA_INFO, new Info(lat, lon, grat, cal));
+            }
+
+            // Finally, the message.  This is just one URI-encoded string.
+            read = br.readLine();
+            if(read != null && !read.isEmpty())
+                toReturn.putExtra(WikiService.EXTRA_MESSAGE, Uri.decode(read));
+
+            return toReturn;
+        } catch (RuntimeException re) {
+            // NumberFormatException, ArrayIndexOutOfBoundsException, whatever.
+            // It's bad data either way.
+            throw new IOException("Bad text record: " + re.toString());
+        }
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long n) throws IOException {
+        // Seven bits at a time, low bits first, high bit set on every byte but
+        // the last.
+        while((n & ~0x7FL) != 0) {
+            out.writeByte((int)((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        out.writeByte((int)n);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return result;
+        }
+
+        throw new IOException("Varint is too long");
+    }
+
+    private static int readSmallInt(DataInputStream in) throws IOException {
+        // Graticules only go up to 180, but anything that fits in an int
+        // won't hurt anything.
+        long n = readVarLong(in);
+        if(n < 0 || n > Integer.MAX_VALUE)
+            throw new IOException("Number out of range: " + n);
+        return (int)n;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if(length < 0 || length > MAX_STRING)
+            throw new IOException("String length out of range: " + length);
+
+        byte[] bytes = new byte[(int)length];
+        try {
+            in.readFully(bytes);
+        } catch (EOFException eofe) {
+            throw new IOException("Record ended in the middle of a string");
+        }
+
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            // Every Java has UTF-8.
+            throw new IOException(uee.toString());
+        }
+    }
+}
@@ -25,24 +25,21 @@ import android.os.PowerManager.WakeLock;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import net.exclaimindustries.geohashdroid.PreferenceEditScreen;
 import net.exclaimindustries.geohashdroid.R;
 import net.exclaimindustries.geohashdroid.util.GHDConstants;
-import net.exclaimindustries.geohashdroid.util.Graticule;
 import net.exclaimindustries.geohashdroid.util.Info;
 import net.exclaimindustries.geohashdroid.wiki.WikiException;
 import net.exclaimindustries.geohashdroid.wiki.WikiUtils;
 import net.exclaimindustries.tools.AndroidUtil;
 import net.exclaimindustries.tools.QueueService;
+import net.exclaimindustries.tools.SharedHttpClient;
 
 import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.Calendar;
 
 /**
@@ -107,6 +104,20 @@ public class WikiService extends QueueService {
 
     private static final String DEBUG_TAG = "WikiService";
 
+    // How many expedition pages can be worked on at once.  The uplink out in
+    // the field is probably slow enough that more than this won't help.
+    private static final int WORKERS = 3;
+
+    // Plain text edits are small and time-sensitive, so they go ahead of
+    // image uploads (at least until those have waited a while).  That's only
+    // between pages, though; within a page, everything goes in order.
+    private static final int PRIORITY_TEXT = 1;
+    private static final int PRIORITY_IMAGE = 0;
+
+    // If MediaStore doesn't know how big an image is, guess.  Phone cameras
+    // make some pretty big pictures.
+    private static final long DEFAULT_IMAGE_COST = 2 * 1024 * 1024;
+
     private NotificationManager mNotificationManager;
     private WakeLock mWakeLock;
     
@@ -168,14 +179,15 @@ public class WikiService extends QueueService {
         }
 
         // Hey, there, Intent.  Got some extras for me?
-        Info info = (Info)i.getSerializableExtra(EXTRA_INFO);
-        Location loc = (Location)i.getSerializableExtra(EXTRA_LOCATION);
+        Info info = (Info)i.getParcelableExtra(EXTRA_INFO);
+        Location loc = (Location)i.getParcelableExtra(EXTRA_LOCATION);
         String message = i.getStringExtra(EXTRA_MESSAGE);
         Calendar timestamp = (Calendar)i.getSerializableExtra(EXTRA_TIMESTAMP);
         Uri imageLocation = (Uri)i.getParcelableExtra(EXTRA_IMAGE);
 
-        // Prep an HttpClient for later...
-        HttpClient client = new DefaultHttpClient();
+        // Prep an HttpClient for later...  It gets its own cookies for the
+        // login, but the connections come from the shared pool.
+        HttpClient client = SharedHttpClient.newSession();
 
         // To Preferences!
         SharedPreferences prefs = getSharedPreferences(GHDConstants.PREFS_BASE, 0);
@@ -202,8 +214,7 @@ public class WikiService extends QueueService {
 
                 if (username.equals("")) {
                     // Aww.  Failure.
-                    // TODO: Need a real PendingIntent here!
-                    showPausingErrorNotification(getText(R.string.wiki_conn_anon_pic_error).toString(), null, null, null);
+                    showLoginErrorNotification(getText(R.string.wiki_conn_anon_pic_error).toString());
                     return ReturnCode.PAUSE;
                 }
 
@@ -238,7 +249,32 @@ public class WikiService extends QueueService {
 
             return ReturnCode.CONTINUE;
         } catch (WikiException we) {
-            // TODO: Handle wiki exceptions.
+            int textId = we.getErrorTextId();
+
+            if(we.isTransient()) {
+                // The wiki's busy, throttling us, or having a bad moment.
+                // Give it a bit and try again.
+                Log.w(DEBUG_TAG, "Wiki had a temporary problem (" + getText(textId) + "), retrying later...");
+                return ReturnCode.RETRY;
+            } else if(textId == R.string.wiki_error_bad_username
+                    || textId == R.string.wiki_error_bad_password
+                    || textId == R.string.wiki_error_email_confirm
+                    || textId == R.string.wiki_error_blocked) {
+                // Something's wrong with the user's account.  This only
+                // pauses this page, but every other page will run into the
+                // same thing and pause, too, and they all come back together
+                // once the user fixes it (the notification takes them where
+                // they need to go).
+                showLoginErrorNotification(getText(textId).toString());
+                return ReturnCode.PAUSE;
+            } else {
+                // Anything else means the wiki just won't take this one (it's
+                // protected, it tripped the spam filter, etc).  It'll go to
+                // the dead letters, and the rest of the queue carries on.
+                Log.e(DEBUG_TAG, "Wiki refused this one (" + getText(textId) + "), giving up on it.");
+                showFailedNotification(getText(textId).toString());
+                return ReturnCode.FAIL;
+            }
         } catch (Exception e) {
             // Okay, first off, are we still connected?  An Exception will get
             // thrown if the connection just goes poof while we're trying to do
@@ -248,14 +284,14 @@ public class WikiService extends QueueService {
                 showWaitingForConnectionNotification();
                 return ReturnCode.PAUSE;
             } else {
-                // Otherwise, we're kinda stumped.  Maybe the user will know
-                // what to do?
-                // TODO: Handle other exceptions.
+                // Otherwise, it's probably a timeout or the server hanging up
+                // on us.  Those tend to clear up on their own, so try again
+                // later.  If it keeps happening, QueueService will give up on
+                // it eventually.
+                Log.w(DEBUG_TAG, "Exception while talking to the wiki, retrying later...", e);
+                return ReturnCode.RETRY;
             }
         }
-
-        // We shouldn't be here.
-        return ReturnCode.PAUSE;
     }
 
     @Override
@@ -264,8 +300,9 @@ public class WikiService extends QueueService {
         mWakeLock.acquire();
 
         // If we're starting, that means we're not waiting anymore.  Makes
-        // sense.
+        // sense.  Whatever error paused us is presumably fixed, too.
         hideWaitingForConnectionNotification();
+        mNotificationManager.cancel(R.id.wiki_error_notification);
 
         // Plus, throw up a NEW Notification.  This one should stick around
         // until we're done, one way or another.
@@ -292,70 +329,10 @@ public class WikiService extends QueueService {
 
     @Override
     protected void serializeToDisk(Intent i, OutputStream os) {
-        // We'll encode one line per object, with the last lines reserved for
-        // the entire message (the only thing of these that can have multiple
-        // lines).
-        OutputStreamWriter osw = new OutputStreamWriter(os);
-        StringBuilder builder = new StringBuilder();
-
-        // Always write out the \n, even if it's null.  An empty line will be
-        // deserialized as a null.  Yes, even if that'll cause an error later.
-
-        // The date can come in as a long.
-        Calendar c = (Calendar)i.getParcelableExtra(EXTRA_TIMESTAMP);
-        if(c != null)
-            builder.append(c.getTimeInMillis());
-        builder.append('\n');
-
-        // The location is just two doubles.  Split 'em with a colon.
-        Location loc = (Location)i.getParcelableExtra(EXTRA_LOCATION);
-        if(loc != null)
-            builder.append(Double.toString(loc.getLatitude()))
-                    .append(':')
-                    .append(Double.toString(loc.getLongitude()));
-        builder.append('\n');
-
-        // The image is just a URI.  Easy so far.
-        Uri uri = (Uri)i.getParcelableExtra(EXTRA_IMAGE);
-        if(uri != null)
-            builder.append(uri.toString());
-        builder.append('\n');
-
-        // And now comes Info.  It encompasses two doubles (the destination),
-        // a Date (the date of the expedition), and a Graticule (two ints
-        // and two booleans).  The Graticule part can be null if this is a
-        // globalhash.
-        Info info = (Info)i.getParcelableExtra(EXTRA_INFO);
-        if(info != null) {
-            builder.append(Double.toString(info.getLatitude()))
-                    .append(':')
-                    .append(Double.toString(info.getLongitude()))
-                    .append(':')
-                    .append(Long.toString(info.getDate().getTime()))
-                    .append(':');
-
-            if(!info.isGlobalHash()) {
-                Graticule g = info.getGraticule();
-                builder.append(Integer.toString(g.getLatitude()))
-                        .append(':')
-                        .append(g.isSouth() ? '1' : '0')
-                        .append(':')
-                        .append(Integer.toString(g.getLongitude()))
-                        .append(':')
-                        .append((g.isWest() ? '1' : '0'));
-            }
-        }
-        builder.append('\n');
-
-        // The rest of it is the message.  We'll URI-encode it so it comes out
-        // as a single string without line breaks.
-        String message = i.getStringExtra(EXTRA_MESSAGE);
-        if(message != null)
-            builder.append(Uri.encode(message));
-
-        // Right... let's write it out.
+        // WikiIntentCodec does all the real work.  It's binary these days, so
+        // no more one-line-per-object text.
         try {
-            osw.write(builder.toString());
+            WikiIntentCodec.write(i, os);
         } catch (IOException e) {
             // If we got an exception, we're in deep trouble.
             Log.e(DEBUG_TAG, "Exception when serializing an Intent!", e);
@@ -364,70 +341,10 @@ public class WikiService extends QueueService {
 
     @Override
     protected Intent deserializeFromDisk(InputStream is) {
-        // Now we go the other way around.
-        InputStreamReader isr = new InputStreamReader(is);
-        BufferedReader br = new BufferedReader(isr);
-        Intent toReturn = new Intent();
-
+        // Now we go the other way around.  This reads the old text format,
+        // too, in case something was queued up before the switch.
         try {
-            // Date, as a long.
-            String read = br.readLine();
-            if(read != null && !read.isEmpty()) {
-                Calendar cal = Calendar.getInstance();
-                cal.setTimeInMillis(Long.parseLong(read));
-                toReturn.putExtra(EXTRA_TIMESTAMP, cal);
-            }
-
-            // Location, as two doubles.
-            read = br.readLine();
-            if(read != null && !read.isEmpty()) {
-                String parts[] = read.split(":");
-                Location loc = new Location("");
-                loc.setLatitude(Double.parseDouble(parts[0]));
-                loc.setLongitude(Double.parseDouble(parts[1]));
-                toReturn.putExtra(EXTRA_LOCATION, loc);
-            }
-
-            // Image URI, as a string.
-            read = br.readLine();
-            if(read != null && !read.isEmpty()) {
-                Uri file = Uri.parse(read);
-                toReturn.putExtra(EXTRA_IMAGE, file);
-            }
-
-            // The Info object, as a mess of things.
-            read = br.readLine();
-            if(read != null && !read.isEmpty()) {
-                String parts[] = read.split(":");
-                double lat = Double.parseDouble(parts[0]);
-                double lon = Double.parseDouble(parts[1]);
-                Calendar cal = Calendar.getInstance();
-                cal.setTimeInMillis(Long.parseLong(parts[2]));
-
-                Graticule grat = null;
-
-                // If there's less than seven elements, this is a null Graticule
-                // and thus a globalhash.  Otherwise...
-                if(parts.length >= 7) {
-                    int glat = Integer.parseInt(parts[3]);
-                    boolean gsouth = parts[4].equals("1");
-                    int glon = Integer.parseInt(parts[5]);
-                    boolean gwest = parts[6].equals("1");
-                    grat = new Graticule(glat, gsouth, glon, gwest);
-                }
-
-                // And now we can form an Info.
-                toReturn.putExtra(EXTRA_INFO, new Info(lat, lon, grat, cal));
-            }
-
-            // Finally, the message.  This is just one URI-encoded string.
-            read = br.readLine();
-            if(read != null && !read.isEmpty())
-                toReturn.putExtra(EXTRA_MESSAGE, Uri.decode(read));
-
-            // There!  Rebuilt!
-            return toReturn;
-
+            return WikiIntentCodec.read(is);
         } catch (IOException e) {
             Log.e(DEBUG_TAG, "Exception when deserializing an Intent!" , e);
             return null;
@@ -439,6 +356,42 @@ public class WikiService extends QueueService {
         return false;
     }
 
+    @Override
+    protected int getWorkerCount() {
+        return WORKERS;
+    }
+
+    @Override
+    protected Object getOrderingKey(Intent i) {
+        // Everything for the same expedition page has to go in order (the
+        // edits stack on top of each other, after all, and an image post
+        // edits the page's gallery), but different expeditions don't care
+        // about each other.  If there's no Info, it'll get thrown out anyway,
+        // so it doesn't matter where it goes.
+        Info info = (Info)i.getParcelableExtra(EXTRA_INFO);
+        if(info == null)
+            return null;
+
+        return WikiUtils.getWikiPageName(info);
+    }
+
+    @Override
+    protected int getPriority(Intent i) {
+        return (i.hasExtra(EXTRA_IMAGE) ? PRIORITY_IMAGE : PRIORITY_TEXT);
+    }
+
+    @Override
+    protected long getEstimatedCost(Intent i) {
+        String message = i.getStringExtra(EXTRA_MESSAGE);
+        long cost = (message == null ? 0 : message.length());
+
+        Uri uri = (Uri)i.getParcelableExtra(EXTRA_IMAGE);
+        if(uri != null)
+            cost += readImageSize(uri);
+
+        return cost;
+    }
+
 
     private void showActiveNotification() {
         Notification.Builder builder = getFreshNotificationBuilder()
@@ -508,6 +461,37 @@ public class WikiService extends QueueService {
         mNotificationManager.notify(R.id.wiki_error_notification, builder.build());
     }
 
+    private void showFailedNotification(String reason) {
+        // Unlike the pausing one, nothing's waiting on the user here.  This
+        // is just so they know something didn't make it to the wiki.
+        Notification.Builder builder = getFreshNotificationBuilder()
+                .setAutoCancel(true)
+                .setOngoing(false)
+                .setContentTitle(getString(R.string.wiki_notification_error_title))
+                .setContentText(reason);
+
+        mNotificationManager.notify(R.id.wiki_failed_notification, builder.build());
+    }
+
+    private void showLoginErrorNotification(String reason) {
+        // Anything wrong with the login gets fixed in the preferences, so
+        // that's where tapping it goes.  PreferenceEditScreen will resume the
+        // queue itself if the login changes, but there's also a retry button
+        // for anything that got fixed elsewhere (confirming an email address
+        // on the wiki, say).
+        PendingIntent settings = PendingIntent.getActivity(this, 0,
+                new Intent(this, PreferenceEditScreen.class), 0);
+
+        Intent resume = new Intent(this, WikiService.class);
+        resume.putExtra(QueueService.COMMAND_EXTRA, QueueService.COMMAND_RESUME);
+        PendingIntent retry = PendingIntent.getService(this, 0, resume, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        showPausingErrorNotification(reason,
+                new NotificationAction(android.R.drawable.ic_menu_preferences, settings, getText(R.string.wiki_notification_action_settings)),
+                new NotificationAction(android.R.drawable.ic_popup_sync, retry, getText(R.string.wiki_notification_action_retry)),
+                null);
+    }
+
     @SuppressLint("NewApi")
     private Notification.Builder getFreshNotificationBuilder() {
         // This just returns a fresh new Notification.Builder with the default
@@ -522,6 +506,27 @@ public class WikiService extends QueueService {
         return builder;
     }
 
+    private long readImageSize(Uri uri) {
+        // This is only a guess for the queue's sake, so if anything goes wrong,
+        // just guess.
+        Cursor cursor = null;
+
+        try {
+            cursor = getContentResolver().query(uri, new String[]
+                            { MediaStore.Images.ImageColumns.SIZE },
+                    null, null, null);
+
+            if(cursor == null || !cursor.moveToFirst() || cursor.isNull(0))
+                return DEFAULT_IMAGE_COST;
+
+            return cursor.getLong(0);
+        } catch (RuntimeException re) {
+            return DEFAULT_IMAGE_COST;
+        } finally {
+            if(cursor != null) cursor.close();
+        }
+    }
+
     private ImageInfo readImageInfo(Uri uri, Location locationIfNoneSet) {
         // We're hoping this is something that MediaStore understands.  If not,
         // or if the image doesn't exist anyway, we're returning null, which is
@@ -45,6 +45,10 @@ public final class GHDConstants {
     public static final String PREF_INFOBOX_SIZE = "InfoBoxSize";
     /** Prefs key specifying stock cache size. */
     public static final String PREF_STOCK_CACHE_SIZE = "StockCacheSize";
+    /** Prefs key specifying how far from today (in days) cached stocks can be. */
+    public static final String PREF_STOCK_CACHE_MAX_AGE = "StockCacheMaxAge";
+    /** Prefs key specifying how many hashes to keep in memory. */
+    public static final String PREF_QUICK_CACHE_SIZE = "QuickCacheSize";
     /** Prefs key specifying to show nearby meetup points. */
     public static final String PREF_NEARBY_POINTS = "NearbyPoints";
     /** Prefs key specifying whether the closest checkbox is ticked. */
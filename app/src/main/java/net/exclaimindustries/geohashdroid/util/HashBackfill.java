@@ -0,0 +1,316 @@
+/**
+ * HashBackfill.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.exclaimindustries.tools.EpochDay;
+import net.exclaimindustries.tools.HexFraction;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>HashBackfill</code> is the result of working out every hash for a
+ * (potentially huge) range of dates, done in parallel.  It's meant for the
+ * "regenerate fifteen years of hashes" sort of job, where even
+ * {@link HashBuilder#buildInfoRange(Context, Calendar, Calendar, java.util.Collection)}
+ * is too slow because it's all on one thread.
+ * </p>
+ *
+ * <p>
+ * Building one happens in two phases.  First, every stock value needed is
+ * looked up (database, then internet, with a {@link StockPrefetcher} doing
+ * the internet part in parallel).  Then, the range is chopped into chunks of days and the MD5 and
+ * hex fraction work is spread over a pool of worker threads, each with its own
+ * {@link HashEngine}.  Every chunk writes into its own stretch of a few
+ * primitive arrays, so there's nothing to lock and nothing to merge.
+ * </p>
+ *
+ * <p>
+ * The results are stored by day and by "bulk slot" (non-30W, 30W, or global;
+ * every Graticule falls into one of those three), not by Graticule.  Use
+ * {@link #getInfo(int, Graticule)} to apply a Graticule to a given day, which
+ * is the same arithmetic <code>HashBuilder.cloneInfo</code> does.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class HashBackfill {
+    private static final String DEBUG_TAG = "HashBackfill";
+
+    /** How many days each worker task chews on at once. */
+    private static final int CHUNK_DAYS = 128;
+
+    /**
+     * Stand-in Graticules used to figure out each slot's stock date.  All that
+     * matters is which side of 30W they're on.
+     */
+    private static final Graticule[] SLOT_GRATICULES = new Graticule[HashBuilder.BULK_SLOTS];
+
+    static {
+        SLOT_GRATICULES[HashBuilder.SLOT_NON_30W] = new Graticule(0, false, 100, true);
+        SLOT_GRATICULES[HashBuilder.SLOT_30W] = new Graticule(0, false, 0, false);
+        SLOT_GRATICULES[HashBuilder.SLOT_GLOBAL] = null;
+    }
+
+    private final EpochDay mStart;
+    private final int mDays;
+    // All of these are indexed by (day * BULK_SLOTS + slot).
+    private final double[] mLatHashes;
+    private final double[] mLonHashes;
+    private final boolean[] mValid;
+
+    private HashBackfill(EpochDay start, int days) {
+        mStart = start;
+        mDays = days;
+        mLatHashes = new double[days * HashBuilder.BULK_SLOTS];
+        mLonHashes = new double[days * HashBuilder.BULK_SLOTS];
+        mValid = new boolean[days * HashBuilder.BULK_SLOTS];
+    }
+
+    /**
+     * Builds a HashBackfill with as many threads as there are processors.
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param start first date in the range (inclusive)
+     * @param end last date in the range (inclusive)
+     * @return a new HashBackfill
+     * @throws InterruptedException the calling thread was interrupted while
+     *                              waiting on the workers
+     * @see #build(Context, Calendar, Calendar, int)
+     */
+    public static HashBackfill build(Context con, Calendar start, Calendar end)
+            throws InterruptedException {
+        return build(con, start, end, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Builds a HashBackfill.  This WILL go to the internet for any stocks
+     * that aren't in the database, so don't call it from the main thread.
+     * Days whose stocks couldn't be had are marked invalid.
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param start first date in the range (inclusive)
+     * @param end last date in the range (inclusive)
+     * @param threads number of worker threads to hash with
+     * @return a new HashBackfill
+     * @throws InterruptedException the calling thread was interrupted while
+     *                              waiting on the workers
+     */
+    public static HashBackfill build(Context con, Calendar start, Calendar end, int threads)
+            throws InterruptedException {
+        EpochDay startDay = EpochDay.fromCalendar(start);
+        final int days = Math.max(0, EpochDay.fromCalendar(end).getDay() - startDay.getDay() + 1);
+        final HashBackfill toReturn = new HashBackfill(startDay, days);
+
+        if(days == 0)
+            return toReturn;
+
+        // Phase one: Dates as plain ints, and stocks for every slot.  This is
+        // the I/O part, so it stays right here on this thread.
+        final int[] years = new int[days];
+        final int[] months = new int[days];
+        final int[] daysOfMonth = new int[days];
+        final String[] stocks = new String[days * HashBuilder.BULK_SLOTS];
+
+        HashBuilder.BulkStockLookup lookup = new HashBuilder.BulkStockLookup(con);
+
+        // Anything not in the database gets fetched all at once, a few at a
+        // time, instead of one after another in the loop below.  A
+        // globalhash's stock date is always the earliest one a date can need.
+        lookup.prefetch(Info.makeAdjustedDay(startDay, null), startDay.plusDays(days - 1));
+
+        for(int i = 0; i < days; i++) {
+            EpochDay d = startDay.plusDays(i);
+            years[i] = d.getYear();
+            months[i] = d.getMonth();
+            daysOfMonth[i] = d.getDayOfMonth();
+
+            for(int slot = 0; slot < HashBuilder.BULK_SLOTS; slot++)
+                stocks[i * HashBuilder.BULK_SLOTS + slot] =
+                    lookup.get(Info.makeAdjustedDay(d, SLOT_GRATICULES[slot]));
+        }
+
+        lookup.flush();
+
+        // Phase two: Hash it all out.  Each chunk owns its own stretch of the
+        // arrays, so the workers never step on each other.
+        if(threads < 1) threads = 1;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        try {
+            for(int chunkStart = 0; chunkStart < days; chunkStart += CHUNK_DAYS) {
+                final int from = chunkStart;
+                final int to = Math.min(days, chunkStart + CHUNK_DAYS);
+
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        toReturn.hashChunk(from, to, years, months, daysOfMonth, stocks);
+                        return null;
+                    }
+                }));
+            }
+
+            // Future.get() also makes sure we can see what the workers wrote.
+            for(Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException ee) {
+                    // The only way this happens is a RuntimeException from
+                    // the hashing itself, which means something's very wrong.
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Log.d(DEBUG_TAG, "Backfilled " + days + " days with " + threads + " threads");
+
+        return toReturn;
+    }
+
+    private void hashChunk(int from, int to, int[] years, int[] months, int[] daysOfMonth, String[] stocks) {
+        HashEngine engine = HashEngine.get();
+
+        for(int i = from; i < to; i++) {
+            int base = i * HashBuilder.BULK_SLOTS;
+
+            for(int slot = 0; slot < HashBuilder.BULK_SLOTS; slot++) {
+                int idx = base + slot;
+                String stock = stocks[idx];
+
+                if(stock == null)
+                    continue;
+
+                // On the same day, the same stock means the same hash.  This
+                // happens a lot (pre-30W Rule dates, weekends, etc), so don't
+                // hash it twice.
+                int same = -1;
+                for(int other = base; other < idx; other++) {
+                    if(mValid[other] && stock.equals(stocks[other])) {
+                        same = other;
+                        break;
+                    }
+                }
+
+                if(same >= 0) {
+                    mLatHashes[idx] = mLatHashes[same];
+                    mLonHashes[idx] = mLonHashes[same];
+                } else {
+                    byte[] hash = engine.hash(years[i], months[i], daysOfMonth[i], stock);
+                    mLatHashes[idx] = HexFraction.calculate(hash, 0);
+                    mLonHashes[idx] = HexFraction.calculate(hash, 8);
+                }
+
+                mValid[idx] = true;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of days in this backfill.
+     *
+     * @return the number of days
+     */
+    public int getDayCount() {
+        return mDays;
+    }
+
+    /**
+     * Gets the date for the given day index.  Day 0 is the start date.
+     *
+     * @param day day index
+     * @return the EpochDay for that day
+     */
+    public EpochDay getEpochDay(int day) {
+        return mStart.plusDays(day);
+    }
+
+    /**
+     * Gets the date for the given day index as a Calendar, for the UI.  Day 0
+     * is the start date.
+     *
+     * @param day day index
+     * @return a new Calendar for that day
+     */
+    public Calendar getDate(int day) {
+        return getEpochDay(day).toCalendar();
+    }
+
+    /**
+     * Determines if the given day has a valid hash for the given Graticule.
+     *
+     * @param day day index
+     * @param g Graticule in question (null for a globalhash)
+     * @return true if valid, false if the stock couldn't be had
+     */
+    public boolean isValid(int day, Graticule g) {
+        return mValid[day * HashBuilder.BULK_SLOTS + HashBuilder.getBulkSlot(g)];
+    }
+
+    /**
+     * Gets the fractional latitude part of the hash for the given day and
+     * Graticule.  Check {@link #isValid(int, Graticule)} first.
+     *
+     * @param day day index
+     * @param g Graticule in question (null for a globalhash)
+     * @return the latitude hash
+     */
+    public double getLatitudeHash(int day, Graticule g) {
+        return mLatHashes[day * HashBuilder.BULK_SLOTS + HashBuilder.getBulkSlot(g)];
+    }
+
+    /**
+     * Gets the fractional longitude part of the hash for the given day and
+     * Graticule.  Check {@link #isValid(int, Graticule)} first.
+     *
+     * @param day day index
+     * @param g Graticule in question (null for a globalhash)
+     * @return the longitude hash
+     */
+    public double getLongitudeHash(int day, Graticule g) {
+        return mLonHashes[day * HashBuilder.BULK_SLOTS + HashBuilder.getBulkSlot(g)];
+    }
+
+    /**
+     * Builds an Info object for the given day and Graticule.  If the stock
+     * for that day couldn't be had, this returns an invalid Info.
+     *
+     * @param day day index
+     * @param g Graticule to use (null for a globalhash)
+     * @return a new Info object
+     */
+    public Info getInfo(int day, Graticule g) {
+        Calendar cal = getDate(day);
+
+        if(!isValid(day, g))
+            return new Info(g, cal);
+
+        double latHash = getLatitudeHash(day, g);
+        double lonHash = getLongitudeHash(day, g);
+
+        if(g == null)
+            return new Info(latHash, lonHash, null, cal);
+
+        double lat = (g.getLatitude() + latHash) * (g.isSouth() ? -1 : 1);
+        double lon = (g.getLongitude() + lonHash) * (g.isWest() ? -1 : 1);
+        return new Info(lat, lon, g, cal);
+    }
+}
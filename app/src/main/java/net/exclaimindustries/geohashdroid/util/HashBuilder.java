@@ -7,25 +7,25 @@
  */
 package net.exclaimindustries.geohashdroid.util;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 import net.exclaimindustries.tools.DateTools;
+import net.exclaimindustries.tools.EpochDay;
 import net.exclaimindustries.tools.HexFraction;
-import net.exclaimindustries.tools.MD5Tools;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
@@ -54,28 +54,63 @@ import android.util.Log;
  */
 public class HashBuilder {
     
-    // This is used as the lock to prevent multiple requests from happening at
-    // once.  This really shouldn't ever happen, but just in case.
-    private static Object locker = new Object();
-    
     private static final String DEBUG_TAG = "HashBuilder";
     
+    /**
+     * The default time, in milliseconds, to wait on one stock mirror before
+     * also trying the next one.
+     */
+    public static final long DEFAULT_HEDGE_DELAY = 1500;
+
+    // How long to wait on a stock mirror before hedging with the next.  See
+    // setHedgeDelay.
+    private static volatile long mHedgeDelay = DEFAULT_HEDGE_DELAY;
+
+    /**
+     * The default time, in milliseconds, that a mirror saying a stock isn't
+     * posted yet is taken at its word before asking again.
+     */
+    public static final long DEFAULT_NOT_POSTED_TTL = 2 * 60 * 1000L;
+
+    // Stock dates that aren't posted yet, so we don't keep asking.  See
+    // setNotPostedTtl.
+    private static final NotPostedCache mNotPosted = new NotPostedCache(DEFAULT_NOT_POSTED_TTL);
+
+    // The places we can get stocks from, in default order of preference.
+    // MirrorHealth might shuffle them around a bit.  More can be added with
+    // addStockMirror.
+    private static final List<StockMirror> mMirrors = new CopyOnWriteArrayList<StockMirror>(Arrays.asList(
+            new TemplateStockMirror("http://geo.crox.net/djia/%Y/%m/%d"),
+            new TemplateStockMirror("http://irc.peeron.com/xkcd/map/data/%Y/%m/%d")));
+
+    /** The default number of hashes kept in the in-memory quick cache. */
+    public static final int DEFAULT_QUICK_CACHE_SIZE = 64;
+
     private static StockStoreDatabase mStore;
-    // This set allows for quick reloading of the most recent stock and hash in
-    // a given instance of the program, bypassing the SQLite database, as well
-    // as allow for a small cache even if the SQLite database is turned off by
-    // preferences.
-    private static Info mLastInfo;
-    private static Info mTwoInfosAgo;
+    // This allows for quick reloading of recent hashes in a given instance of
+    // the program, bypassing the SQLite database, as well as allow for a small
+    // cache even if the SQLite database is turned off by preferences.
+    private static final HashCache mQuickCache = new HashCache(DEFAULT_QUICK_CACHE_SIZE);
+    // Somewhere for quick cache lookups to put the hashes, one per thread, so
+    // checking the quick cache doesn't allocate anything on its own.
+    private static final ThreadLocal<double[]> mQuickCacheScratch = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[2];
+        }
+    };
+    // SharedPreferences only holds weak references to listeners, so we need
+    // to hang on to the quick cache's ourselves.
+    private static SharedPreferences.OnSharedPreferenceChangeListener mQuickCachePrefListener;
 
     /**
      * <code>StockRunner</code> is what fetches the stocks.  It can be run as a
      * separate thread where it will respond to the given Handler or in
      * single-thread mode where you need to pull the data from the StockRunner
-     * when it's done.  Only one will run at a time for purposes of the stock
-     * cache database remaining sane.  Once it has the data, it'll go back to
-     * the static methods of HashBuilder to make the Info bundle and put it in
-     * the cache.
+     * when it's done.  Any number can run at once; if two want the same
+     * stock date, they share the one network fetch (see {@link StockFlight}).
+     * Once it has the data, it'll go back to the static methods of HashBuilder
+     * to make the Info bundle and put it in the cache.
      */
     public static class StockRunner implements Runnable {
         private static final String DEBUG_TAG = "StockRunner";
@@ -113,20 +148,11 @@ public class HashBuilder {
         private Calendar mCal;
         private Graticule mGrat;
         private Handler mHandler;
-        private HttpGet mRequest;
-        private int mStatus;
+        private volatile StockFlight.Ticket mTicket;
+        private volatile int mStatus;
         private Info mLastObject;
         private PowerManager.WakeLock mWakeLock;
         
-        // This may be expanded later to allow a user-definable list, hence why
-        // it doesn't follow the usual naming conventions I use.  Of course, in
-        // THAT case, we'd need to make it not be a raw array.  The general form
-        // is that %Y is the four-digit year, %m is the zero-padded month, and
-        // %d is the zero-padded date.
-        private final static String[] mServers = { "http://geo.crox.net/djia/%Y/%m/%d",
-            "http://irc.peeron.com/xkcd/map/data/%Y/%m/%d"};
-
-        
         private StockRunner(Context con, Calendar c, Graticule g, Handler h) {
             mContext = con;
             mCal = c;
@@ -179,55 +205,56 @@ public class HashBuilder {
             
             mStatus = BUSY;
             
-            // First, we need to adjust the calendar in the event we're in the
-            // range of the 30W rule.  To that end, sCal is for stock calendar.
-            Calendar sCal = Info.makeAdjustedCalendar(mCal, mGrat);
+            // First, we need to adjust the date in the event we're in the
+            // range of the 30W rule.  To that end, sDay is for stock day.
+            EpochDay sDay = Info.makeAdjustedDay(EpochDay.fromCalendar(mCal), mGrat);
+            
+            // There's no lock here.  The database calls are synchronized on
+            // their own, and if somebody else is already fetching this same
+            // stock, fetchStock will just wait on their answer.
+            //
+            // First, if this exists in the cache, use it instead of going
+            // off to the internet.  This method uses the ACTUAL date, so
+            // we can ignore sDay for now.
+            toReturn = getStoredInfo(mContext, mCal, mGrat);
+            if(toReturn != null) {
+                // Hey, whadya know, we've got something!  Send this data
+                // back to the Handler and return!
+                mStatus = ALL_OKAY;
+                sendMessage(toReturn);
+                return;
+            }
             
-            // Grab a lock on our lock object.
-            synchronized(locker) {
-                // First, if this exists in the cache, use it instead of going
-                // off to the internet.  This method uses the ACTUAL date, so
-                // we can ignore sCal for now.
-                toReturn = getStoredInfo(mContext, mCal, mGrat);
-                if(toReturn != null) {
-                    // Hey, whadya know, we've got something!  Send this data
-                    // back to the Handler and return!
-                    mStatus = ALL_OKAY;
-                    sendMessage(toReturn);
+            // If that failed, we need a stock price.  First, check to see
+            // if it's in the database.  
+            stock = getStoredStock(mContext, sDay);
+            
+            // If we found something, great!  Let's move on!
+            if(stock == null) {
+                // Otherwise, we need to start heading off to the net.
+                mStatus = BUSY;
+                try {
+                    stock = fetchStock(sDay);
+                    // If this didn't throw an exception AND it's not blank,
+                    // stash it in the database.
+                    if(stock.trim().length() != 0)
+                        storeStock(mContext, sDay, stock);
+                } catch (FileNotFoundException fnfe) {
+                    // If we got a 404, assume it's not posted yet.
+                    mStatus = ERROR_NOT_POSTED;
+                    sendMessage(createInvalidInfo(mCal, mGrat));
+                    return;
+                } catch (IOException ioe) {
+                    // If we got anything else, assume a problem.
+                    mStatus = ERROR_SERVER;
+                    sendMessage(createInvalidInfo(mCal, mGrat));
                     return;
                 }
                 
-                // If that failed, we need a stock price.  First, check to see
-                // if it's in the database.  
-                stock = getStoredStock(mContext, sCal);
-                
-                // If we found something, great!  Let's move on!
-                if(stock == null) {
-                    // Otherwise, we need to start heading off to the net.
-                    mStatus = BUSY;
-                    try {
-                        stock = fetchStock(sCal);
-                        // If this didn't throw an exception AND it's not blank,
-                        // stash it in the database.
-                        if(stock.trim().length() != 0)
-                            storeStock(mContext, sCal, stock);
-                    } catch (FileNotFoundException fnfe) {
-                        // If we got a 404, assume it's not posted yet.
-                        mStatus = ERROR_NOT_POSTED;
-                        sendMessage(createInvalidInfo(mCal, mGrat));
-                        return;
-                    } catch (IOException ioe) {
-                        // If we got anything else, assume a problem.
-                        mStatus = ERROR_SERVER;
-                        sendMessage(createInvalidInfo(mCal, mGrat));
-                        return;
-                    }
-                    
-                    if(mStatus == ABORTED) {
-                        // If we aborted, send that back, too.
-                        sendMessage(createInvalidInfo(mCal, mGrat));
-                        return;
-                    }
+                if(mStatus == ABORTED) {
+                    // If we aborted, send that back, too.
+                    sendMessage(createInvalidInfo(mCal, mGrat));
+                    return;
                 }
             }
 
@@ -270,125 +297,32 @@ public class HashBuilder {
             return mLastObject;
         }
         
-        private String fetchStock(Calendar sCal) throws FileNotFoundException, IOException {
-            // Now, generate a string for the URL.
-            String sMonthStr;
-            String sDayStr;
-
-            if (sCal.get(Calendar.MONTH) + 1 < 10)
-                sMonthStr = "0" + (sCal.get(Calendar.MONTH) + 1);
-            else
-                sMonthStr = Integer.valueOf(sCal.get(Calendar.MONTH) + 1).toString();
-
-            if (sCal.get(Calendar.DAY_OF_MONTH) < 10)
-                sDayStr = "0" + sCal.get(Calendar.DAY_OF_MONTH);
-            else
-                sDayStr = Integer.valueOf(sCal.get(Calendar.DAY_OF_MONTH)).toString();
-
-            // Good, good! Now, to the web!  Go through our list of sites in
-            // order until we find an answer, we bottom out, or we abort.  In
-            // terms of what we report to the user, "Server error" is lowest-
-            // priority, with "Stock not posted" rating above it.  That is to
-            // say, if one server reports and error but another one explicitly
-            // tells us the stock wasn't found, the latter is what we use.  Of
-            // course, if we get an abort request, that takes absolute
-            // precedence.
-            int curStatus = ERROR_SERVER;
-            String result = "";
-            
-            for(String s : mServers) {
-                // Do all our substitutions...
-                String location = s.replaceAll("%Y", Integer.toString(sCal.get(Calendar.YEAR)));
-                location = location.replaceAll("%m", sMonthStr);
-                location = location.replaceAll("%d", sDayStr);
-                Log.d(DEBUG_TAG, "Trying " + location + "...");
-                
-                // And go fetch!
-                HttpClient client = new DefaultHttpClient();
-                mRequest = new HttpGet(location);
-                HttpResponse response;
-                
-                try {
-                    response = client.execute(mRequest);
-                } catch (IOException e) {
-                    // If there was an exception, but we aborted, return a blank
-                    // response (aborting throws an IOException).  If not, there
-                    // was a legitimate problem with this particular server.
-                    if(mStatus == ABORTED) {
-                        return "";
-                    }
-                    continue;
-                }
-                
-                // Make sure we've caught an abort...
-                if(mStatus == ABORTED) {
-                    return "";
-                }
-                
-                if (response.getStatusLine().getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
-                    curStatus = ERROR_NOT_POSTED;
-                } else if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-                    // A non-okay response that isn't a 404 is bad.  Count this
-                    // one as ERROR_SERVER and just continue.
-                    continue;
-                }
-                
-                // Well, we got this far!  Let's read!
-                result = getStringFromStream(response.getEntity().getContent());
-                
-                // With that done, we try to convert the output to the float.
-                // If this fails, we got bogus data and should roll on.
-                try {
-                    Float.parseFloat(result);
-                } catch (NumberFormatException nfe) {
-                    result = "";
-                    continue;
-                }
-                
-                // We survived!  Set the status flag and keep going!
-                curStatus = ALL_OKAY;
-                break;
-            }
-            
-            // If we got this far and we still had an ERROR_SERVER or
-            // ERROR_NOT_POSTED, throw 'em.  We failed.  If we got an ABORTED,
-            // return a blank.
-            if(mStatus == ABORTED)
-                return "";
-            else if(curStatus == ERROR_NOT_POSTED)
-                throw new FileNotFoundException();
-            else if(curStatus == ERROR_SERVER)
-                throw new IOException();
-
+        private String fetchStock(EpochDay sDay) throws FileNotFoundException, IOException {
+            // Good, good! Now, to the web!  StockFlight either starts a new
+            // fetch for this date or lets us wait on one that's already going.
+            // Either way, makeStockFetch figures out which sites are worth
+            // trying and in what order, and HedgedStockFetch sorts it out from
+            // there, telling MirrorHealth how it went.  It tries them in order,
+            // but doesn't wait out a slow server before moving on to the next
+            // one.  In terms of what we report to the user, "Server error" is
+            // still lowest-priority, with "Stock not posted" rating above it.
+            // Of course, if we get an abort request, that takes absolute
+            // precedence, and we get back a blank.
+            StockFlight.Ticket ticket = StockFlight.join(mContext, sDay);
+            mTicket = ticket;
 
-
-            // If we finally, FINALLY got this far, we've got a successful stock!
-            return result;
-        }
-        
-        /**
-         * Takes the given stream and makes a String out of whatever data it has. Be
-         * really careful with this, as it will just attempt to read whatever's in
-         * the stream until it stops, meaning it'll spin endlessly if this isn't the
-         * sort of stream that ends.
-         * 
-         * @param stream
-         *            InputStream to read from
-         * @return a String consisting of the data from the stream
-         */
-        protected static String getStringFromStream(InputStream stream)
-                throws IOException {
-            BufferedReader buff = new BufferedReader(new InputStreamReader(stream));
-
-            // Load it up...
-            StringBuffer tempstring = new StringBuffer();
-            char bean[] = new char[1024];
-            int read = 0;
-            while ((read = buff.read(bean)) != -1) {
-                tempstring.append(bean, 0, read);
+            // Make sure we didn't miss an abort between the last check and
+            // setting mTicket...
+            if(mStatus == ABORTED) {
+                ticket.leave();
+                return "";
             }
 
-            return tempstring.toString();
+            try {
+                return ticket.get();
+            } finally {
+                mTicket = null;
+            }
         }
         
         /**
@@ -404,15 +338,16 @@ public class HashBuilder {
          * Abort the current connection, if one exists.
          */
         public void abort() {
-            if(mRequest != null)
-            {
-                // Bail out of the request (if there is one)...
-                mRequest.abort();
-            }
+            // Change status first, so fetchStock notices even if it hasn't
+            // gotten around to starting its requests yet...
+            mStatus = ABORTED;
             // Put the brakes on the handler...
             mHandler = null;
-            // And change status.
-            mStatus = ABORTED;
+            // And get out of line for the stock (if we're in it).  If nobody
+            // else wants it, that aborts the requests, too.
+            StockFlight.Ticket ticket = mTicket;
+            if(ticket != null)
+                ticket.leave();
         }
         
         /**
@@ -428,6 +363,113 @@ public class HashBuilder {
         }
     }
 
+    /**
+     * <code>BulkStockLookup</code> gets stock values for the bulk methods
+     * (see {@link HashBuilder#buildInfoRange(Context, Calendar, Calendar, Collection)}
+     * and {@link HashBackfill}).  It checks the database, then goes to the
+     * internet, and remembers the answer either way so each stock date only
+     * gets looked up once per bulk job.  No quick cache, no
+     * Handler, and definitely not for the main thread.  Anything fetched from
+     * the internet is held until {@link #flush()}, then written in one batch.
+     */
+    static class BulkStockLookup {
+        private Context mContext;
+        private StockStoreDatabase mStore;
+        // Stock values by stock epoch day.  A null value means we already
+        // tried and failed, so don't try again.
+        private Map<Integer, String> mStocks = new HashMap<Integer, String>();
+        // Fetched stocks that haven't gone to the database yet.
+        private Map<EpochDay, String> mPending = new HashMap<EpochDay, String>();
+
+        BulkStockLookup(Context con) {
+            mContext = con;
+            mStore = getStore(con);
+        }
+
+        /**
+         * Gets the stock for the given already-adjusted date.
+         *
+         * @param sDay already-adjusted date to look up
+         * @return the stock value, or null if it couldn't be had
+         */
+        String get(EpochDay sDay) {
+            Integer key = sDay.getDay();
+
+            if(mStocks.containsKey(key))
+                return mStocks.get(key);
+
+            String stock = mStore.getStock(sDay);
+
+            if(stock == null) {
+                try {
+                    // If a StockRunner's already after this one, we'll just
+                    // wait on its answer.
+                    stock = StockFlight.join(mContext, sDay).get();
+                    if(stock.trim().length() != 0)
+                        mPending.put(sDay, stock);
+                    else
+                        stock = null;
+                } catch (IOException ioe) {
+                    // Not posted or server trouble, it's all the same to us
+                    // here.
+                    Log.d(DEBUG_TAG, "Couldn't get a stock for " + sDay + " in a bulk request: " + ioe.toString());
+                    stock = null;
+                }
+            }
+
+            mStocks.put(key, stock);
+            return stock;
+        }
+
+        /**
+         * Looks up every stock from start to end (inclusive) all at once,
+         * using {@link StockPrefetcher} for anything that isn't in the
+         * database.  After this, {@link #get(EpochDay)} won't have to go to
+         * the internet for anything in that range, successful or not.
+         *
+         * @param start first stock date
+         * @param end last stock date
+         */
+        void prefetch(EpochDay start, EpochDay end) {
+            List<EpochDay> missing = new ArrayList<EpochDay>();
+
+            for(EpochDay day = start; !day.isAfter(end); day = day.plusDays(1)) {
+                Integer key = day.getDay();
+
+                if(mStocks.containsKey(key) || !TradingCalendar.isTradingDay(day))
+                    continue;
+
+                String stock = mStore.getStock(day);
+                if(stock != null)
+                    mStocks.put(key, stock);
+                else
+                    missing.add(day);
+            }
+
+            if(missing.isEmpty())
+                return;
+
+            Map<EpochDay, String> fetched = StockPrefetcher.fetch(mContext, missing, StockPrefetcher.DEFAULT_PARALLELISM);
+
+            // Anything that didn't come back gets remembered as a failure, so
+            // we don't go asking again one at a time.
+            for(EpochDay day : missing) {
+                String stock = fetched.get(day);
+                mStocks.put(day.getDay(), stock);
+                if(stock != null)
+                    mPending.put(day, stock);
+            }
+        }
+
+        /**
+         * Writes any newly-fetched stocks to the database, all in one go.
+         */
+        void flush() {
+            storeStocks(mContext, mPending);
+            mPending.clear();
+        }
+    }
+
     // You don't construct a HashBuilder!  You gotta EARN it!
     private HashBuilder() { }
    
@@ -436,9 +478,7 @@ public class HashBuilder {
      * be called more often, but it won't do anything past the first time.
      */
     public static synchronized void initialize(Context c) {
-        if(mStore == null) {
-            mStore = new StockStoreDatabase(c).init();
-        }
+        getStore(c);
     }
     
     /**
@@ -452,6 +492,19 @@ public class HashBuilder {
     private static synchronized StockStoreDatabase getStore(Context c) {
         if(mStore == null) {
             mStore = new StockStoreDatabase(c).init();
+
+            // While we're setting things up, size the quick cache from the
+            // preferences, and keep it that way.
+            SharedPreferences prefs = c.getSharedPreferences(GHDConstants.PREFS_BASE, 0);
+            readQuickCacheSize(prefs);
+            mQuickCachePrefListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if(GHDConstants.PREF_QUICK_CACHE_SIZE.equals(key))
+                        readQuickCacheSize(prefs);
+                }
+            };
+            prefs.registerOnSharedPreferenceChangeListener(mQuickCachePrefListener);
         }
         
         return mStore;
@@ -471,6 +524,26 @@ public class HashBuilder {
         return new StockRunner(con, c, g, h);
     }
     
+    /**
+     * Starts a {@link StockRequest} for the given date and Graticule.  This
+     * returns right away; either wait on the StockRequest or let the Callback
+     * tell you when it's done.
+     * 
+     * @param con Context for databasey stuff
+     * @param c Calendar object with the adventure date requested (this will
+     *          account for the 30W Rule, so don't put it in) 
+     * @param g Graticule to use
+     * @param timeout most milliseconds to wait on the network (zero or less
+     *                for no limit beyond the usual HTTP timeouts)
+     * @param executor Executor to run it on (null for a shared default pool)
+     * @param callback what to call when it's done (can be null)
+     * @return the StockRequest, already submitted
+     */
+    public static StockRequest requestStock(Context con, Calendar c, Graticule g, long timeout,
+            Executor executor, StockRequest.Callback callback) {
+        return new StockRequest(con, c, g, timeout, callback).submit(executor);
+    }
+    
     /**
      * Checks if the stock price for the given date and graticule (accounting
      * for the 30W rule) is stored and can be retrieved without going to the
@@ -487,7 +560,7 @@ public class HashBuilder {
     public static boolean hasStockStored(Context con, Calendar c, Graticule g) {
 //        Calendar sCal = Info.makeAdjustedCalendar(c, g);
         
-        return getQuickCache(c, g) != null || getStore(con).getInfo(c, g) != null;
+        return mQuickCache.contains(makeQuickCacheKey(c, g)) || getStore(con).getInfo(c, g) != null;
     }
 
     /**
@@ -506,17 +579,15 @@ public class HashBuilder {
         // First, check the quick cache.
 //        Calendar sCal = Info.makeAdjustedCalendar(c, g);
 
-        // If it's in the quick cache, use it.
-        Log.d(DEBUG_TAG, "Checking caches for " + DateTools.getDateString(c)
-                + ((g == null || g.uses30WRule()) ? " with 30W rule" : " without 30W rule"));
+        // If it's in the quick cache, use it.  This gets hit a LOT, so don't
+        // go logging anything here.
         Info result = getQuickCache(c, g);
-        if(result != null) {
-            Log.d(DEBUG_TAG, "Data found in quickcache!");
-            if(result.isGlobalHash()) return result;
-            else return cloneInfo(result, g);
-        }
+        if(result != null)
+            return result;
         
         // Otherwise, check the stock cache.
+        Log.d(DEBUG_TAG, "Not in quickcache, checking the database for " + DateTools.getDateString(c)
+                + ((g == null || g.uses30WRule()) ? " with 30W rule" : " without 30W rule"));
         Info i = getStore(con).getInfo(c, g);
         
         if(i == null)
@@ -534,27 +605,113 @@ public class HashBuilder {
      * responsibility of a StockRunner.
      * 
      * @param con Context used to retrieve the database, if needed 
-     * @param c already-adjusted date to check
+     * @param day already-adjusted date to check
      * @return the String representation of the stock, or null if it's not there
      */
-    public static String getStoredStock(Context con, Calendar c) {
+    public static String getStoredStock(Context con, EpochDay day) {
         // We don't quickcache the stock values.
-        Log.d(DEBUG_TAG, "Going to the database for a stock for " + DateTools.getDateString(c));
+        Log.d(DEBUG_TAG, "Going to the database for a stock for " + day);
         
-        return getStore(con).getStock(c);
+        return getStore(con).getStock(day);
     }
     
     /**
-     * Puts the given data into the quick cache.  Note that the Calendar object
-     * is the date of the stock, not the date of the expedition.
+     * Puts the given Info's hash into the quick cache.  Invalid Infos are
+     * ignored.
      * 
-     * @param sCal stock calendar to store
-     * @param stock stock value to store
+     * @param i Info to cache
      */
     private static void quickCache(Info i) {
-        // Slide over!
-        mTwoInfosAgo = mLastInfo;
-        mLastInfo = i;
+        if(!i.isValid()) return;
+
+        mQuickCache.put(HashCache.makeKey(i.getEpochDay().getDay(), getBulkSlot(i.getGraticule())),
+                i.getLatitudeHash(), i.getLongitudeHash());
+    }
+
+    /**
+     * Changes how many hashes the in-memory quick cache holds.  This empties
+     * the quick cache, so don't go calling it all the time.  Normally, this
+     * follows the {@link GHDConstants#PREF_QUICK_CACHE_SIZE} preference.
+     *
+     * @param capacity new capacity (must be positive)
+     * @throws IllegalArgumentException capacity wasn't positive
+     */
+    public static void setQuickCacheCapacity(int capacity) {
+        mQuickCache.setCapacity(capacity);
+    }
+    
+    /**
+     * Sets how long to wait on one stock mirror before also firing off a
+     * request to the next one.  Zero means hit all of them at once, and a
+     * negative value means never hedge, just try the next one when the
+     * previous one fails.
+     *
+     * @param delay hedge delay in milliseconds
+     */
+    public static void setHedgeDelay(long delay) {
+        mHedgeDelay = delay;
+    }
+    
+    /**
+     * Sets how long a stock that isn't posted yet is remembered as such.
+     * Within that time, anything asking for it gets told it's not posted
+     * without going to the internet.  Zero turns that off.
+     *
+     * @param ttl time to remember, in milliseconds
+     */
+    public static void setNotPostedTtl(long ttl) {
+        mNotPosted.setTtl(ttl);
+    }
+    
+    /**
+     * Gets the cache of stocks that aren't posted yet.
+     *
+     * @return the NotPostedCache
+     */
+    static NotPostedCache getNotPostedCache() {
+        return mNotPosted;
+    }
+    
+    /**
+     * Adds a place to get stocks from.  It goes at the end of the default
+     * order, though if it does well, MirrorHealth will move it up.  If it
+     * also implements {@link RangeStockMirror}, prefetches will try it first.
+     *
+     * @param mirror the new StockMirror
+     */
+    public static void addStockMirror(StockMirror mirror) {
+        mMirrors.add(mirror);
+    }
+
+    /**
+     * Gets all the StockMirrors, in default order of preference.
+     *
+     * @return an array of StockMirrors
+     */
+    static StockMirror[] getStockMirrors() {
+        return mMirrors.toArray(new StockMirror[0]);
+    }
+
+    /**
+     * Sets up a HedgedStockFetch for the given stock date, with the mirrors
+     * sorted by how well they've been doing lately.
+     *
+     * @param con Context used to get at MirrorHealth, if needed
+     * @param sDay the stock date (already adjusted)
+     * @return a HedgedStockFetch, ready to go
+     */
+    static HedgedStockFetch makeStockFetch(Context con, EpochDay sDay) {
+        MirrorHealth health = MirrorHealth.getInstance(con);
+        StockMirror[] mirrors = health.order(getStockMirrors());
+
+        String[] names = new String[mirrors.length];
+        String[] locations = new String[mirrors.length];
+        for(int i = 0; i < mirrors.length; i++) {
+            names[i] = mirrors[i].getName();
+            locations[i] = mirrors[i].getUrl(sDay);
+        }
+
+        return new HedgedStockFetch(names, locations, mHedgeDelay, health, mNotPosted);
     }
     
     /**
@@ -564,7 +721,7 @@ public class HashBuilder {
      * @param con Context used to retrieve the database, if needed
      * @param i an Info bundle with everything we need
      */
-    private synchronized static void storeInfo(Context con, Info i) {
+    synchronized static void storeInfo(Context con, Info i) {
         // First, replace the last-known results.
         quickCache(i);
         
@@ -572,14 +729,32 @@ public class HashBuilder {
         
         // Then, write it to the database.
         store.storeInfo(i);
-        store.cleanup();
+        store.cleanupIfNeeded();
+    }
+    
+    synchronized static void storeStock(Context con, EpochDay day, String stock) {
+        StockStoreDatabase store = getStore(con);
+        
+        store.storeStock(day, stock);
+        store.cleanupIfNeeded();
     }
     
-    private synchronized static void storeStock(Context con, Calendar cal, String stock) {
+    /**
+     * Stores a whole bunch of stock values in one transaction.  Use this
+     * instead of a pile of single stores when prefetching.
+     * 
+     * @param con Context used to retrieve the database, if needed
+     * @param stocks stock values, keyed by already-adjusted date
+     * @return the number of new rows stored
+     */
+    public synchronized static int storeStocks(Context con, Map<EpochDay, String> stocks) {
+        if(stocks.isEmpty()) return 0;
+        
         StockStoreDatabase store = getStore(con);
         
-        store.storeStock(cal, stock);
-        store.cleanup();
+        int stored = store.storeStocks(stocks);
+        store.cleanupIfNeeded();
+        return stored;
     }
     
     /**
@@ -599,6 +774,8 @@ public class HashBuilder {
      * @return true on success, false on failure
      */
     public synchronized static boolean deleteCache(Context con) {
+        mQuickCache.clear();
+        mNotPosted.clear();
         return getStore(con).deleteCache();
     }
     
@@ -617,7 +794,7 @@ public class HashBuilder {
         // calling it.  In general, this is the Handler in StockRunner.
         
         // So to that end, we first build up the hash.
-        String hash = makeHash(c, stockPrice);
+        byte[] hash = makeHash(EpochDay.fromCalendar(c), stockPrice);
         
         // Then, get the latitude and longitude from that.
         double lat = getLatitude(g, hash);
@@ -675,75 +852,176 @@ public class HashBuilder {
     }
     
     /**
-     * Generate the hash string from the date and stock price.  The REAL date,
-     * that is.  Not a 30W Rule-adjusted date.
+     * Number of distinct hashes a single date can have, as far as the bulk
+     * methods are concerned.
+     */
+    static final int BULK_SLOTS = 3;
+    /** Bulk slot for Graticules that don't use the 30W Rule. */
+    static final int SLOT_NON_30W = 0;
+    /** Bulk slot for Graticules that use the 30W Rule. */
+    static final int SLOT_30W = 1;
+    /**
+     * Bulk slot for globalhashes.  These aren't the same as 30W, since they're
+     * always a day back, even before the 30W Rule existed.
+     */
+    static final int SLOT_GLOBAL = 2;
+
+    /**
+     * Figures out which bulk slot a given Graticule's hash goes into.
+     *
+     * @param g Graticule in question (null for a globalhash)
+     * @return SLOT_GLOBAL, SLOT_30W, or SLOT_NON_30W
+     */
+    static int getBulkSlot(Graticule g) {
+        if(g == null)
+            return SLOT_GLOBAL;
+        else
+            return g.uses30WRule() ? SLOT_30W : SLOT_NON_30W;
+    }
+
+    /**
+     * <p>
+     * Builds Info objects for every date in a range and every Graticule in a
+     * collection, all in one go.  This is meant for batch jobs (statistics,
+     * history, that sort of thing) where calling {@link #getStoredInfo(Context, Calendar, Graticule)}
+     * or running a StockRunner thousands of times would be silly.
+     * </p>
+     *
+     * <p>
+     * Each distinct stock date is looked up (in the database, then on the
+     * internet) exactly once, and each date's hash is worked out once per
+     * distinct stock date, then applied to every Graticule the same way
+     * {@link #cloneInfo(Info, Graticule)} would.  The quick cache and the
+     * locker aren't involved, and only newly-fetched stocks are written back
+     * to the database (thousands of hashes would just get pruned anyway).
+     * </p>
+     *
+     * <p>
+     * This WILL go to the internet if it has to, so don't call it from the
+     * main thread.
+     * </p>
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param start first date in the range (inclusive)
+     * @param end last date in the range (inclusive)
+     * @param grats Graticules to use (a null entry means a globalhash)
+     * @return a List of Info objects, ordered by date and then by the order of
+     *         grats; any date whose stock couldn't be had gets invalid Infos
+     */
+    public static List<Info> buildInfoRange(Context con, Calendar start, Calendar end, Collection<Graticule> grats) {
+        List<Info> toReturn = new ArrayList<Info>();
+
+        EpochDay endDay = EpochDay.fromCalendar(end);
+
+        if(grats.isEmpty())
+            return toReturn;
+
+        EpochDay startDay = EpochDay.fromCalendar(start);
+        BulkStockLookup stocks = new BulkStockLookup(con);
+
+        // Get every stock we could possibly need in one go.  A globalhash's
+        // stock date is always the earliest one a date can need.
+        stocks.prefetch(Info.makeAdjustedDay(startDay, null), endDay);
+
+        for(EpochDay day = startDay; !day.isAfter(endDay); day = day.plusDays(1)) {
+            // Calendars are just for the Info objects we hand back.
+            Calendar realCal = day.toCalendar();
+
+            // Within a single real date, the only thing that changes the hash
+            // is whether or not the stock date gets bumped back, so there are
+            // only three possible hashes per day (see getBulkSlot).  Work each
+            // out the first time it's needed.
+            boolean[] done = new boolean[BULK_SLOTS];
+            boolean[] valid = new boolean[BULK_SLOTS];
+            double[] latHash = new double[BULK_SLOTS];
+            double[] lonHash = new double[BULK_SLOTS];
+
+            for(Graticule g : grats) {
+                int slot = getBulkSlot(g);
+
+                if(!done[slot]) {
+                    String stock = stocks.get(Info.makeAdjustedDay(day, g));
+
+                    if(stock != null) {
+                        byte[] hash = makeHash(day, stock);
+                        latHash[slot] = getLatitudeHash(hash);
+                        lonHash[slot] = getLongitudeHash(hash);
+                        valid[slot] = true;
+                    }
+
+                    done[slot] = true;
+                }
+
+                if(!valid[slot]) {
+                    toReturn.add(createInvalidInfo(realCal, g));
+                } else if(g == null) {
+                    toReturn.add(new Info(latHash[slot], lonHash[slot], null, realCal));
+                } else {
+                    double lat = (g.getLatitude() + latHash[slot]) * (g.isSouth() ? -1 : 1);
+                    double lon = (g.getLongitude() + lonHash[slot]) * (g.isWest() ? -1 : 1);
+                    toReturn.add(new Info(lat, lon, g, realCal));
+                }
+            }
+        }
+
+        stocks.flush();
+        return toReturn;
+    }
+
+    /**
+     * Generate the hash from the date and stock price.  The REAL date, that
+     * is.  Not a 30W Rule-adjusted date.  This comes back as the raw 16-byte
+     * MD5 digest, not a hex string; the first eight bytes are the latitude
+     * half, the last eight are the longitude half.  Read them out right away,
+     * as the array gets reused.
      * 
-     * @param c date to use
+     * @param day date to use
      * @param stockPrice stock price to use
      * @return the hash you're looking for
      */
-    protected static String makeHash(Calendar c, String stockPrice) {
+    protected static byte[] makeHash(EpochDay day, String stockPrice) {
         // Just reset the hash. This can be handy alone if the graticule has
-        // changed.  Remember, c is the REAL date, not the STOCK date!
-        String monthStr;
-        String dayStr;
+        // changed.  Remember, day is the REAL date, not the STOCK date!  Note
+        // that the array we get back belongs to this thread's HashEngine, so
+        // it'll get clobbered the next time this thread hashes something.
+        return HashEngine.get().hash(day, stockPrice);
+    }
 
-        // Zero-pad the month and date...
-        if (c.get(Calendar.MONTH) + 1 < 10)
-            monthStr = "0" + (c.get(Calendar.MONTH) + 1);
-        else
-            monthStr = Integer.valueOf(c.get(Calendar.MONTH) + 1).toString();
+    private static int makeQuickCacheKey(Calendar c, Graticule g) {
+        return HashCache.makeKey(DateTools.getEpochDay(c), getBulkSlot(g));
+    }
 
-        if (c.get(Calendar.DAY_OF_MONTH) < 10)
-            dayStr = "0" + c.get(Calendar.DAY_OF_MONTH);
-        else
-            dayStr = Integer.valueOf(c.get(Calendar.DAY_OF_MONTH)).toString();
+    private static void readQuickCacheSize(SharedPreferences prefs) {
+        int capacity;
 
-        // And here it goes!
-        String fullLine = c.get(Calendar.YEAR) + "-" + monthStr + "-"
-                + dayStr + "-" + stockPrice;
-        return MD5Tools.MD5hash(fullLine);
+        try {
+            capacity = Math.max(1, Integer.parseInt(prefs.getString(GHDConstants.PREF_QUICK_CACHE_SIZE,
+                    Integer.toString(DEFAULT_QUICK_CACHE_SIZE))));
+        } catch (NumberFormatException nfe) {
+            capacity = DEFAULT_QUICK_CACHE_SIZE;
+        }
+
+        // Resizing empties it, so don't bother if nothing changed.
+        if(capacity != mQuickCache.getCapacity())
+            setQuickCacheCapacity(capacity);
     }
 
-    private static Info getQuickCache(Calendar sCal, Graticule g) {
-        // We don't use Calendar.equals here, as that checks all properties,
-        // including potentially some we don't really care about.
-        boolean is30W = (g == null || g.uses30WRule());
-        
-        // At any rate, first off, the most recent date/30W combo.  Then, the
-        // second-most.  Failing THAT, return null.
-        Log.d(DEBUG_TAG, "Checking quickcache for data...");
-        if(mLastInfo != null) {
-            Calendar stored = mLastInfo.getCalendar();
-            
-            if(stored.get(Calendar.MONTH) ==  sCal.get(Calendar.MONTH)
-                    && stored.get(Calendar.DAY_OF_MONTH) ==  sCal.get(Calendar.DAY_OF_MONTH)
-                    && stored.get(Calendar.YEAR) ==  sCal.get(Calendar.YEAR)
-                    && ((mLastInfo.getGraticule() == null && g == null)
-                            || (mLastInfo.getGraticule() != null && g != null))
-                    && mLastInfo.uses30WRule() == is30W) {
-                Log.d(DEBUG_TAG, "Hash data is in quick cache (mLastInfo): " + mLastInfo.getLatitudeHash() + ", " + mLastInfo.getLongitudeHash());
-                return mLastInfo;
-            }
-        }
-        
-        if(mTwoInfosAgo != null) {
-            Calendar stored = mTwoInfosAgo.getCalendar();
-            
-            if(stored.get(Calendar.MONTH) ==  sCal.get(Calendar.MONTH)
-                    && stored.get(Calendar.DAY_OF_MONTH) ==  sCal.get(Calendar.DAY_OF_MONTH)
-                    && stored.get(Calendar.YEAR) ==  sCal.get(Calendar.YEAR)
-                    && ((mTwoInfosAgo.getGraticule() == null && g == null)
-                            || (mTwoInfosAgo.getGraticule() != null && g != null))
-                    && mTwoInfosAgo.uses30WRule() == is30W) {
-                Log.d(DEBUG_TAG, "Hash data is in quick cache (mTwoInfosAgo): " + mTwoInfosAgo.getLatitudeHash() + ", " + mTwoInfosAgo.getLongitudeHash());
-                return mTwoInfosAgo;
-            }
-        }
-        
-        Log.d(DEBUG_TAG, "Data wasn't in quickcache.");
-        
-        return null;
+    private static Info getQuickCache(Calendar c, Graticule g) {
+        // The key covers the date and which side of the 30W line (or globalness)
+        // we're talking about, so any hit can go straight to the given
+        // Graticule.  The scratch array belongs to this thread, and we're done
+        // with it before anything else could use it.
+        double[] hashes = mQuickCacheScratch.get();
+
+        if(!mQuickCache.get(makeQuickCacheKey(c, g), hashes))
+            return null;
+
+        if(g == null)
+            return new Info(hashes[0], hashes[1], null, c);
+
+        double lat = (g.getLatitude() + hashes[0]) * (g.isSouth() ? -1 : 1);
+        double lon = (g.getLongitude() + hashes[1]) * (g.isWest() ? -1 : 1);
+        return new Info(lat, lon, g, c);
     }
     
     /**
@@ -752,9 +1030,8 @@ public class HashBuilder {
      * 
      * @return the fractional latitude value
      */
-    private static double getLatitudeHash(String hash) {
-        String chunk = hash.substring(0, 16);
-        return HexFraction.calculate(chunk);
+    private static double getLatitudeHash(byte[] hash) {
+        return HexFraction.calculate(hash, 0);
     }
 
     /**
@@ -763,12 +1040,11 @@ public class HashBuilder {
      * 
      * @return the fractional longitude value
      */
-    private static double getLongitudeHash(String hash) {
-        String chunk = hash.substring(16, 32);
-        return HexFraction.calculate(chunk);
+    private static double getLongitudeHash(byte[] hash) {
+        return HexFraction.calculate(hash, 8);
     }
 
-    private static double getLatitude(Graticule g, String hash) {
+    private static double getLatitude(Graticule g, byte[] hash) {
         // If the Graticule's not null, this is a normal hash.  If it is, it's a
         // globalhash, and has to be treated differently.
         if(g != null) {
@@ -784,7 +1060,7 @@ public class HashBuilder {
 
     }
 
-    private static double getLongitude(Graticule g, String hash) {
+    private static double getLongitude(Graticule g, byte[] hash) {
         // Same deal as with getLatitude.
         if(g != null) {
             int lon = g.getLongitude();
@@ -0,0 +1,244 @@
+/**
+ * HashCache.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+/**
+ * <p>
+ * A <code>HashCache</code> is a small, bounded, in-memory cache of hashes.
+ * That is, the fractional latitude and longitude parts, keyed by an int that
+ * packs the date and which sort of hash it is (see {@link #makeKey(int, int)}).
+ * It's what HashBuilder checks before going to the database.
+ * </p>
+ *
+ * <p>
+ * Everything's stored in primitive arrays, so lookups and stores don't
+ * allocate anything.  When it fills up, entries are evicted using the clock
+ * algorithm (a cheap approximation of least-recently-used).  All methods are
+ * synchronized, as HashBuilder gets called from all sorts of threads.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class HashCache {
+    // The entries themselves.  Entries fill in from zero, so slots below
+    // mSize are always valid.
+    private int[] mKeys;
+    private double[] mLatHashes;
+    private double[] mLonHashes;
+    private boolean[] mReferenced;
+    private int mCapacity;
+    private int mSize;
+    private int mHand;
+
+    // The index, open-addressed with linear probing.  Each bucket holds an
+    // entry slot plus one, so zero means empty.  Always a power of two and at
+    // least twice the capacity, so it never gets too crowded.
+    private int[] mTable;
+    private int mMask;
+
+    /**
+     * Makes a new HashCache.
+     *
+     * @param capacity maximum number of hashes to keep (must be positive)
+     * @throws IllegalArgumentException capacity wasn't positive
+     */
+    public HashCache(int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Packs an epoch day and a bulk slot into a cache key.
+     *
+     * @param epochDay the REAL date (not adjusted for anything), as days since
+     *                 the epoch (see {@link net.exclaimindustries.tools.DateTools#getEpochDay(java.util.Calendar)})
+     * @param slot which sort of hash this is (see {@link HashBuilder#getBulkSlot(Graticule)})
+     * @return a cache key
+     */
+    public static int makeKey(int epochDay, int slot) {
+        return (epochDay << 2) | slot;
+    }
+
+    /**
+     * Looks up a hash.  If it's found, the latitude and longitude hashes go
+     * into out[0] and out[1], respectively.
+     *
+     * @param key key to look up
+     * @param out array of at least two doubles to put the hash in
+     * @return true if found, false if not (in which case out is untouched)
+     */
+    public synchronized boolean get(int key, double[] out) {
+        int slot = findSlot(key);
+
+        if(slot < 0)
+            return false;
+
+        mReferenced[slot] = true;
+        out[0] = mLatHashes[slot];
+        out[1] = mLonHashes[slot];
+        return true;
+    }
+
+    /**
+     * Determines if a hash is in the cache, without counting as a use of it.
+     *
+     * @param key key to look up
+     * @return true if found, false if not
+     */
+    public synchronized boolean contains(int key) {
+        return findSlot(key) >= 0;
+    }
+
+    /**
+     * Stores a hash.  If the key's already in there, it gets overwritten.  If
+     * the cache is full, something gets evicted.
+     *
+     * @param key key to store
+     * @param latHash fractional latitude part
+     * @param lonHash fractional longitude part
+     */
+    public synchronized void put(int key, double latHash, double lonHash) {
+        int slot = findSlot(key);
+
+        if(slot < 0) {
+            if(mSize < mCapacity) {
+                // Still room.  Entries fill in order until we're full, so the
+                // next free one is always at mSize.
+                slot = mSize++;
+            } else {
+                slot = evict();
+            }
+
+            mKeys[slot] = key;
+            insertIndex(key, slot);
+        }
+
+        mLatHashes[slot] = latHash;
+        mLonHashes[slot] = lonHash;
+        mReferenced[slot] = true;
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public synchronized void clear() {
+        allocate(mCapacity);
+    }
+
+    /**
+     * Changes the capacity of the cache.  This empties it, too.
+     *
+     * @param capacity maximum number of hashes to keep (must be positive)
+     * @throws IllegalArgumentException capacity wasn't positive
+     */
+    public synchronized void setCapacity(int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Gets the capacity of the cache.
+     *
+     * @return the capacity
+     */
+    public synchronized int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Gets the number of hashes currently in the cache.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private void allocate(int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("A HashCache needs a capacity of at least one.");
+
+        mCapacity = capacity;
+        mKeys = new int[capacity];
+        mLatHashes = new double[capacity];
+        mLonHashes = new double[capacity];
+        mReferenced = new boolean[capacity];
+        mSize = 0;
+        mHand = 0;
+
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mTable = new int[tableSize];
+        mMask = tableSize - 1;
+    }
+
+    private static int mix(int key) {
+        // Keys are mostly consecutive days, so spread the bits out a bit
+        // before masking.
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(int key) {
+        for(int i = mix(key) & mMask; mTable[i] != 0; i = (i + 1) & mMask) {
+            int slot = mTable[i] - 1;
+            if(mKeys[slot] == key)
+                return slot;
+        }
+
+        return -1;
+    }
+
+    private void insertIndex(int key, int slot) {
+        int i = mix(key) & mMask;
+        while(mTable[i] != 0)
+            i = (i + 1) & mMask;
+        mTable[i] = slot + 1;
+    }
+
+    private void removeIndex(int key) {
+        int i = mix(key) & mMask;
+        while(mKeys[mTable[i] - 1] != key)
+            i = (i + 1) & mMask;
+
+        // Backward-shift deletion.  Anything further along the probe run that
+        // could live in the hole we just made gets moved back into it, so
+        // lookups never stop early on a gap that shouldn't be there.
+        int hole = i;
+        int j = i;
+        while(true) {
+            j = (j + 1) & mMask;
+            if(mTable[j] == 0)
+                break;
+
+            int home = mix(mKeys[mTable[j] - 1]) & mMask;
+            // If home is cyclically in (hole, j], the entry at j is fine where
+            // it is.  Otherwise, it can fill the hole.
+            boolean stays = (hole <= j) ? (hole < home && home <= j) : (hole < home || home <= j);
+            if(!stays) {
+                mTable[hole] = mTable[j];
+                hole = j;
+            }
+        }
+
+        mTable[hole] = 0;
+    }
+
+    private int evict() {
+        // Sweep the clock hand around until we find something that hasn't
+        // been used since the last pass, clearing reference bits as we go.
+        while(true) {
+            int slot = mHand;
+            mHand = (mHand + 1) % mCapacity;
+
+            if(mReferenced[slot]) {
+                mReferenced[slot] = false;
+            } else {
+                removeIndex(mKeys[slot]);
+                return slot;
+            }
+        }
+    }
+}
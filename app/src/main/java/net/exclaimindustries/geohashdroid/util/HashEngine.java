@@ -0,0 +1,159 @@
+/**
+ * HashEngine.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.exclaimindustries.tools.EpochDay;
+
+/**
+ * <p>
+ * A <code>HashEngine</code> does the actual MD5 grunt work of turning a date
+ * and a stock price into a Geohash.  That is, it hashes the string
+ * "YYYY-MM-DD-price" and hands back the raw digest, ready for
+ * {@link net.exclaimindustries.tools.HexFraction#calculate(byte[], int)}.
+ * </p>
+ *
+ * <p>
+ * The whole point of this thing is that it doesn't make garbage.  The input
+ * line is written straight into a reused byte buffer (no String concatenation,
+ * no toCharArray), the MessageDigest is reused, and the digest comes back in a
+ * reused array.  That makes each engine strictly single-threaded, so get one
+ * with {@link #get()}, which hands out one per thread.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class HashEngine {
+    /** Length of an MD5 digest, in bytes. */
+    public static final int DIGEST_LENGTH = 16;
+
+    private static final ThreadLocal<HashEngine> mEngines = new ThreadLocal<HashEngine>() {
+        @Override
+        protected HashEngine initialValue() {
+            return new HashEngine();
+        }
+    };
+
+    private final MessageDigest mDigest;
+    private final byte[] mDigestBytes = new byte[DIGEST_LENGTH];
+    // "YYYY-MM-DD-" is eleven bytes, and stock prices are rarely more than
+    // eight or so.  This grows if it has to.
+    private byte[] mInput = new byte[32];
+
+    private HashEngine() {
+        try {
+            mDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // No, seriously, if this fails, we're all doomed.
+            throw new IllegalStateException("MD5 isn't available on this device?", e);
+        }
+    }
+
+    /**
+     * Gets the HashEngine for the current thread.  Don't hand it off to any
+     * other thread.
+     *
+     * @return this thread's HashEngine
+     */
+    public static HashEngine get() {
+        return mEngines.get();
+    }
+
+    /**
+     * Hashes the given date and stock price.  The date is the REAL date, not
+     * a 30W Rule-adjusted date.
+     *
+     * @param day date to use
+     * @param stockPrice stock price to use
+     * @return the 16-byte digest (see {@link #hash(int, int, int, CharSequence)}
+     *         for why you shouldn't hang on to it)
+     */
+    public byte[] hash(EpochDay day, CharSequence stockPrice) {
+        return hash(day.getYear(), day.getMonth(), day.getDayOfMonth(), stockPrice);
+    }
+
+    /**
+     * <p>
+     * Hashes the given date and stock price.  The date is the REAL date, not a
+     * 30W Rule-adjusted date.
+     * </p>
+     *
+     * <p>
+     * The array returned is owned by this engine and WILL be overwritten on
+     * the next call.  Read what you need out of it (or copy it) right away.
+     * </p>
+     *
+     * @param year four-digit year
+     * @param month month, from 1 to 12 (NOT Calendar's 0 to 11)
+     * @param day day of the month
+     * @param stockPrice stock price to use
+     * @return the 16-byte digest
+     */
+    public byte[] hash(int year, int month, int day, CharSequence stockPrice) {
+        int len = stockPrice.length();
+        ensureCapacity(len + 20);
+
+        byte[] buf = mInput;
+        int pos = writeInt(buf, 0, year);
+        buf[pos++] = '-';
+        pos = writeTwoDigits(buf, pos, month);
+        buf[pos++] = '-';
+        pos = writeTwoDigits(buf, pos, day);
+        buf[pos++] = '-';
+
+        // Same narrowing CharToByte.charsToBytes does.  Stock prices are all
+        // ASCII anyway.
+        for(int i = 0; i < len; i++)
+            buf[pos++] = (byte)(stockPrice.charAt(i) & 0xFF);
+
+        mDigest.update(buf, 0, pos);
+
+        try {
+            mDigest.digest(mDigestBytes, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            // This only happens if the output buffer's too small, and it isn't.
+            throw new IllegalStateException(e);
+        }
+
+        return mDigestBytes;
+    }
+
+    private void ensureCapacity(int needed) {
+        if(mInput.length < needed)
+            mInput = new byte[needed * 2];
+    }
+
+    private static int writeTwoDigits(byte[] buf, int pos, int value) {
+        buf[pos++] = (byte)('0' + value / 10);
+        buf[pos++] = (byte)('0' + value % 10);
+        return pos;
+    }
+
+    private static int writeInt(byte[] buf, int pos, int value) {
+        // Years, no padding, same as string concatenation would do.  The
+        // buffer's always got room for eleven characters of this.
+        if(value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+
+        int digits = 1;
+        for(int v = value; v >= 10; v /= 10)
+            digits++;
+
+        for(int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+
+        return pos + digits;
+    }
+}
@@ -0,0 +1,382 @@
+/**
+ * HedgedStockFetch.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.exclaimindustries.tools.SharedHttpClient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>HedgedStockFetch</code> is one attempt at getting a stock value out
+ * of a list of mirrors.  Rather than wait out the full timeout on a slow
+ * mirror before even trying the next one, it fires off the first mirror, and
+ * if that hasn't answered within the hedge delay, fires off the next one too
+ * (and so on down the list).  Whichever one comes back first with something
+ * that parses as a number wins, and everything else still in flight gets
+ * aborted.
+ * </p>
+ *
+ * <p>
+ * A hedge delay of zero hits every mirror at once.  A negative delay never
+ * hedges, meaning the next mirror only gets tried when the previous one
+ * fails, which is how it all used to work.
+ * </p>
+ *
+ * <p>
+ * If given a {@link MirrorHealth}, every attempt that actually finishes (that
+ * is, wasn't aborted for losing the race) gets reported to it.
+ * </p>
+ *
+ * <p>
+ * If given a {@link NotPostedCache}, any ETag or Last-Modified that comes back
+ * with a 404 gets remembered, and sent back as If-None-Match or
+ * If-Modified-Since the next time that URL is asked for.  A 304 to that means
+ * it's still not posted.
+ * </p>
+ *
+ * <p>
+ * Each one of these is good for exactly one {@link #fetch()}.  It's not
+ * thread-safe, with the exception of {@link #abort()}, which is meant to be
+ * called from another thread.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+class HedgedStockFetch {
+    private static final String DEBUG_TAG = "HedgedStockFetch";
+
+    // The same threads get used for every fetch.  They die off on their own
+    // after a minute of nothing to do, so this doesn't cost anything while
+    // idle.
+    private static final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, DEBUG_TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // What each attempt can come back with.  These are ordered so that
+    // "better" outcomes have higher numbers, which is what fetch() uses to
+    // figure out what to report if nobody succeeds.
+    private static final int OUTCOME_ERROR = 0;
+    private static final int OUTCOME_NOT_POSTED = 1;
+    private static final int OUTCOME_OKAY = 2;
+    private static final int OUTCOME_ABORTED = 3;
+
+    private final String[] mMirrors;
+    private final String[] mLocations;
+    private final long mHedgeDelay;
+    private final MirrorHealth mHealth;
+    private final NotPostedCache mNotPosted;
+    private final HttpGet[] mRequests;
+    // Which requests got aborted by abortAll, as opposed to aborted because
+    // they were sending back garbage.  Guarded by mRequests, same as above.
+    private final boolean[] mLost;
+    private final BlockingQueue<Outcome> mOutcomes = new LinkedBlockingQueue<Outcome>();
+    private volatile boolean mAborted;
+
+    private static class Outcome {
+        final int index;
+        final int result;
+        final String stock;
+
+        Outcome(int index, int result, String stock) {
+            this.index = index;
+            this.result = result;
+            this.stock = stock;
+        }
+    }
+
+    /**
+     * Makes a new HedgedStockFetch.
+     *
+     * @param locations full URLs to try, in order of preference
+     * @param hedgeDelay milliseconds to wait on one mirror before also trying
+     *                   the next (zero for all at once, negative for never)
+     */
+    HedgedStockFetch(String[] locations, long hedgeDelay) {
+        this(locations, locations, hedgeDelay, null, null);
+    }
+
+    /**
+     * Makes a new HedgedStockFetch that reports how each mirror did.
+     *
+     * @param mirrors names to report each mirror under, in the same order as
+     *                locations
+     * @param locations full URLs to try, in order of preference
+     * @param hedgeDelay milliseconds to wait on one mirror before also trying
+     *                   the next (zero for all at once, negative for never)
+     * @param health where to report to (can be null)
+     * @param notPosted where to keep validators for conditional requests (can
+     *                  be null)
+     */
+    HedgedStockFetch(String[] mirrors, String[] locations, long hedgeDelay, MirrorHealth health, NotPostedCache notPosted) {
+        mMirrors = mirrors;
+        mLocations = locations;
+        mHedgeDelay = hedgeDelay;
+        mHealth = health;
+        mNotPosted = notPosted;
+        mRequests = new HttpGet[locations.length];
+        mLost = new boolean[locations.length];
+    }
+
+    /**
+     * Goes and gets the stock.  This blocks until either something works,
+     * everything fails, or {@link #abort()} is called.
+     *
+     * @return the stock value, or a blank string if aborted
+     * @throws FileNotFoundException no mirror worked, and at least one said
+     *                               the stock wasn't posted yet
+     * @throws IOException no mirror worked, for any other reason
+     */
+    String fetch() throws FileNotFoundException, IOException {
+        int launched = 0;
+        int finished = 0;
+        int best = OUTCOME_ERROR;
+
+        if(mLocations.length == 0)
+            throw new IOException("No stock mirrors to try!");
+
+        launch(launched++);
+
+        try {
+            while(finished < launched) {
+                Outcome o;
+
+                // If there's anything left to launch and we're hedging, only
+                // wait as long as the hedge delay.  Otherwise, wait for
+                // whatever's out there to come back.
+                if(launched < mLocations.length && mHedgeDelay >= 0)
+                    o = mOutcomes.poll(mHedgeDelay, TimeUnit.MILLISECONDS);
+                else
+                    o = mOutcomes.take();
+
+                if(mAborted)
+                    return "";
+
+                if(o == null) {
+                    // Time's up on the hedge delay.  Send in the next one.
+                    Log.d(DEBUG_TAG, "No answer yet, hedging with mirror " + launched + "...");
+                    launch(launched++);
+                    continue;
+                }
+
+                finished++;
+
+                if(o.result == OUTCOME_OKAY) {
+                    Log.d(DEBUG_TAG, "Mirror " + o.index + " won with " + o.stock);
+                    abortAll();
+                    return o.stock;
+                }
+
+                if(o.result > best)
+                    best = o.result;
+
+                // That one failed.  If there's anything we haven't tried yet,
+                // there's no point waiting out the rest of the delay on it.
+                if(finished == launched && launched < mLocations.length)
+                    launch(launched++);
+            }
+        } catch (InterruptedException ie) {
+            abortAll();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching the stock");
+        }
+
+        if(mAborted)
+            return "";
+        else if(best == OUTCOME_NOT_POSTED)
+            throw new FileNotFoundException();
+        else
+            throw new IOException();
+    }
+
+    /**
+     * Aborts every request still in flight.  {@link #fetch()} will return a
+     * blank string shortly afterward.
+     */
+    void abort() {
+        mAborted = true;
+        abortAll();
+
+        // Wake up fetch() if it's waiting.
+        mOutcomes.offer(new Outcome(-1, OUTCOME_ABORTED, null));
+    }
+
+    /**
+     * Checks if {@link #abort()} has been called.
+     *
+     * @return true if this was aborted
+     */
+    boolean isAborted() {
+        return mAborted;
+    }
+
+    private void abortAll() {
+        synchronized(mRequests) {
+            for(int i = 0; i < mRequests.length; i++) {
+                if(mRequests[i] != null && !mRequests[i].isAborted()) {
+                    mLost[i] = true;
+                    mRequests[i].abort();
+                }
+            }
+        }
+    }
+
+    private void launch(final int index) {
+        final HttpGet request = new HttpGet(mLocations[index]);
+
+        // If this mirror told us "not posted" last time and gave us something
+        // to check against, ask it if anything's changed since.
+        final boolean conditional = addValidators(request, mLocations[index]);
+
+        synchronized(mRequests) {
+            mRequests[index] = request;
+        }
+
+        Log.d(DEBUG_TAG, "Trying " + mLocations[index] + "...");
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+
+                // Whatever happens, fetch() MUST hear back from this, or it'll
+                // wait forever.
+                Outcome o = new Outcome(index, OUTCOME_ERROR, null);
+                try {
+                    o = attempt(index, request, conditional);
+                } catch (RuntimeException re) {
+                    Log.w(DEBUG_TAG, "Mirror " + index + " blew up: " + re.toString());
+                } finally {
+                    report(o, System.currentTimeMillis() - start);
+                    mOutcomes.offer(o);
+                }
+            }
+        });
+    }
+
+    private void report(Outcome o, long latency) {
+        // If this got aborted, either it lost the race or the user gave up.
+        // Neither one says anything about the mirror.
+        if(mHealth == null)
+            return;
+
+        synchronized(mRequests) {
+            if(mLost[o.index])
+                return;
+        }
+
+        if(o.result == OUTCOME_ERROR)
+            mHealth.recordFailure(mMirrors[o.index], latency);
+        else
+            mHealth.recordSuccess(mMirrors[o.index], latency);
+    }
+
+    private boolean addValidators(HttpGet request, String location) {
+        if(mNotPosted == null)
+            return false;
+
+        NotPostedCache.Validators v = mNotPosted.getValidators(location);
+        if(v == null)
+            return false;
+
+        if(v.etag != null)
+            request.addHeader("If-None-Match", v.etag);
+        if(v.lastModified != null)
+            request.addHeader("If-Modified-Since", v.lastModified);
+
+        return true;
+    }
+
+    private void rememberValidators(String location, HttpResponse response) {
+        if(mNotPosted == null)
+            return;
+
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+
+        mNotPosted.putValidators(location,
+                etag == null ? null : etag.getValue(),
+                lastModified == null ? null : lastModified.getValue());
+    }
+
+    private Outcome attempt(int index, HttpGet request, boolean conditional) {
+        HttpResponse response;
+
+        try {
+            // All the mirrors share the one pooled client, so a mirror we hit
+            // recently might still have a connection open for us.
+            response = SharedHttpClient.get().execute(request);
+        } catch (IOException e) {
+            // Either this server's got problems or we aborted it.  fetch()
+            // knows if it aborted, so it's an error either way here.
+            return new Outcome(index, OUTCOME_ERROR, null);
+        }
+
+        HttpEntity entity = response.getEntity();
+
+        try {
+            int code = response.getStatusLine().getStatusCode();
+
+            if(code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Nothing's changed since the last 404, so it's still not
+                // posted.  If we didn't ask for that, though, the mirror's
+                // confused.
+                return new Outcome(index, conditional ? OUTCOME_NOT_POSTED : OUTCOME_ERROR, null);
+            } else if(code == HttpURLConnection.HTTP_NOT_FOUND) {
+                rememberValidators(mLocations[index], response);
+                return new Outcome(index, OUTCOME_NOT_POSTED, null);
+            } else if(code != HttpURLConnection.HTTP_OK || entity == null) {
+                return new Outcome(index, OUTCOME_ERROR, null);
+            }
+
+            // If it doesn't look like a number, it's bogus.  StockParser
+            // gives up on that early, so a mirror sending back a whole error
+            // page doesn't get the whole thing read in.
+            String result = StockParser.parse(entity.getContent());
+
+            if(result == null) {
+                // Don't bother reading out the rest of the garbage to save
+                // the connection, either.
+                request.abort();
+                return new Outcome(index, OUTCOME_ERROR, null);
+            }
+
+            // It's posted!  We won't be asking for it again.
+            if(mNotPosted != null)
+                mNotPosted.forgetValidators(mLocations[index]);
+
+            return new Outcome(index, OUTCOME_OKAY, result);
+        } catch (IOException e) {
+            return new Outcome(index, OUTCOME_ERROR, null);
+        } finally {
+            // Read out anything left so the connection can go back in the
+            // pool.
+            SharedHttpClient.consume(entity);
+        }
+    }
+}
@@ -9,7 +9,8 @@ package net.exclaimindustries.geohashdroid.util;
 
 import java.util.Date;
 import java.util.Calendar;
-import java.util.GregorianCalendar;
+
+import net.exclaimindustries.tools.EpochDay;
 
 import android.location.Location;
 import android.os.Parcel;
@@ -36,13 +37,18 @@ import com.google.android.maps.GeoPoint;
  * 
  */
 public class Info implements Parcelable {
-    /** The earliest date at which the 30W Rule is used. */
-    private static final Calendar LIMIT_30W = new GregorianCalendar(2008, Calendar.MAY, 26);
+    /**
+     * The last date on which the 30W Rule is NOT used.  Anything after this
+     * uses it.
+     */
+    private static final EpochDay LIMIT_30W = EpochDay.of(2008, 5, 26);
 
     private double mLatitude;
     private double mLongitude;
     private Graticule mGraticule;
     private Calendar mDate;
+    // mDate is for the UI.  This is what everything internal uses.
+    private EpochDay mDay;
     private boolean mRetroHash;
     private boolean mValid;
 
@@ -203,6 +209,17 @@ public class Info implements Parcelable {
     public Date getDate() {
         return mDate.getTime();
     }
+
+    /**
+     * Gets the date used to generate this set of information as an EpochDay.
+     * Use this instead of {@link #getCalendar()} for anything that isn't
+     * headed to the UI.
+     *
+     * @return the EpochDay
+     */
+    public EpochDay getEpochDay() {
+        return mDay;
+    }
     
     /**
      * Gets the distance, in meters, from the given Location and the final
@@ -230,19 +247,30 @@ public class Info implements Parcelable {
     
     /**
      * Returns a calendar representing the date from which the stock price was
-     * pulled.  That is, back a day for the 30W Rule and rewinding to Friday if
-     * it falls on a weekend.
+     * pulled.  That is, back a day for the 30W Rule and rewinding to the last
+     * trading day if it falls on a weekend or holiday.
      * 
      * @return a new adjusted Calendar
      */
     public Calendar getStockCalendar() {
         return makeAdjustedCalendar(mDate, mGraticule);
     }
+
+    /**
+     * Returns the date from which the stock price was pulled as an EpochDay.
+     * See {@link #getStockCalendar()}.
+     *
+     * @return the adjusted EpochDay
+     */
+    public EpochDay getStockDay() {
+        return makeAdjustedDay(mDay, mGraticule);
+    }
     
     /**
      * Returns a calendar representing the date from which the stock price was
      * pulled from a given date/graticule pair.  That is, back a day for the 30W
-     * Rule or globalhashes and rewinding to Friday if it falls on a weekend.
+     * Rule or globalhashes and rewinding to the last trading day if it falls on
+     * a weekend or holiday.
      * 
      * @param c date to adjust
      * @param g Graticule to use to determine if the 30W Rule is in effect (if
@@ -250,32 +278,47 @@ public class Info implements Parcelable {
      * @return a new adjusted Calendar
      */
     public static Calendar makeAdjustedCalendar(Calendar c, Graticule g) {
-        // This adjusts the calendar for both the 30W Rule and to clamp all
-        // weekend stocks to the preceding Friday.  This saves a few database
-        // entries, as the weekend will always be Friday's value.  Note that
-        // this doesn't account for holidays when the US stocks aren't trading.
-        
         // First, clone the calendar.  We don't want to muck about with the
-        // original for various reasons.
+        // original for various reasons.  Then just move it to whatever
+        // makeAdjustedDay says, keeping the time of day intact.
+        EpochDay adjusted = makeAdjustedDay(EpochDay.fromCalendar(c), g);
         Calendar cal = (Calendar)(c.clone());
-        
-        // Second, 30W Rule hackery.  If g is null, assume we're in a globalhash
+        cal.set(adjusted.getYear(), adjusted.getMonth() - 1, adjusted.getDayOfMonth());
+        return cal;
+    }
+
+    /**
+     * Returns the date from which the stock price was pulled from a given
+     * date/graticule pair.  That is, back a day for the 30W Rule or
+     * globalhashes and rewinding to the last trading day if it falls on a
+     * weekend or holiday (see {@link TradingCalendar}).  This is
+     * {@link #makeAdjustedCalendar(Calendar, Graticule)} without all the
+     * Calendar cloning.
+     *
+     * @param day date to adjust
+     * @param g Graticule to use to determine if the 30W Rule is in effect (if
+     *          null, assumes this is a globalhash which is always back a day)
+     * @return the adjusted EpochDay
+     */
+    public static EpochDay makeAdjustedDay(EpochDay day, Graticule g) {
+        // This adjusts the date for both the 30W Rule and to clamp all weekend
+        // and holiday stocks to the preceding trading day.  This saves a few
+        // database entries, as the weekend will always be Friday's value, and
+        // it saves asking the internet for a holiday's stock only to be told
+        // it isn't posted.
+        int offset = 0;
+
+        // First, 30W Rule hackery.  If g is null, assume we're in a globalhash
         // (that is, adjustment is needed).  If the date is May 26, 2008 or
         // earlier (and this isn't a globalhash), ignore it anyway (the 30W Rule
         // only applies to non-globalhashes AFTER it was created).
-        if(g == null || (cal.after(LIMIT_30W) && g.uses30WRule()))
-            cal.add(Calendar.DAY_OF_MONTH, -1);
-        
-        // Third, if this new date is a weekend, clamp it back to Friday.
-        if(cal.get(Calendar.DAY_OF_WEEK) == Calendar.SATURDAY)
-            // Saturday: Back one day
-            cal.add(Calendar.DAY_OF_MONTH, -1);
-        else if(cal.get(Calendar.DAY_OF_WEEK) == Calendar.SUNDAY)
-            // SUNDAY SUNDAY SUNDAY!!!!!!: Back two days
-            cal.add(Calendar.DAY_OF_MONTH, -2);
-        
+        if(g == null || (day.isAfter(LIMIT_30W) && g.uses30WRule()))
+            offset = -1;
+
+        // Second, if this new date is a weekend (SUNDAY SUNDAY SUNDAY!!!!!!)
+        // or holiday, clamp it back to the last day the market was open.
         // There!  Done!
-        return cal;
+        return TradingCalendar.onOrBefore(day.plusDays(offset));
     }
 
     private static Location locationFromGeoPoint(GeoPoint point) {
@@ -297,11 +340,23 @@ public class Info implements Parcelable {
      * @return true if 30W or global, false if not
      */
     public boolean uses30WRule() {
-        // If mGraticule is null, this is always 30W.
-        if(mGraticule == null) return true;
+        return uses30WRule(mDay, mGraticule);
+    }
+    
+    /**
+     * Determines if the given date and Graticule follow the 30W Rule.  Note
+     * that globalhashes always follow the 30W Rule.
+     * 
+     * @param day date in question
+     * @param g Graticule in question (null for a globalhash)
+     * @return true if 30W or global, false if not
+     */
+    public static boolean uses30WRule(EpochDay day, Graticule g) {
+        // If g is null, this is always 30W.
+        if(g == null) return true;
         
         // Otherwise, just forward it to the graticule itself.
-        return mDate.after(LIMIT_30W) && mGraticule.uses30WRule();
+        return day.isAfter(LIMIT_30W) && g.uses30WRule();
     }
     
     /**
@@ -383,6 +438,7 @@ public class Info implements Parcelable {
 
         // In order, this better be year, month, day-of-month.
         mDate.set(in.readInt(), in.readInt(), in.readInt());
+        mDay = EpochDay.fromCalendar(mDate);
 
         mRetroHash = (in.readInt() == 1);
     }
@@ -390,21 +446,14 @@ public class Info implements Parcelable {
     private void setDate(Calendar cal) {
         // First, actually set the date.
         mDate = cal;
+        mDay = EpochDay.fromCalendar(cal);
         
-        // Then, determine if this is before or after today's date.  Since a
-        // straight comparison also takes time into account, we need to force
-        // today's date to midnight.
-        Calendar today = Calendar.getInstance();
-        
-        today.set(Calendar.HOUR_OF_DAY, 0);
-        today.set(Calendar.MINUTE, 0);
-        
+        // Then, determine if this is before or after today's date.  Since
+        // EpochDays don't have times, this is a straight comparison.
+        // 
         // Yes, this means that if the hash is in the future, mRetroHash will
         // be false.  The only way that can happen is if this is a weekend hash
         // and we're checking on Friday or something.
-        if(cal.before(today))
-            mRetroHash = true;
-        else
-            mRetroHash = false;
+        mRetroHash = mDay.isBefore(EpochDay.today());
     }
 }
@@ -0,0 +1,242 @@
+/**
+ * MirrorHealth.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * <p>
+ * <code>MirrorHealth</code> keeps track of how well each stock mirror has been
+ * doing lately: how long it takes to answer and how often it fails.  Every
+ * fetch reports back here, and before each fetch, {@link #order(StockMirror[])}
+ * hands back the mirror list sorted so the healthiest ones go first.
+ * </p>
+ *
+ * <p>
+ * It also acts as a circuit breaker.  A mirror that fails
+ * {@value #FAILURE_THRESHOLD} times in a row gets benched for a while, so we
+ * don't waste a connection timeout on a dead server for every request all
+ * day.  Once the bench time is up, it gets one more chance (at the back of the
+ * line); if it blows that, it's benched again for twice as long, up to a
+ * limit.
+ * </p>
+ *
+ * <p>
+ * Note that a 404 isn't the mirror's fault.  It just means the stock isn't
+ * posted yet, so it counts as a perfectly healthy answer.  Everything's stored
+ * in its own SharedPreferences file so it survives the process getting
+ * killed.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class MirrorHealth {
+    private static final String DEBUG_TAG = "MirrorHealth";
+
+    private static final String PREFS_NAME = "MirrorHealth";
+
+    /** Consecutive failures before a mirror gets benched. */
+    private static final int FAILURE_THRESHOLD = 3;
+    /** How long a mirror gets benched the first time, in milliseconds. */
+    private static final long BASE_COOLDOWN = 60 * 1000L;
+    /** The longest a mirror will ever get benched, in milliseconds. */
+    private static final long MAX_COOLDOWN = 30 * 60 * 1000L;
+    /** Latency we assume for a mirror we've never heard from. */
+    private static final double DEFAULT_LATENCY = 1000.0;
+    /** Weight given to each new sample in the running averages. */
+    private static final double ALPHA = 0.2;
+
+    private static MirrorHealth mInstance;
+
+    private SharedPreferences mPrefs;
+    private Map<String, Stats> mStats = new HashMap<String, Stats>();
+
+    private static class Stats {
+        // Running averages.  Latency is in milliseconds, error rate is from
+        // 0 to 1.
+        double latency = DEFAULT_LATENCY;
+        double errorRate = 0.0;
+        int consecutiveFailures = 0;
+        // How many times in a row this has been benched without a success in
+        // between.  This is what makes the cooldown grow.
+        int trips = 0;
+        // When the bench time is up (ms since the epoch).  Zero if it's not
+        // benched.
+        long openUntil = 0;
+
+        String serialize() {
+            return latency + "," + errorRate + "," + consecutiveFailures + "," + trips + "," + openUntil;
+        }
+
+        static Stats deserialize(String s) {
+            Stats toReturn = new Stats();
+            if(s == null) return toReturn;
+
+            try {
+                String[] parts = s.split(",");
+                toReturn.latency = Double.parseDouble(parts[0]);
+                toReturn.errorRate = Double.parseDouble(parts[1]);
+                toReturn.consecutiveFailures = Integer.parseInt(parts[2]);
+                toReturn.trips = Integer.parseInt(parts[3]);
+                toReturn.openUntil = Long.parseLong(parts[4]);
+            } catch (RuntimeException re) {
+                // Garbage in the prefs?  Start over for this one.
+                return new Stats();
+            }
+
+            return toReturn;
+        }
+
+        double score() {
+            // Lower is better.  Errors hurt a lot more than slowness does.
+            return latency * (1.0 + 4.0 * errorRate);
+        }
+    }
+
+    private MirrorHealth(Context con) {
+        mPrefs = con.getApplicationContext().getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    /**
+     * Gets the MirrorHealth for this process.
+     *
+     * @param con Context used to get at the preferences, if needed
+     * @return the MirrorHealth
+     */
+    public static synchronized MirrorHealth getInstance(Context con) {
+        if(mInstance == null)
+            mInstance = new MirrorHealth(con);
+        return mInstance;
+    }
+
+    /**
+     * Sorts the given mirrors so the healthiest ones come first.  Benched
+     * mirrors are left out entirely, unless their bench time is up, in which
+     * case they go at the end.  If EVERYTHING is benched, the whole list comes
+     * back in its original order, since trying something beats trying
+     * nothing.
+     *
+     * @param mirrors mirrors in their default order of preference
+     * @return a new array of mirrors, sorted and possibly trimmed
+     */
+    public synchronized StockMirror[] order(StockMirror[] mirrors) {
+        long now = System.currentTimeMillis();
+        List<StockMirror> healthy = new ArrayList<StockMirror>();
+        List<StockMirror> probation = new ArrayList<StockMirror>();
+
+        for(StockMirror m : mirrors) {
+            Stats s = getStats(m.getName());
+
+            if(s.openUntil == 0)
+                healthy.add(m);
+            else if(s.openUntil <= now)
+                probation.add(m);
+        }
+
+        if(healthy.isEmpty() && probation.isEmpty()) {
+            Log.d(DEBUG_TAG, "Every mirror is benched!  Trying them all anyway.");
+            return mirrors.clone();
+        }
+
+        // This is a stable sort, so mirrors that score the same (say, ones
+        // we've never heard from) stay in their default order.
+        Collections.sort(healthy, new Comparator<StockMirror>() {
+            @Override
+            public int compare(StockMirror lhs, StockMirror rhs) {
+                return Double.compare(getStats(lhs.getName()).score(), getStats(rhs.getName()).score());
+            }
+        });
+
+        healthy.addAll(probation);
+        return healthy.toArray(new StockMirror[healthy.size()]);
+    }
+
+    /**
+     * Records a mirror giving back a good answer.  That includes a 404, since
+     * "not posted yet" is a perfectly legitimate answer.
+     *
+     * @param mirror the mirror's name (see {@link StockMirror#getName()})
+     * @param latency how long it took, in milliseconds
+     */
+    public synchronized void recordSuccess(String mirror, long latency) {
+        Stats s = getStats(mirror);
+
+        s.latency += ALPHA * (latency - s.latency);
+        s.errorRate += ALPHA * (0.0 - s.errorRate);
+        s.consecutiveFailures = 0;
+
+        if(s.openUntil != 0)
+            Log.d(DEBUG_TAG, mirror + " is back in business.");
+
+        s.trips = 0;
+        s.openUntil = 0;
+
+        save(mirror, s);
+    }
+
+    /**
+     * Records a mirror failing.  That's a connection problem, a non-404 error
+     * code, or garbage data.
+     *
+     * @param mirror the mirror's name (see {@link StockMirror#getName()})
+     * @param latency how long it took to fail, in milliseconds
+     */
+    public synchronized void recordFailure(String mirror, long latency) {
+        Stats s = getStats(mirror);
+        long now = System.currentTimeMillis();
+
+        s.latency += ALPHA * (latency - s.latency);
+        s.errorRate += ALPHA * (1.0 - s.errorRate);
+        s.consecutiveFailures++;
+
+        // If this was its one chance after getting benched, or it's just
+        // failed one too many times, bench it.
+        if((s.openUntil != 0 && s.openUntil <= now) || (s.openUntil == 0 && s.consecutiveFailures >= FAILURE_THRESHOLD)) {
+            long cooldown = Math.min(MAX_COOLDOWN, BASE_COOLDOWN << Math.min(s.trips, 16));
+            s.trips++;
+            s.openUntil = now + cooldown;
+            Log.d(DEBUG_TAG, mirror + " has been benched for " + (cooldown / 1000) + " seconds.");
+        }
+
+        save(mirror, s);
+    }
+
+    /**
+     * Forgets everything, putting every mirror back in good standing.
+     */
+    public synchronized void reset() {
+        mStats.clear();
+        mPrefs.edit().clear().apply();
+    }
+
+    private Stats getStats(String mirror) {
+        Stats s = mStats.get(mirror);
+
+        if(s == null) {
+            s = Stats.deserialize(mPrefs.getString(mirror, null));
+            mStats.put(mirror, s);
+        }
+
+        return s;
+    }
+
+    private void save(String mirror, Stats s) {
+        // apply() writes it out in the background, which is good, since this
+        // gets called after every single fetch.
+        mPrefs.edit().putString(mirror, s.serialize()).apply();
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * NotPostedCache.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.exclaimindustries.tools.EpochDay;
+
+/**
+ * <p>
+ * A <code>NotPostedCache</code> remembers which stock dates the mirrors said
+ * weren't posted yet, and when they said it.  Before the market opens,
+ * everything from the alarm to the user mashing the refresh button would
+ * otherwise go ask every mirror again, only to get the same 404 back.  Within
+ * the TTL, an answer of "not posted" is taken as still true without asking.
+ * Keep the TTL short, since the whole point is to pick up the stock soon after
+ * it DOES get posted.
+ * </p>
+ *
+ * <p>
+ * It also keeps any ETag and Last-Modified headers that came with those 404s,
+ * per URL.  Once the TTL runs out and we ask again, those get sent back, so a
+ * mirror that supports it can just answer 304 Not Modified.  Stocks that DID
+ * get posted go in the database and are never asked for again, so there's no
+ * need to keep validators for those.
+ * </p>
+ *
+ * <p>
+ * This is all in memory and bounded to the most recent
+ * {@value #MAX_ENTRIES} dates and URLs.  All methods are synchronized.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+class NotPostedCache {
+    /** The most dates (and URLs) to remember at once. */
+    static final int MAX_ENTRIES = 32;
+
+    /**
+     * The validators a mirror sent with a 404.  Either one can be null.
+     */
+    static class Validators {
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private long mTtl;
+
+    // When each stock epoch day was last seen as not posted.
+    private final Map<Integer, Long> mDays = new LinkedHashMap<Integer, Long>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final Map<String, Validators> mValidators = new LinkedHashMap<String, Validators>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Makes a new NotPostedCache.
+     *
+     * @param ttl how long a "not posted" answer stays good, in milliseconds
+     */
+    NotPostedCache(long ttl) {
+        mTtl = ttl;
+    }
+
+    /**
+     * Changes how long a "not posted" answer stays good.  Zero or less turns
+     * the negative cache off entirely (validators still get kept).
+     *
+     * @param ttl the new TTL, in milliseconds
+     */
+    synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    /**
+     * Checks if the given stock date was seen as not posted recently enough
+     * that there's no point asking again.
+     *
+     * @param sDay the stock date (already adjusted)
+     * @return true if it's still known to be not posted
+     */
+    synchronized boolean isNotPosted(EpochDay sDay) {
+        Long seen = mDays.get(sDay.getDay());
+
+        if(seen == null)
+            return false;
+
+        long age = System.currentTimeMillis() - seen;
+
+        // A negative age means the clock went backwards.  Don't trust it.
+        if(age < 0 || age >= mTtl) {
+            mDays.remove(sDay.getDay());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Records that the given stock date isn't posted as of right now.
+     *
+     * @param sDay the stock date (already adjusted)
+     */
+    synchronized void markNotPosted(EpochDay sDay) {
+        if(mTtl > 0)
+            mDays.put(sDay.getDay(), System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets anything about the given stock date, such as when it finally
+     * gets posted.
+     *
+     * @param sDay the stock date (already adjusted)
+     */
+    synchronized void forget(EpochDay sDay) {
+        mDays.remove(sDay.getDay());
+    }
+
+    /**
+     * Gets whatever validators came with the last 404 from the given URL.
+     *
+     * @param url the URL
+     * @return the Validators, or null if there weren't any
+     */
+    synchronized Validators getValidators(String url) {
+        return mValidators.get(url);
+    }
+
+    /**
+     * Stores the validators that came with a 404 from the given URL.  If both
+     * are null, this just forgets about the URL.
+     *
+     * @param url the URL
+     * @param etag the ETag header (can be null)
+     * @param lastModified the Last-Modified header (can be null)
+     */
+    synchronized void putValidators(String url, String etag, String lastModified) {
+        if(etag == null && lastModified == null)
+            mValidators.remove(url);
+        else
+            mValidators.put(url, new Validators(etag, lastModified));
+    }
+
+    /**
+     * Forgets the validators for the given URL.
+     *
+     * @param url the URL
+     */
+    synchronized void forgetValidators(String url) {
+        mValidators.remove(url);
+    }
+
+    /**
+     * Forgets everything.
+     */
+    synchronized void clear() {
+        mDays.clear();
+        mValidators.clear();
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * RangeStockMirror.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import net.exclaimindustries.tools.EpochDay;
+
+/**
+ * A <code>RangeStockMirror</code> is a {@link StockMirror} that can also hand
+ * back a whole range of stock values in one response.  {@link StockPrefetcher}
+ * tries these first when it needs a bunch of days, since one round trip beats
+ * dozens of them.  Since every server that does this will do it differently,
+ * the mirror also has to parse its own response.
+ *
+ * None of the mirrors we know about can do this yet, so nothing built-in
+ * implements it.  It's here so one can be dropped in with
+ * {@link HashBuilder#addStockMirror(StockMirror)} once there's a server for
+ * it; until then, StockPrefetcher just falls back to one day per request.
+ *
+ * @author Nicholas Killewald
+ */
+public interface RangeStockMirror extends StockMirror {
+    /**
+     * Gets the most days this mirror will answer for in one request.
+     *
+     * @return max days per request
+     */
+    int getMaxRangeDays();
+
+    /**
+     * Gets the URL to fetch every stock value from start to end, inclusive.
+     * The range will never be longer than {@link #getMaxRangeDays()}.
+     *
+     * @param start first stock date
+     * @param end last stock date
+     * @return a URL
+     */
+    String getRangeUrl(EpochDay start, EpochDay end);
+
+    /**
+     * Parses a response from the range URL.  Days the server didn't have a
+     * value for should just be left out.
+     *
+     * @param stream the response body
+     * @return a Map of stock dates to stock values
+     * @throws IOException the response couldn't be read or made no sense
+     */
+    Map<EpochDay, String> parseRange(InputStream stream) throws IOException;
+}
@@ -0,0 +1,286 @@
+/**
+ * StockFlight.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.exclaimindustries.tools.EpochDay;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>StockFlight</code> is the one network fetch in progress for a given
+ * stock date.  If the alarm, the widget, and the user all want the same stock
+ * at the same time, there's no reason to go ask the mirrors three times, so
+ * everybody who asks for a date that's already being fetched just gets in line
+ * for the same answer.  Different dates don't wait on each other at all.
+ * </p>
+ *
+ * <p>
+ * Everybody who wants a stock {@link #join(Context, EpochDay)}s, getting a
+ * {@link Ticket}, then waits on that.  Anyone can give up on their Ticket
+ * without bothering anyone else; the fetch itself only gets aborted when the
+ * last one waiting on it gives up.
+ * </p>
+ *
+ * <p>
+ * A date the mirrors just said isn't posted yet doesn't get asked about again
+ * until {@link NotPostedCache}'s TTL runs out; joining it just gets a Ticket
+ * that says so right away.  Other than that, this doesn't touch the database.
+ * Whoever's waiting should check there first and store the result
+ * themselves.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+final class StockFlight {
+    private static final String DEBUG_TAG = "StockFlight";
+
+    // Every fetch currently in flight, by stock epoch day.
+    private static final ConcurrentMap<Integer, StockFlight> mFlights = new ConcurrentHashMap<Integer, StockFlight>();
+
+    // The fetches themselves run here, not on any one caller's thread, so
+    // whoever started it can give up without leaving everyone else stuck.
+    private static final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, DEBUG_TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Integer mKey;
+    private final EpochDay mDay;
+    private final HedgedStockFetch mFetch;
+
+    // Everything below is guarded by this.
+    private int mWaiting = 0;
+    private boolean mDone = false;
+    private String mStock;
+    private IOException mError;
+
+    /**
+     * A <code>Ticket</code> is one caller's place in line for a StockFlight.
+     * It's good for one {@link #get()}, and {@link #leave()} can be called
+     * from another thread to give up on it.
+     */
+    static final class Ticket {
+        private final StockFlight mFlight;
+        private boolean mLeft = false;
+
+        private Ticket(StockFlight flight) {
+            mFlight = flight;
+        }
+
+        /**
+         * Waits for the stock.
+         *
+         * @return the stock value, or a blank string if this Ticket was left
+         * @throws FileNotFoundException the stock isn't posted yet
+         * @throws IOException anything else went wrong
+         */
+        String get() throws FileNotFoundException, IOException {
+            return get(0);
+        }
+
+        /**
+         * Waits for the stock, but only for so long.  If time runs out, this
+         * Ticket is left (see {@link #leave()}) and an
+         * InterruptedIOException is thrown.  Same goes if the waiting thread
+         * gets interrupted.
+         *
+         * @param timeout most milliseconds to wait (zero or less for forever)
+         * @return the stock value, or a blank string if this Ticket was left
+         * @throws FileNotFoundException the stock isn't posted yet
+         * @throws InterruptedIOException timed out or interrupted
+         * @throws IOException anything else went wrong
+         */
+        String get(long timeout) throws FileNotFoundException, IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            synchronized(mFlight) {
+                try {
+                    while(!mFlight.mDone && !mLeft) {
+                        if(timeout <= 0) {
+                            mFlight.wait();
+                        } else {
+                            long remaining = deadline - System.currentTimeMillis();
+
+                            if(remaining <= 0) {
+                                leave();
+                                throw new InterruptedIOException("Timed out waiting on the stock");
+                            }
+
+                            mFlight.wait(remaining);
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    // Interrupting is how a StockRequest gets cancelled, so
+                    // get out of line.
+                    leave();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting on the stock");
+                }
+
+                if(mLeft)
+                    return "";
+
+                if(mFlight.mError != null) {
+                    // Make a fresh one for each caller, so nobody's stack
+                    // trace gets mixed up with anybody else's.
+                    if(mFlight.mError instanceof FileNotFoundException)
+                        throw new FileNotFoundException(mFlight.mError.getMessage());
+                    else
+                        throw new IOException(mFlight.mError.getMessage());
+                }
+
+                return mFlight.mStock;
+            }
+        }
+
+        /**
+         * Gives up on this Ticket.  {@link #get()} will return a blank string
+         * shortly afterward.  If nobody else is waiting on the fetch, it gets
+         * aborted.
+         */
+        void leave() {
+            synchronized(mFlight) {
+                if(mLeft)
+                    return;
+
+                mLeft = true;
+                mFlight.mWaiting--;
+                mFlight.notifyAll();
+
+                if(mFlight.mWaiting <= 0 && !mFlight.mDone) {
+                    Log.d(DEBUG_TAG, "Nobody's waiting on " + mFlight.mKey + " anymore, aborting...");
+                    mFlight.mFetch.abort();
+                }
+            }
+        }
+    }
+
+    private StockFlight(EpochDay day, HedgedStockFetch fetch) {
+        mKey = day.getDay();
+        mDay = day;
+        mFetch = fetch;
+    }
+
+    /**
+     * Gets in line for the given stock date, starting a fetch if there isn't
+     * one going already.
+     *
+     * @param con Context used to get at MirrorHealth, if needed
+     * @param sDay the stock date (already adjusted)
+     * @return a Ticket to wait on
+     */
+    static Ticket join(Context con, EpochDay sDay) {
+        Integer key = sDay.getDay();
+
+        // If we just heard it's not posted, don't bother asking again yet.
+        // Hand back a Ticket for a flight that's already landed that way.
+        if(HashBuilder.getNotPostedCache().isNotPosted(sDay)) {
+            Log.d(DEBUG_TAG, sDay + " was just reported as not posted, not asking again yet.");
+            StockFlight landed = new StockFlight(sDay, null);
+            landed.mError = new FileNotFoundException();
+            landed.mDone = true;
+            landed.mWaiting = 1;
+            return new Ticket(landed);
+        }
+
+        while(true) {
+            StockFlight flight = mFlights.get(key);
+
+            if(flight == null) {
+                StockFlight fresh = new StockFlight(sDay, HashBuilder.makeStockFetch(con, sDay));
+                flight = mFlights.putIfAbsent(key, fresh);
+
+                if(flight == null) {
+                    // We're the first ones here.  Get in line before starting
+                    // it up, so it can't finish with nobody waiting.
+                    Ticket toReturn = fresh.addTicket();
+                    fresh.start();
+                    return toReturn;
+                }
+            }
+
+            // Somebody else already has it going.  Unless it JUST finished
+            // or got aborted, get in line.
+            Ticket toReturn = flight.addTicket();
+            if(toReturn != null) {
+                Log.d(DEBUG_TAG, "Joining the fetch already in flight for " + sDay);
+                return toReturn;
+            }
+
+            // If it did, it might not be out of the map yet (an aborted fetch
+            // can take a while to notice).  Kick it out ourselves rather than
+            // spinning until it leaves, then go around again and start a new
+            // one.  It only takes itself out if it's still the one in there,
+            // so this won't bother whatever replaces it.
+            mFlights.remove(key, flight);
+        }
+    }
+
+    private synchronized Ticket addTicket() {
+        // If it's done or everybody already gave up on it, it's no good to a
+        // newcomer.
+        if(mDone || (mWaiting <= 0 && mFetch.isAborted()))
+            return null;
+
+        mWaiting++;
+        return new Ticket(this);
+    }
+
+    private void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String stock = null;
+                IOException error = null;
+                NotPostedCache notPosted = HashBuilder.getNotPostedCache();
+
+                try {
+                    stock = mFetch.fetch();
+
+                    if(stock.length() != 0)
+                        notPosted.forget(mDay);
+                } catch (FileNotFoundException fnfe) {
+                    // Remember that, so nobody asks again right away.
+                    notPosted.markNotPosted(mDay);
+                    error = fnfe;
+                } catch (IOException ioe) {
+                    error = ioe;
+                } catch (RuntimeException re) {
+                    Log.w(DEBUG_TAG, "Stock fetch blew up: " + re.toString());
+                    error = new IOException(re.toString());
+                } finally {
+                    // Get out of the map first, so nobody new joins a flight
+                    // that's already landed.
+                    mFlights.remove(mKey, StockFlight.this);
+
+                    synchronized(StockFlight.this) {
+                        mStock = stock;
+                        mError = error;
+                        mDone = true;
+                        StockFlight.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * StockMirror.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import net.exclaimindustries.tools.EpochDay;
+
+/**
+ * A <code>StockMirror</code> is somewhere on the internet we can get the DJIA
+ * opening value for a given day.  All it needs to do is say where to go for a
+ * given date; the actual fetching and parsing is handled elsewhere, and the
+ * response is expected to be the stock value and nothing else (a 404 meaning
+ * it's not posted yet).  If a mirror can do a bunch of days at once, it should
+ * implement {@link RangeStockMirror}, too.
+ *
+ * @author Nicholas Killewald
+ */
+public interface StockMirror {
+    /**
+     * Gets a name for this mirror that won't change between runs.  This is
+     * used to keep track of how well it's been doing (see
+     * {@link MirrorHealth}), so two mirrors shouldn't share a name.
+     *
+     * @return this mirror's name
+     */
+    String getName();
+
+    /**
+     * Gets the URL to fetch the stock value for the given stock date.
+     *
+     * @param day the stock date (already adjusted for the 30W Rule and all
+     *            that)
+     * @return a URL
+     */
+    String getUrl(EpochDay day);
+}
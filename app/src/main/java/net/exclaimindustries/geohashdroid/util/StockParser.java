@@ -0,0 +1,151 @@
+/**
+ * StockParser.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * <code>StockParser</code> reads a stock value out of a mirror's response.  A
+ * stock value is a handful of ASCII digits with maybe a decimal point, so
+ * there's no reason to read more than a few dozen bytes, and no reason to
+ * read any further once something shows up that can't possibly be part of a
+ * number.  That matters when a mirror decides to hand back a huge HTML error
+ * page instead.
+ * </p>
+ *
+ * <p>
+ * Leading and trailing whitespace is ignored.  Anything else that isn't
+ * digits with at most one decimal point (and at least one digit) is garbage.
+ * The read buffer is reused, one per thread.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+final class StockParser {
+    /**
+     * The most bytes a stock response can be, whitespace and all.  Anything
+     * longer isn't a stock.
+     */
+    static final int MAX_LENGTH = 32;
+
+    // One extra byte so we can tell "exactly full" from "too long".
+    private static final ThreadLocal<byte[]> mBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_LENGTH + 1];
+        }
+    };
+
+    private StockParser() { }
+
+    /**
+     * Reads a stock value from the given stream.  This stops reading as soon
+     * as it knows the answer, so if this returns null, there might still be
+     * data left in the stream.
+     *
+     * @param stream InputStream to read from
+     * @return the stock value, or null if it's not a valid one
+     * @throws IOException something went wrong reading the stream
+     */
+    static String parse(InputStream stream) throws IOException {
+        byte[] buffer = mBuffers.get();
+        int length = 0;
+        int read;
+
+        while(length < buffer.length
+                && (read = stream.read(buffer, length, buffer.length - length)) != -1) {
+            // Check what just came in before reading any more.  An HTML page
+            // gets tossed on its very first byte.
+            for(int i = length; i < length + read; i++) {
+                if(!isDigit(buffer[i]) && buffer[i] != '.' && !isWhitespace(buffer[i]))
+                    return null;
+            }
+
+            length += read;
+        }
+
+        // If we filled the whole buffer, it's too long.
+        if(length > MAX_LENGTH)
+            return null;
+
+        return validate(buffer, length);
+    }
+
+    /**
+     * Checks if the given String is a valid stock value, same as
+     * {@link #parse(InputStream)} would.
+     *
+     * @param stock the String to check
+     * @return the stock value with any surrounding whitespace trimmed off, or
+     *         null if it's not a valid one
+     */
+    static String parse(String stock) {
+        if(stock == null || stock.length() > MAX_LENGTH)
+            return null;
+
+        byte[] buffer = mBuffers.get();
+        int length = stock.length();
+
+        for(int i = 0; i < length; i++) {
+            char c = stock.charAt(i);
+            // Anything outside ASCII can't be valid, and this keeps the cast
+            // below from turning it into something that is.
+            if(c > 0x7f)
+                return null;
+            buffer[i] = (byte)c;
+        }
+
+        return validate(buffer, length);
+    }
+
+    private static String validate(byte[] buffer, int length) {
+        int start = 0;
+        int end = length;
+
+        while(start < end && isWhitespace(buffer[start]))
+            start++;
+        while(end > start && isWhitespace(buffer[end - 1]))
+            end--;
+
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+
+        for(int i = start; i < end; i++) {
+            byte b = buffer[i];
+
+            if(isDigit(b)) {
+                sawDigit = true;
+            } else if(b == '.' && !sawPoint) {
+                sawPoint = true;
+            } else {
+                // Second decimal point, whitespace in the middle, whatever.
+                return null;
+            }
+        }
+
+        if(!sawDigit)
+            return null;
+
+        // It's all ASCII by now, so each byte is its own char.
+        char[] chars = new char[end - start];
+        for(int i = start; i < end; i++)
+            chars[i - start] = (char)buffer[i];
+
+        return new String(chars);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * StockPrefetcher.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.exclaimindustries.tools.EpochDay;
+import net.exclaimindustries.tools.SharedHttpClient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * <p>
+ * <code>StockPrefetcher</code> gets a whole bunch of stock values at once, for
+ * when a range of them is needed (catching up after a week offline, a
+ * backfill, that sort of thing).  Doing that one StockRunner at a time means
+ * one round trip after another; this does it all at once instead.
+ * </p>
+ *
+ * <p>
+ * First, any {@link RangeStockMirror}s get a crack at it, since one request
+ * for a month of stocks beats a month of requests (there aren't any of those
+ * by default, mind; see that interface).  Whatever's left gets
+ * fetched one day per request, a few at a time (see
+ * {@link #DEFAULT_PARALLELISM}), using the usual mirror list.  Everything that
+ * comes back gets written to the database in one batch.
+ * </p>
+ *
+ * <p>
+ * This is all blocking network I/O, so keep it off the main thread.
+ * AlarmService calls it from its worker thread to catch up on anything missed
+ * once the daily check goes through.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class StockPrefetcher {
+    private static final String DEBUG_TAG = "StockPrefetcher";
+
+    /**
+     * Default number of single-day fetches to have going at once.  The shared
+     * HTTP pool only allows a few connections per mirror anyway, so there's
+     * no point going much higher.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private StockPrefetcher() { }
+
+    /**
+     * Makes sure every stock from start to end (inclusive) is in the database,
+     * going to the internet for any that aren't.  Weekends and holidays are
+     * skipped, as there's never a stock for those.
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param start first stock date
+     * @param end last stock date
+     * @return the number of stocks newly stored
+     */
+    public static int prefetch(Context con, EpochDay start, EpochDay end) {
+        List<EpochDay> missing = new ArrayList<EpochDay>();
+
+        for(EpochDay day = start; !day.isAfter(end); day = day.plusDays(1)) {
+            if(TradingCalendar.isTradingDay(day) && HashBuilder.getStoredStock(con, day) == null)
+                missing.add(day);
+        }
+
+        if(missing.isEmpty())
+            return 0;
+
+        return HashBuilder.storeStocks(con, fetch(con, missing, DEFAULT_PARALLELISM));
+    }
+
+    /**
+     * Fetches the given stock dates from the internet.  This doesn't check or
+     * write to the database; that's up to you.  Any date that couldn't be had
+     * (not posted, server trouble, whatever) just won't be in the result.
+     *
+     * @param con Context used to get at MirrorHealth, if needed
+     * @param days stock dates to fetch
+     * @param parallelism how many single-day fetches to have going at once
+     * @return a Map of stock dates to stock values
+     */
+    static Map<EpochDay, String> fetch(Context con, Collection<EpochDay> days, int parallelism) {
+        Map<EpochDay, String> toReturn = new HashMap<EpochDay, String>();
+
+        if(days.isEmpty())
+            return toReturn;
+
+        // Range mirrors first.
+        fetchFromRangeMirrors(con, new HashSet<EpochDay>(days), toReturn);
+
+        final List<EpochDay> remaining = new ArrayList<EpochDay>();
+        for(EpochDay day : days) {
+            if(!toReturn.containsKey(day))
+                remaining.add(day);
+        }
+
+        if(remaining.isEmpty())
+            return toReturn;
+
+        // Then, everything else, one day at a time, but several days at once.
+        final Context context = con;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, remaining.size())));
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+
+        try {
+            for(final EpochDay day : remaining) {
+                futures.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        // If something else is already fetching this day,
+                        // just wait on that.
+                        return StockFlight.join(context, day).get();
+                    }
+                }));
+            }
+
+            for(int i = 0; i < remaining.size(); i++) {
+                try {
+                    String stock = futures.get(i).get();
+                    if(stock != null && stock.trim().length() != 0)
+                        toReturn.put(remaining.get(i), stock);
+                } catch (ExecutionException ee) {
+                    // Not posted or server trouble, it's all the same to us
+                    // here.
+                    Log.d(DEBUG_TAG, "Couldn't get a stock for " + remaining.get(i) + ": " + ee.getCause());
+                }
+            }
+        } catch (InterruptedException ie) {
+            // If we got interrupted, keep whatever we've got so far and bail.
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Log.d(DEBUG_TAG, "Prefetched " + toReturn.size() + " of " + days.size() + " stocks");
+        return toReturn;
+    }
+
+    private static void fetchFromRangeMirrors(Context con, Set<EpochDay> days, Map<EpochDay, String> results) {
+        MirrorHealth health = MirrorHealth.getInstance(con);
+
+        for(StockMirror m : health.order(HashBuilder.getStockMirrors())) {
+            if(!(m instanceof RangeStockMirror))
+                continue;
+
+            RangeStockMirror mirror = (RangeStockMirror)m;
+
+            // Work out the span of whatever we still need...
+            EpochDay first = null;
+            EpochDay last = null;
+            for(EpochDay day : days) {
+                if(results.containsKey(day))
+                    continue;
+                if(first == null || day.isBefore(first)) first = day;
+                if(last == null || day.isAfter(last)) last = day;
+            }
+
+            // ...and if that's nothing, we're done.
+            if(first == null)
+                return;
+
+            int maxDays = Math.max(1, mirror.getMaxRangeDays());
+
+            for(EpochDay chunkStart = first; !chunkStart.isAfter(last); chunkStart = chunkStart.plusDays(maxDays)) {
+                EpochDay chunkEnd = chunkStart.plusDays(maxDays - 1);
+                if(chunkEnd.isAfter(last)) chunkEnd = last;
+
+                if(!fetchRange(mirror, chunkStart, chunkEnd, days, results, health)) {
+                    // If this mirror's having trouble, don't bother with the
+                    // rest of its chunks.  The next one can have a go.
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean fetchRange(RangeStockMirror mirror, EpochDay start, EpochDay end,
+            Set<EpochDay> wanted, Map<EpochDay, String> results, MirrorHealth health) {
+        HttpGet request = new HttpGet(mirror.getRangeUrl(start, end));
+        HttpEntity entity = null;
+        long startTime = System.currentTimeMillis();
+
+        try {
+            HttpResponse response = SharedHttpClient.get().execute(request);
+            entity = response.getEntity();
+            int code = response.getStatusLine().getStatusCode();
+
+            if(code == HttpURLConnection.HTTP_NOT_FOUND) {
+                // Nothing posted in that range.  That's not the mirror's
+                // fault.
+                health.recordSuccess(mirror.getName(), System.currentTimeMillis() - startTime);
+                return true;
+            } else if(code != HttpURLConnection.HTTP_OK || entity == null) {
+                health.recordFailure(mirror.getName(), System.currentTimeMillis() - startTime);
+                return false;
+            }
+
+            Map<EpochDay, String> parsed = mirror.parseRange(entity.getContent());
+
+            for(Map.Entry<EpochDay, String> entry : parsed.entrySet()) {
+                // Only take what we asked for, and only if it looks like a
+                // stock value.
+                if(!wanted.contains(entry.getKey()))
+                    continue;
+
+                String stock = StockParser.parse(entry.getValue());
+                if(stock != null)
+                    results.put(entry.getKey(), stock);
+            }
+
+            health.recordSuccess(mirror.getName(), System.currentTimeMillis() - startTime);
+            return true;
+        } catch (IOException ioe) {
+            Log.d(DEBUG_TAG, "Range request to " + mirror.getName() + " failed: " + ioe.toString());
+            health.recordFailure(mirror.getName(), System.currentTimeMillis() - startTime);
+            return false;
+        } finally {
+            SharedHttpClient.consume(entity);
+        }
+    }
+}
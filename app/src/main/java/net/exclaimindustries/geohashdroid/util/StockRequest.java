@@ -0,0 +1,242 @@
+/**
+ * StockRequest.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.FileNotFoundException;
+import java.io.InterruptedIOException;
+import java.util.Calendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import net.exclaimindustries.tools.EpochDay;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>StockRequest</code> is a Future-flavored alternative to
+ * {@link HashBuilder.StockRunner}.  Get one from
+ * {@link HashBuilder#requestStock(Context, Calendar, Graticule, long, Executor, Callback)},
+ * which hands it to whatever Executor you like and returns right away.  Then
+ * either block on {@link #get()} or give it a {@link Callback} to hear back
+ * from.  No dedicated threads, no Handler, no polling.
+ * </p>
+ *
+ * <p>
+ * {@link #cancel(boolean)} (with true, so the worker gets interrupted) gets
+ * this out of line for the stock.  If nothing else is waiting on that same
+ * stock date, the HTTP requests themselves get aborted, too.  Same thing if
+ * the timeout runs out.
+ * </p>
+ *
+ * <p>
+ * If {@link #get()} throws an ExecutionException, the cause is a
+ * FileNotFoundException if the stock isn't posted yet, or some other
+ * IOException for anything else.  Or, just check {@link #getStatus()}, which
+ * uses the same status codes as StockRunner.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class StockRequest extends FutureTask<Info> {
+    private static final String DEBUG_TAG = "StockRequest";
+
+    // Used if no Executor is given.  Idle threads go away after a minute.
+    private static final ExecutorService mDefaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, DEBUG_TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Something to call back once a StockRequest is done, one way or another.
+     */
+    public interface Callback {
+        /**
+         * Called when the request is done, including if it got cancelled.
+         * This is called on whatever thread ran the request (or the thread
+         * that cancelled it), NOT the main thread, so post it over to a
+         * Handler if you need to touch the UI.
+         *
+         * @param request the request, which is done
+         */
+        void onStockResult(StockRequest request);
+    }
+
+    private final Calendar mCal;
+    private final Graticule mGrat;
+    private final Callback mCallback;
+
+    /**
+     * Makes a new StockRequest.  This doesn't start it; hand it to an Executor
+     * (or just {@link #run()} it) for that.  You probably want
+     * {@link HashBuilder#requestStock(Context, Calendar, Graticule, long, Executor, Callback)}
+     * instead.
+     *
+     * @param con Context for databasey stuff
+     * @param c Calendar object with the adventure date requested (this will
+     *          account for the 30W Rule, so don't put it in)
+     * @param g Graticule to use (null for a globalhash)
+     * @param timeout most milliseconds to wait on the network (zero or less
+     *                for no limit beyond the usual HTTP timeouts)
+     * @param callback what to call when done (can be null)
+     */
+    public StockRequest(Context con, Calendar c, Graticule g, long timeout, Callback callback) {
+        super(new Lookup(con, c, g, timeout));
+        mCal = c;
+        mGrat = g;
+        mCallback = callback;
+    }
+
+    private static class Lookup implements Callable<Info> {
+        private final Context mContext;
+        private final Calendar mCal;
+        private final Graticule mGrat;
+        private final long mTimeout;
+
+        Lookup(Context con, Calendar c, Graticule g, long timeout) {
+            mContext = con;
+            mCal = c;
+            mGrat = g;
+            mTimeout = timeout;
+        }
+
+        @Override
+        public Info call() throws Exception {
+            // This is the same dance StockRunner does, just with exceptions
+            // instead of status codes.  First, the cache, using the REAL
+            // date...
+            Info toReturn = HashBuilder.getStoredInfo(mContext, mCal, mGrat);
+            if(toReturn != null)
+                return toReturn;
+
+            // ...then the stock, using the adjusted date...
+            EpochDay sDay = Info.makeAdjustedDay(EpochDay.fromCalendar(mCal), mGrat);
+            String stock = HashBuilder.getStoredStock(mContext, sDay);
+
+            // ...and then the internet.  If we get interrupted (cancelled) or
+            // time out, the Ticket gets left and this throws.
+            if(stock == null) {
+                stock = StockFlight.join(mContext, sDay).get(mTimeout);
+
+                // A blank stock means the Ticket got left or the fetch got
+                // aborted out from under us.  Either way, that's nothing to
+                // store OR hash.
+                if(stock.trim().length() == 0)
+                    throw new InterruptedIOException("The stock fetch was abandoned");
+
+                HashBuilder.storeStock(mContext, sDay, stock);
+            }
+
+            toReturn = HashBuilder.createInfo(mCal, stock, mGrat);
+            HashBuilder.storeInfo(mContext, toReturn);
+            return toReturn;
+        }
+    }
+
+    /**
+     * Submits this to the given Executor.
+     *
+     * @param executor Executor to run on (null for a shared default pool)
+     * @return this, for chaining
+     */
+    StockRequest submit(Executor executor) {
+        (executor == null ? mDefaultExecutor : executor).execute(this);
+        return this;
+    }
+
+    @Override
+    protected void done() {
+        if(mCallback != null) {
+            try {
+                mCallback.onStockResult(this);
+            } catch (RuntimeException re) {
+                // Don't let a bad callback take the worker thread down with
+                // it.
+                Log.e(DEBUG_TAG, "Callback threw an exception!", re);
+            }
+        }
+    }
+
+    /**
+     * Gets the status of this request, using the same codes as
+     * {@link HashBuilder.StockRunner}.  That is, BUSY if it isn't done yet,
+     * ABORTED if it was cancelled, and ALL_OKAY, ERROR_NOT_POSTED, or
+     * ERROR_SERVER otherwise.  This never blocks.
+     *
+     * @return the current status
+     */
+    public int getStatus() {
+        if(!isDone())
+            return HashBuilder.StockRunner.BUSY;
+        if(isCancelled())
+            return HashBuilder.StockRunner.ABORTED;
+
+        try {
+            get();
+            return HashBuilder.StockRunner.ALL_OKAY;
+        } catch (ExecutionException ee) {
+            if(ee.getCause() instanceof FileNotFoundException)
+                return HashBuilder.StockRunner.ERROR_NOT_POSTED;
+            else
+                return HashBuilder.StockRunner.ERROR_SERVER;
+        } catch (InterruptedException ie) {
+            // It's done, so get() can't block, so this can't happen.  But, if
+            // it somehow does...
+            Thread.currentThread().interrupt();
+            return HashBuilder.StockRunner.ERROR_SERVER;
+        }
+    }
+
+    /**
+     * Gets the Info this request came up with.  If it isn't done, or didn't
+     * work, this is an invalid Info for the same date and Graticule (see
+     * {@link Info#isValid()}), same as what StockRunner would send to its
+     * Handler.  This never blocks.
+     *
+     * @return an Info object
+     */
+    public Info getInfo() {
+        if(getStatus() == HashBuilder.StockRunner.ALL_OKAY) {
+            try {
+                return get();
+            } catch (Exception e) {
+                // Can't happen; we just checked.
+            }
+        }
+
+        return HashBuilder.createInvalidInfo(mCal, mGrat);
+    }
+
+    /**
+     * Gets the Calendar this request is for.
+     *
+     * @return the REAL date (not adjusted)
+     */
+    public Calendar getCalendar() {
+        return mCal;
+    }
+
+    /**
+     * Gets the Graticule this request is for.
+     *
+     * @return the Graticule (null for a globalhash)
+     */
+    public Graticule getGraticule() {
+        return mGrat;
+    }
+}
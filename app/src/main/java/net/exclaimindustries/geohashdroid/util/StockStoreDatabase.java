@@ -8,16 +8,18 @@
 package net.exclaimindustries.geohashdroid.util;
 
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Map;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
-import net.exclaimindustries.tools.DateTools;
+import net.exclaimindustries.tools.EpochDay;
 
 /**
  * <p>
@@ -33,19 +35,35 @@ public class StockStoreDatabase {
     private final Context mContext;
     private DatabaseHelper mHelper;
     private SQLiteDatabase mDatabase;
+    private SQLiteStatement mInsertStockStatement;
+    private SQLiteStatement mInsertInfoStatement;
+    private SQLiteStatement mTouchStockStatement;
+    private SQLiteStatement mTouchInfoStatement;
+    private SQLiteStatement mPruneStocksStatement;
+    private SQLiteStatement mPruneHashesStatement;
+    private int mInsertsSinceCleanup;
+    
+    // The pruning policy.  Both come from preferences (and are kept up to
+    // date by the listener below, so we're not reparsing them on every
+    // cleanup).
+    private int mMaxRows = DEFAULT_MAX_ROWS;
+    private int mMaxAgeDays = DEFAULT_MAX_AGE_DAYS;
+    private SharedPreferences.OnSharedPreferenceChangeListener mPrefListener;
     
     private static final String DEBUG_TAG = "StockStoreDatabase";
     
     /** The name of the column for the row's ID. */
     public static final String KEY_STOCKS_ROWID = "_id";
-    /** The name of the date column. */
+    /** The name of the date column (as days since the epoch). */
     public static final String KEY_STOCKS_DATE = "date";
     /** The name of the stock value column. */
     public static final String KEY_STOCKS_STOCK = "stock";
+    /** The name of the last-accessed time column (in ms since the epoch). */
+    public static final String KEY_STOCKS_ACCESSED = "accessed";
     
     /** The name of the column for the row's IDs for hashes. */
     public static final String KEY_HASHES_ROWID = "_id";
-    /** The name of the date column for hashes. */
+    /** The name of the date column for hashes (as days since the epoch). */
     public static final String KEY_HASHES_DATE = "date";
     /** The name of the column flagging if the 30W rule was in effect here. */
     public static final String KEY_HASHES_30W = "uses30w";
@@ -53,19 +71,25 @@ public class StockStoreDatabase {
     public static final String KEY_HASHES_LATHASH = "lathash";
     /** The name of the longitude hashpart column. */
     public static final String KEY_HASHES_LONHASH = "lonhash";
+    /** The name of the last-accessed time column for hashes (in ms since the epoch). */
+    public static final String KEY_HASHES_ACCESSED = "accessed";
     
     private static final String DATABASE_NAME = "stockstore";
     
     private static final String TABLE_STOCKS = "stocks";
     private static final String TABLE_HASHES = "hashes";
     
-    private static final int DATABASE_VERSION = 3;
+    private static final String INDEX_STOCKS_DATE = "stocks_date";
+    private static final String INDEX_HASHES_DATE = "hashes_date_30w";
+    
+    private static final int DATABASE_VERSION = 5;
     
     private static final String CREATE_STOCKS_TABLE = 
         "CREATE TABLE " + TABLE_STOCKS
             + " (" + KEY_STOCKS_ROWID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + KEY_STOCKS_DATE + " INTEGER NOT NULL, "
-            + KEY_STOCKS_STOCK + " TEXT NOT NULL);";
+            + KEY_STOCKS_STOCK + " TEXT NOT NULL, "
+            + KEY_STOCKS_ACCESSED + " INTEGER NOT NULL DEFAULT 0);";
     
     private static final String CREATE_HASHES_TABLE = 
         "CREATE TABLE " + TABLE_HASHES
@@ -73,7 +97,82 @@ public class StockStoreDatabase {
             + KEY_HASHES_DATE + " INTEGER NOT NULL, "
             + KEY_HASHES_30W + " INTEGER NOT NULL, "
             + KEY_HASHES_LATHASH + " REAL NOT NULL, "
-            + KEY_HASHES_LONHASH + " REAL NOT NULL);";
+            + KEY_HASHES_LONHASH + " REAL NOT NULL, "
+            + KEY_HASHES_ACCESSED + " INTEGER NOT NULL DEFAULT 0);";
+    
+    private static final String CREATE_STOCKS_INDEX =
+        "CREATE UNIQUE INDEX " + INDEX_STOCKS_DATE + " ON " + TABLE_STOCKS
+            + " (" + KEY_STOCKS_DATE + ");";
+    
+    private static final String CREATE_HASHES_INDEX =
+        "CREATE UNIQUE INDEX " + INDEX_HASHES_DATE + " ON " + TABLE_HASHES
+            + " (" + KEY_HASHES_DATE + ", " + KEY_HASHES_30W + ");";
+    
+    // Version 3 stored dates as YYYYMMDD.  SQLite can turn that into days
+    // since the epoch by itself, thankfully.
+    private static final String V3_DATE_TO_EPOCH_DAY =
+        "CAST(julianday(substr(date, 1, 4) || '-' || substr(date, 5, 2) || '-' || substr(date, 7, 2)) - 2440587.5 AS INTEGER)";
+    
+    /**
+     * How many new rows can go in before {@link #cleanupIfNeeded()} actually
+     * prunes.  Pruning on every single insert is a waste when the cache is
+     * any real size.
+     */
+    private static final int CLEANUP_INTERVAL = 10;
+    
+    /** Cache size to use if the preference is missing or bogus. */
+    private static final int DEFAULT_MAX_ROWS = 15;
+    
+    /** Max age (in days) to use if the preference is missing or bogus. */
+    private static final int DEFAULT_MAX_AGE_DAYS = 365;
+    
+    /**
+     * How stale a row's access time has to be before a lookup bothers
+     * updating it, in milliseconds.  Pruning only needs a rough idea of
+     * what's been used lately, and updating on every single read would turn
+     * every cache hit into a write.
+     */
+    private static final long TOUCH_INTERVAL = 60 * 60 * 1000;
+    
+    private static final String INSERT_STOCK_SQL =
+        "INSERT OR IGNORE INTO " + TABLE_STOCKS
+            + " (" + KEY_STOCKS_DATE + ", " + KEY_STOCKS_STOCK + ", " + KEY_STOCKS_ACCESSED + ") VALUES (?, ?, ?)";
+    
+    private static final String INSERT_INFO_SQL =
+        "INSERT OR IGNORE INTO " + TABLE_HASHES
+            + " (" + KEY_HASHES_DATE + ", " + KEY_HASHES_30W + ", " + KEY_HASHES_LATHASH + ", " + KEY_HASHES_LONHASH + ", " + KEY_HASHES_ACCESSED + ")"
+            + " VALUES (?, ?, ?, ?, ?)";
+    
+    private static final String TOUCH_STOCK_SQL =
+        "UPDATE " + TABLE_STOCKS + " SET " + KEY_STOCKS_ACCESSED + " = ?"
+            + " WHERE " + KEY_STOCKS_DATE + " = ?";
+    
+    private static final String TOUCH_INFO_SQL =
+        "UPDATE " + TABLE_HASHES + " SET " + KEY_HASHES_ACCESSED + " = ?"
+            + " WHERE " + KEY_HASHES_DATE + " = ? AND " + KEY_HASHES_30W + " = ?";
+    
+    // Pruning is one statement per table.  Arguments are max age in days
+    // (zero for no limit), today's epoch day, max age again, today again, and
+    // the max number of rows.  Anything too far from today goes, and then
+    // anything past the max goes, least-recently-used first, with ties going
+    // to whatever's furthest from today.
+    private static final String PRUNE_STOCKS_SQL =
+        "DELETE FROM " + TABLE_STOCKS + " WHERE (? > 0 AND ABS(" + KEY_STOCKS_DATE + " - ?) > ?)"
+            + " OR " + KEY_STOCKS_ROWID + " NOT IN (SELECT " + KEY_STOCKS_ROWID + " FROM " + TABLE_STOCKS
+            + " ORDER BY " + KEY_STOCKS_ACCESSED + " DESC, ABS(" + KEY_STOCKS_DATE + " - ?) ASC LIMIT ?)";
+    
+    private static final String PRUNE_HASHES_SQL =
+        "DELETE FROM " + TABLE_HASHES + " WHERE (? > 0 AND ABS(" + KEY_HASHES_DATE + " - ?) > ?)"
+            + " OR " + KEY_HASHES_ROWID + " NOT IN (SELECT " + KEY_HASHES_ROWID + " FROM " + TABLE_HASHES
+            + " ORDER BY " + KEY_HASHES_ACCESSED + " DESC, ABS(" + KEY_HASHES_DATE + " - ?) ASC LIMIT ?)";
+    
+    private static final String GET_STOCK_SQL =
+        "SELECT " + KEY_STOCKS_STOCK + ", " + KEY_STOCKS_ACCESSED + " FROM " + TABLE_STOCKS
+            + " WHERE " + KEY_STOCKS_DATE + " = ?";
+    
+    private static final String GET_INFO_SQL =
+        "SELECT " + KEY_HASHES_LATHASH + ", " + KEY_HASHES_LONHASH + ", " + KEY_HASHES_ACCESSED + " FROM " + TABLE_HASHES
+            + " WHERE " + KEY_HASHES_DATE + " = ? AND " + KEY_HASHES_30W + " = ?";
     
     /**
      * Implements SQLiteOpenHelper.  Much like Hamburger Helper, this can take
@@ -91,6 +190,8 @@ public class StockStoreDatabase {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(CREATE_STOCKS_TABLE);
             db.execSQL(CREATE_HASHES_TABLE);
+            db.execSQL(CREATE_STOCKS_INDEX);
+            db.execSQL(CREATE_HASHES_INDEX);
         }
 
         @Override
@@ -98,8 +199,34 @@ public class StockStoreDatabase {
             if(oldVersion == 1 || oldVersion == 2) {
                 // Versions 1 and 2 only had one table, named "stocks".
                 db.execSQL("DROP TABLE IF EXISTS stocks");
-                db.execSQL(CREATE_STOCKS_TABLE);
-                db.execSQL(CREATE_HASHES_TABLE);
+                onCreate(db);
+            } else if(oldVersion == 3) {
+                // Version 3 had YYYYMMDD dates and no indexes, and might
+                // have duplicates in it, too.  Copy everything over to new
+                // tables, converting dates and dropping duplicates on the way.
+                // This all happens in onUpgrade's transaction, so it's all or
+                // nothing.
+                db.execSQL("ALTER TABLE " + TABLE_STOCKS + " RENAME TO old_" + TABLE_STOCKS);
+                db.execSQL("ALTER TABLE " + TABLE_HASHES + " RENAME TO old_" + TABLE_HASHES);
+                onCreate(db);
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE_STOCKS
+                        + " (" + KEY_STOCKS_DATE + ", " + KEY_STOCKS_STOCK + ")"
+                        + " SELECT " + V3_DATE_TO_EPOCH_DAY + ", " + KEY_STOCKS_STOCK
+                        + " FROM old_" + TABLE_STOCKS + " ORDER BY " + KEY_STOCKS_ROWID);
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE_HASHES
+                        + " (" + KEY_HASHES_DATE + ", " + KEY_HASHES_30W + ", " + KEY_HASHES_LATHASH + ", " + KEY_HASHES_LONHASH + ")"
+                        + " SELECT " + V3_DATE_TO_EPOCH_DAY + ", " + KEY_HASHES_30W + ", " + KEY_HASHES_LATHASH + ", " + KEY_HASHES_LONHASH
+                        + " FROM old_" + TABLE_HASHES + " ORDER BY " + KEY_HASHES_ROWID);
+                db.execSQL("DROP TABLE old_" + TABLE_STOCKS);
+                db.execSQL("DROP TABLE old_" + TABLE_HASHES);
+            } else if(oldVersion == 4) {
+                // Version 4 just didn't track access times.  Everything
+                // starts out as never accessed, which is fine; the first
+                // prune will sort it out by date.
+                db.execSQL("ALTER TABLE " + TABLE_STOCKS + " ADD COLUMN "
+                        + KEY_STOCKS_ACCESSED + " INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE " + TABLE_HASHES + " ADD COLUMN "
+                        + KEY_HASHES_ACCESSED + " INTEGER NOT NULL DEFAULT 0");
             }
         }
     }
@@ -134,7 +261,38 @@ public class StockStoreDatabase {
      */
     public StockStoreDatabase init() throws SQLException {
         mHelper = new DatabaseHelper(mContext);
+        // Write-ahead logging means batches don't lock out readers, and
+        // commits cost a lot less syncing on flash storage.
+        mHelper.setWriteAheadLoggingEnabled(true);
         mDatabase = mHelper.getWritableDatabase();
+        
+        // The lookups return more than one column (the value and when it was
+        // last accessed), which SQLiteStatement can't do, but rawQuery with
+        // bound arguments lands in SQLite's prepared statement cache, which
+        // is almost as good.  Everything else is precompiled.
+        mInsertStockStatement = mDatabase.compileStatement(INSERT_STOCK_SQL);
+        mInsertInfoStatement = mDatabase.compileStatement(INSERT_INFO_SQL);
+        mTouchStockStatement = mDatabase.compileStatement(TOUCH_STOCK_SQL);
+        mTouchInfoStatement = mDatabase.compileStatement(TOUCH_INFO_SQL);
+        mPruneStocksStatement = mDatabase.compileStatement(PRUNE_STOCKS_SQL);
+        mPruneHashesStatement = mDatabase.compileStatement(PRUNE_HASHES_SQL);
+        
+        // Read the cache size and max age now, and keep them up to date from
+        // here on out.  SharedPreferences only holds weak references to
+        // listeners, so we need to hang on to this one ourselves.
+        SharedPreferences prefs = mContext.getSharedPreferences(GHDConstants.PREFS_BASE, 0);
+        readMaxRows(prefs);
+        readMaxAgeDays(prefs);
+        mPrefListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                if(GHDConstants.PREF_STOCK_CACHE_SIZE.equals(key))
+                    readMaxRows(prefs);
+                else if(GHDConstants.PREF_STOCK_CACHE_MAX_AGE.equals(key))
+                    readMaxAgeDays(prefs);
+            }
+        };
+        prefs.registerOnSharedPreferenceChangeListener(mPrefListener);
         return this;
     }
     
@@ -142,6 +300,35 @@ public class StockStoreDatabase {
      * Finishes up.  In this case, closes the database.
      */
     public void finish() {
+        if(mInsertStockStatement != null) {
+            mInsertStockStatement.close();
+            mInsertStockStatement = null;
+        }
+        if(mInsertInfoStatement != null) {
+            mInsertInfoStatement.close();
+            mInsertInfoStatement = null;
+        }
+        if(mTouchStockStatement != null) {
+            mTouchStockStatement.close();
+            mTouchStockStatement = null;
+        }
+        if(mTouchInfoStatement != null) {
+            mTouchInfoStatement.close();
+            mTouchInfoStatement = null;
+        }
+        if(mPruneStocksStatement != null) {
+            mPruneStocksStatement.close();
+            mPruneStocksStatement = null;
+        }
+        if(mPruneHashesStatement != null) {
+            mPruneHashesStatement.close();
+            mPruneHashesStatement = null;
+        }
+        if(mPrefListener != null) {
+            mContext.getSharedPreferences(GHDConstants.PREFS_BASE, 0)
+                .unregisterOnSharedPreferenceChangeListener(mPrefListener);
+            mPrefListener = null;
+        }
         mHelper.close();
     }
     
@@ -156,30 +343,15 @@ public class StockStoreDatabase {
      */
     public synchronized long storeInfo(Info i) {
         synchronized(mDatabase) {
-            // Fortunately, there's a handy ContentValues object for this sort
-            // of thing.  I mean, we COULD do manual SQLite calls, but why
-            // bother?
-            
-            // But first!  First we need to know if this already exists.  If it
-            // does, return a -1.
-            // TODO: No, wrong.  I need a better mechanism for that.
-            if(getInfo(i.getCalendar(), i.getGraticule()) != null) {
-                Log.d(DEBUG_TAG, "Info already exists for that data, ignoring...");
-                return -1;
-            }
-            
-            ContentValues toGo = new ContentValues();
-            Calendar cal = i.getCalendar();
-            toGo.put(KEY_HASHES_DATE, DateTools.getDateString(cal));
-            toGo.put(KEY_HASHES_30W, i.uses30WRule());
-            toGo.put(KEY_HASHES_LATHASH, i.getLatitudeHash());
-            toGo.put(KEY_HASHES_LONHASH, i.getLongitudeHash());
+            // The unique index on date and 30W-ness means we can just throw
+            // it at the database and let it ignore duplicates for us.
+            EpochDay date = i.getEpochDay();
             
-            Log.d(DEBUG_TAG, "NOW STORING TO HASHES " + DateTools.getDateString(cal)
+            Log.d(DEBUG_TAG, "NOW STORING TO HASHES " + date
                     + (i.uses30WRule() ? " (30W)" : "") + " : "
                     + i.getLatitudeHash() + "," + i.getLongitudeHash());
             
-            return mDatabase.insert(TABLE_HASHES, null, toGo);
+            return insertInfo(i);
         }
     }
     
@@ -188,31 +360,114 @@ public class StockStoreDatabase {
      * value is already adjusted for weekends and 30W (that is, this is the raw
      * stock value for that date).
      * 
-     * @param cal the date of the stock
+     * @param day the date of the stock
      * @param stock the stock itself, as a string
      * @return the new row ID created, or -1 if it went wrong or already exists
      */
-    public synchronized long storeStock(Calendar cal, String stock) {
+    public synchronized long storeStock(EpochDay day, String stock) {
         synchronized(mDatabase) {
-            // First, check over the database to make sure it doesn't already
-            // exist.
-            if(getStock(cal) != null) {
-                Log.d(DEBUG_TAG, "Stock price already exists in database for " + DateTools.getDateString(cal) + ", ignoring...");
-                return -1;
-            }
+            // Same as storeInfo, the unique index on date handles duplicates.
+            Log.d(DEBUG_TAG, "NOW STORING TO STOCKS " + day
+                    + " : " + stock);
             
-            // Otherwise, store away!
-            ContentValues toGo = new ContentValues();
-            toGo.put(KEY_STOCKS_DATE, DateTools.getDateString(cal));
-            toGo.put(KEY_STOCKS_STOCK, stock);
+            return insertStock(day, stock);
+        }
+    }
+    
+    /**
+     * Stores a whole bunch of stock values at once.  See
+     * {@link #storeBatch(Map, Collection)}.
+     * 
+     * @param stocks stock values, keyed by already-adjusted date
+     * @return the number of rows actually inserted
+     */
+    public int storeStocks(Map<EpochDay, String> stocks) {
+        return storeBatch(stocks, null);
+    }
+    
+    /**
+     * Stores a whole bunch of Info bundles at once.  See
+     * {@link #storeBatch(Map, Collection)}.
+     * 
+     * @param infos Info bundles to store
+     * @return the number of rows actually inserted
+     */
+    public int storeInfos(Collection<Info> infos) {
+        return storeBatch(null, infos);
+    }
+    
+    /**
+     * Stores a whole bunch of stock values and Info bundles in a single
+     * transaction.  This is MUCH faster than calling {@link #storeStock(EpochDay, String)}
+     * and {@link #storeInfo(Info)} over and over, since each of those is its
+     * own transaction (and its own sync to storage).  Anything already in the
+     * database is ignored, same as with the single versions.  Invalid Infos
+     * are skipped.  If anything goes wrong, nothing gets stored.
+     * 
+     * @param stocks stock values, keyed by already-adjusted date (can be null)
+     * @param infos Info bundles to store (can be null)
+     * @return the number of rows actually inserted (stocks and hashes both)
+     */
+    public synchronized int storeBatch(Map<EpochDay, String> stocks, Collection<Info> infos) {
+        synchronized(mDatabase) {
+            int inserted = 0;
             
-            Log.d(DEBUG_TAG, "NOW STORING TO STOCKS " + DateTools.getDateString(cal)
-                    + " : " + stock);
+            // Non-exclusive, so readers can still get in thanks to WAL.
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                if(stocks != null) {
+                    for(Map.Entry<EpochDay, String> e : stocks.entrySet()) {
+                        if(insertStock(e.getKey(), e.getValue()) != -1)
+                            inserted++;
+                    }
+                }
+                
+                if(infos != null) {
+                    for(Info i : infos) {
+                        if(i.isValid() && insertInfo(i) != -1)
+                            inserted++;
+                    }
+                }
+                
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
             
-            return mDatabase.insert(TABLE_STOCKS, null, toGo);
+            Log.d(DEBUG_TAG, "Batch stored, " + inserted + " new rows");
+            return inserted;
         }
     }
     
+    private long insertStock(EpochDay day, String stock) {
+        mInsertStockStatement.bindLong(1, day.getDay());
+        mInsertStockStatement.bindString(2, stock);
+        mInsertStockStatement.bindLong(3, System.currentTimeMillis());
+        
+        return countInsert(mInsertStockStatement.executeInsert());
+    }
+    
+    private long insertInfo(Info i) {
+        mInsertInfoStatement.bindLong(1, i.getEpochDay().getDay());
+        mInsertInfoStatement.bindLong(2, i.uses30WRule() ? 1 : 0);
+        mInsertInfoStatement.bindDouble(3, i.getLatitudeHash());
+        mInsertInfoStatement.bindDouble(4, i.getLongitudeHash());
+        mInsertInfoStatement.bindLong(5, System.currentTimeMillis());
+        
+        return countInsert(mInsertInfoStatement.executeInsert());
+    }
+    
+    private long countInsert(long rowId) {
+        // executeInsert returns -1 if OR IGNORE kicked in, so only count the
+        // rows that actually went in.
+        if(rowId == -1)
+            Log.d(DEBUG_TAG, "That data already exists, ignored.");
+        else
+            mInsertsSinceCleanup++;
+        
+        return rowId;
+    }
+    
     /**
      * Retrieves enough data from the database to construct an Info bundle, if
      * such data exists.  If not, returns null instead.
@@ -231,10 +486,12 @@ public class StockStoreDatabase {
             Info toReturn = null;
             
             // Now, to the database!
-            Cursor cursor = mDatabase.query(TABLE_HASHES, new String[] {KEY_HASHES_LATHASH, KEY_HASHES_LONHASH},
-                    KEY_HASHES_DATE + " = " + DateTools.getDateString(c) + " AND " + KEY_HASHES_30W + " = "
-                    + ((g == null || g.uses30WRule()) ? "1" : "0"),
-                    null, null, null, null);
+            // This has to use the same idea of 30W-ness as storeInfo does,
+            // which is to say, Info's (which knows about the date).
+            EpochDay day = EpochDay.fromCalendar(c);
+            Cursor cursor = mDatabase.rawQuery(GET_INFO_SQL, new String[] {
+                    Integer.toString(day.getDay()),
+                    Info.uses30WRule(day, g) ? "1" : "0"});
             
             if(cursor == null) {
                 // If a problem happens, assume there's no stock to get.
@@ -252,6 +509,17 @@ public class StockStoreDatabase {
                 double lonHash = cursor.getDouble(1);
                 Log.d(DEBUG_TAG, "Info found -- Today's lucky numbers are " + latHash + "," + lonHash);
                 
+                // Mark it as used, so pruning knows to keep it around.  But
+                // only if it hasn't been marked lately; otherwise, this read
+                // would be a write, too.
+                long now = System.currentTimeMillis();
+                if(now - cursor.getLong(2) > TOUCH_INTERVAL) {
+                    mTouchInfoStatement.bindLong(1, now);
+                    mTouchInfoStatement.bindLong(2, day.getDay());
+                    mTouchInfoStatement.bindLong(3, Info.uses30WRule(day, g) ? 1 : 0);
+                    mTouchInfoStatement.execute();
+                }
+                
                 // Get the destination set...
                 if(g != null) {
                     double lat = (g.getLatitude() + latHash) * (g.isSouth() ? -1 : 1);
@@ -272,35 +540,41 @@ public class StockStoreDatabase {
      * Retrieves a stock value from the database for the given date.  This date
      * should already be adjusted for weekends and such.
      * 
-     * @param cal already-adjusted date for which to get a stock
+     * @param day already-adjusted date for which to get a stock
      * @return the String representation of the stock, or null if none is stored 
      */
-    public String getStock(Calendar cal) {
+    public String getStock(EpochDay day) {
         synchronized(mDatabase) {
             Log.d(DEBUG_TAG, "Querying the stock database...");
             
             String toReturn = null;
             
             // Go!
-            Cursor cursor = mDatabase.query(TABLE_STOCKS, new String[] {KEY_STOCKS_STOCK},
-                    KEY_STOCKS_DATE + " = " + DateTools.getDateString(cal),
-                    null, null, null, null);
+            Cursor cursor = mDatabase.rawQuery(GET_STOCK_SQL, new String[] {
+                    Integer.toString(day.getDay())});
             
-            // And now the check...
             if(cursor == null) {
                 // If a problem happens, assume there's no stock to get.
                 Log.w(DEBUG_TAG, "HEY!  The cursor returned from the query was null!");
                 return null;
-            } else if(cursor.getCount() == 0) {
+            }
+            
+            if(!cursor.moveToFirst()) {
                 // If nothing resulted from this, the stock doesn't exist in the
                 // cache.
                 Log.d(DEBUG_TAG, "Stock doesn't exist in database");
             } else {
-                // Otherwise, grab the first one we come across.
-                if(!cursor.moveToFirst()) return null;
-                
                 toReturn = cursor.getString(0);
                 Log.d(DEBUG_TAG, "Stock found -- Today's lucky number is " + toReturn);
+                
+                // Mark it as used, so pruning knows to keep it around (but
+                // only now and then, same as with hashes).
+                long now = System.currentTimeMillis();
+                if(now - cursor.getLong(1) > TOUCH_INTERVAL) {
+                    mTouchStockStatement.bindLong(1, now);
+                    mTouchStockStatement.bindLong(2, day.getDay());
+                    mTouchStockStatement.execute();
+                }
             }
             
             cursor.close();
@@ -308,60 +582,78 @@ public class StockStoreDatabase {
         }
     }
     
+    private void readMaxRows(SharedPreferences prefs) {
+        try {
+            // Presumably, initPrefs was already run from the GeohashDroid
+            // class, but just in case it's missing or garbage, fall back to
+            // the default instead of spazzing out.
+            mMaxRows = Math.max(1, Integer.parseInt(prefs.getString(GHDConstants.PREF_STOCK_CACHE_SIZE,
+                    Integer.toString(DEFAULT_MAX_ROWS))));
+        } catch (NumberFormatException nfe) {
+            mMaxRows = DEFAULT_MAX_ROWS;
+        }
+    }
+    
+    private void readMaxAgeDays(SharedPreferences prefs) {
+        // Same deal as readMaxRows.  Zero means no limit.
+        try {
+            mMaxAgeDays = Math.max(0, Integer.parseInt(prefs.getString(GHDConstants.PREF_STOCK_CACHE_MAX_AGE,
+                    Integer.toString(DEFAULT_MAX_AGE_DAYS))));
+        } catch (NumberFormatException nfe) {
+            mMaxAgeDays = DEFAULT_MAX_AGE_DAYS;
+        }
+    }
+    
+    /**
+     * Performs cache cleanup, but only if enough new rows have gone in since
+     * the last time to make it worthwhile.  Call this after storing things.
+     * "Enough" is either every {@value #CLEANUP_INTERVAL} rows or a quarter of
+     * the max cache size, whichever is smaller, so small caches don't balloon
+     * too far past their limit between prunes.
+     */
+    public synchronized void cleanupIfNeeded() {
+        synchronized(mDatabase) {
+            int threshold = Math.max(1, Math.min(CLEANUP_INTERVAL, mMaxRows / 4));
+            if(mInsertsSinceCleanup >= threshold)
+                cleanup();
+        }
+    }
+    
     /**
      * Performs cache cleanup.  This involves pruning the cache down to however
-     * many entries should be the max.
+     * many entries should be the max, tossing out the least-recently-used
+     * rows first, as well as anything further from today than the max age
+     * (if one's set).
      */
     public synchronized void cleanup() {
         synchronized(mDatabase) {
-        	SharedPreferences prefs = mContext.getSharedPreferences(GHDConstants.PREFS_BASE, 0);
-        	
-        	Log.d(DEBUG_TAG, "Pruning database...");
-        	try {
-        		// Presumably, initPrefs was already run from the GeohashDroid
-        		// class.  Thus, if the pref doesn't exist at this point or
-        	    // isn't parseable into an int, we can quite justifiably spaz
-        	    // out.
-        		int max = Integer.parseInt(prefs.getString(GHDConstants.PREF_STOCK_CACHE_SIZE, "15"));
-        		
-        		// Step one: Get the highest row ID.  I could probably ram this
-        		// all into one big monolithic SQL statement, but that would get
-        		// more than a bit unreadable.  Also note very carefully, this
-        		// entire method depends on there being no holes in the rowids.
-        		// "SELECT _rowid FROM stocks ORDER BY _rowid DESC LIMIT 1;"
-        		Cursor cursor = mDatabase.query(TABLE_STOCKS, new String[] {KEY_STOCKS_ROWID},
-        		        null, null, null, null, KEY_STOCKS_ROWID + " DESC", "1");
-        		
-        		cursor.moveToFirst();
-        		int highest = cursor.getInt(0);
-        		cursor.close();
-        		
-        		// Step two: Delete anything in the database older than the
-                // highest minus the max.
-        		// "DELETE FROM stocks WHERE _rowid < (highest - max);"
-        		int deleted = mDatabase.delete(TABLE_STOCKS, KEY_STOCKS_ROWID + " <= " + (highest - max), null);
-        		
-        		Log.d(DEBUG_TAG, "Stock rows deleted: " + deleted);
-        		
-        		// Now, do all that again, but for hashes.
-        		
-        		cursor = mDatabase.query(TABLE_HASHES, new String[] {KEY_HASHES_ROWID},
-        		        null, null, null, null, KEY_HASHES_ROWID + " DESC", "1");
-        		
-        		cursor.moveToFirst();
-        		highest = cursor.getInt(0);
-        		cursor.close();
-        		
-        		deleted = mDatabase.delete(TABLE_HASHES, KEY_HASHES_ROWID + " <= " + (highest - max), null);
-        		
-        		Log.d(DEBUG_TAG, "Info rows deleted: " + deleted);
-        	} catch (Exception e) {
-        		// If something went wrong, let it go.
-        		Log.w(DEBUG_TAG, "HEY!  Couldn't prune the stock cache database: " + e.toString());
-        	}
+            mInsertsSinceCleanup = 0;
+            
+            Log.d(DEBUG_TAG, "Pruning database...");
+            try {
+                int today = EpochDay.today().getDay();
+                
+                int deleted = prune(mPruneStocksStatement, today);
+                Log.d(DEBUG_TAG, "Stock rows deleted: " + deleted);
+                
+                deleted = prune(mPruneHashesStatement, today);
+                Log.d(DEBUG_TAG, "Info rows deleted: " + deleted);
+            } catch (Exception e) {
+                // If something went wrong, let it go.
+                Log.w(DEBUG_TAG, "HEY!  Couldn't prune the stock cache database: " + e.toString());
+            }
         }
     }
     
+    private int prune(SQLiteStatement statement, int today) {
+        statement.bindLong(1, mMaxAgeDays);
+        statement.bindLong(2, today);
+        statement.bindLong(3, mMaxAgeDays);
+        statement.bindLong(4, today);
+        statement.bindLong(5, mMaxRows);
+        return statement.executeUpdateDelete();
+    }
+    
     /**
      * Erases everything from the stock cache database.  This is really only to
      * be used if something's gone horribly wrong.
@@ -0,0 +1,52 @@
+/**
+ * TemplateStockMirror.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import net.exclaimindustries.tools.EpochDay;
+
+/**
+ * A <code>TemplateStockMirror</code> is the usual sort of {@link StockMirror}:
+ * one day per request, with the date stuffed into a URL template.  In the
+ * template, %Y is the four-digit year, %m is the zero-padded month, and %d is
+ * the zero-padded date.  The template itself doubles as the mirror's name.
+ *
+ * @author Nicholas Killewald
+ */
+public class TemplateStockMirror implements StockMirror {
+    private final String mTemplate;
+
+    /**
+     * Makes a new TemplateStockMirror.
+     *
+     * @param template URL template (see the class description)
+     */
+    public TemplateStockMirror(String template) {
+        mTemplate = template;
+    }
+
+    @Override
+    public String getName() {
+        return mTemplate;
+    }
+
+    @Override
+    public String getUrl(EpochDay day) {
+        // EpochDay's hyphenated string is already zero-padded, so just slice
+        // it up.
+        String date = day.toHyphenatedString();
+
+        return mTemplate.replace("%Y", date.substring(0, 4))
+                .replace("%m", date.substring(5, 7))
+                .replace("%d", date.substring(8, 10));
+    }
+
+    @Override
+    public String toString() {
+        return mTemplate;
+    }
+}
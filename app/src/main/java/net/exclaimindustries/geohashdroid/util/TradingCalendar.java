@@ -0,0 +1,218 @@
+/**
+ * TradingCalendar.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+
+import net.exclaimindustries.tools.DateTools;
+import net.exclaimindustries.tools.EpochDay;
+
+/**
+ * <p>
+ * <code>TradingCalendar</code> knows which days the NYSE is actually open.
+ * When it isn't (weekends AND holidays), there's no new opening value, so the
+ * stock for that day is just the most recent one before it.  Knowing that
+ * ahead of time means a holiday maps straight to the previous trading day's
+ * stock (which we've probably got already) instead of going to the internet
+ * and getting a "not posted" for our trouble.
+ * </p>
+ *
+ * <p>
+ * Each year gets worked out once, the first time it's needed, into a bitset of
+ * trading days (one bit per day of the year, six longs a year).  After that,
+ * a lookup is just an array index and a shift.  The holidays are the NYSE's
+ * usual ones: New Year's, MLK Day, Washington's Birthday, Good Friday,
+ * Memorial Day, Juneteenth (from 2022), Independence Day, Labor Day,
+ * Thanksgiving, and Christmas, moved to the nearest weekday when they land on
+ * a weekend, same as the NYSE does.  Then there's a short list of one-off
+ * closures.
+ * </p>
+ *
+ * <p>
+ * Holidays are only worked out from {@value #FIRST_HOLIDAY_YEAR} (when the
+ * current set of holidays settled down) through {@value #LAST_HOLIDAY_YEAR}.
+ * Outside of that, only weekends count as closed, which is how it always
+ * worked before.  Getting a holiday wrong in THAT direction just costs a
+ * trip to the internet; the mirrors answer with the previous opening anyway.
+ * The other direction is worse (a day marked closed that was really open
+ * would use the wrong opening), so if the NYSE ever closes for something new,
+ * it needs to go in the list of one-off closures.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class TradingCalendar {
+    /** The first year holidays are accounted for. */
+    public static final int FIRST_HOLIDAY_YEAR = 1998;
+    /** The last year holidays are accounted for. */
+    public static final int LAST_HOLIDAY_YEAR = 2099;
+
+    // 366 days fits in six longs.
+    private static final int WORDS_PER_YEAR = 6;
+
+    // One-off closures that don't follow any rule, as year, month, day.
+    private static final int[][] SPECIAL_CLOSURES = {
+        {2001, 9, 11}, {2001, 9, 12}, {2001, 9, 13}, {2001, 9, 14}, // 9/11
+        {2004, 6, 11},  // Reagan's funeral
+        {2007, 1, 2},   // Ford's funeral
+        {2012, 10, 29}, {2012, 10, 30}, // Hurricane Sandy
+        {2018, 12, 5},  // G.H.W. Bush's funeral
+        {2025, 1, 9},   // Carter's funeral
+    };
+
+    // Bitsets of trading days, by year (minus FIRST_HOLIDAY_YEAR).  A null
+    // entry means that year hasn't been worked out yet.
+    private static final long[][] mYears = new long[LAST_HOLIDAY_YEAR - FIRST_HOLIDAY_YEAR + 1][];
+
+    private TradingCalendar() { }
+
+    /**
+     * Determines if the NYSE is open on the given date.
+     *
+     * @param day the date
+     * @return true if it's a trading day, false if it's a weekend or holiday
+     */
+    public static boolean isTradingDay(EpochDay day) {
+        int year = day.getYear();
+
+        if(year < FIRST_HOLIDAY_YEAR || year > LAST_HOLIDAY_YEAR) {
+            int dow = day.getDayOfWeek();
+            return dow != EpochDay.SATURDAY && dow != EpochDay.SUNDAY;
+        }
+
+        long[] bits = getYear(year);
+        int index = day.getDay() - DateTools.getEpochDay(year, 1, 1);
+
+        return (bits[index >> 6] & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     * Gets the most recent trading day on or before the given date.  That is,
+     * the date whose opening value the given date would use.
+     *
+     * @param day the date
+     * @return the given date if it's a trading day, otherwise the last one
+     *         before it
+     */
+    public static EpochDay onOrBefore(EpochDay day) {
+        // The longest run of closed days we know of is 9/11 plus a weekend,
+        // but let's not loop forever if something goes terribly wrong.
+        for(int i = 0; i < 14; i++) {
+            if(isTradingDay(day))
+                return day;
+            day = day.plusDays(-1);
+        }
+
+        return day;
+    }
+
+    private static synchronized long[] getYear(int year) {
+        long[] bits = mYears[year - FIRST_HOLIDAY_YEAR];
+
+        if(bits == null) {
+            bits = buildYear(year);
+            mYears[year - FIRST_HOLIDAY_YEAR] = bits;
+        }
+
+        return bits;
+    }
+
+    private static long[] buildYear(int year) {
+        long[] bits = new long[WORDS_PER_YEAR];
+        int jan1 = DateTools.getEpochDay(year, 1, 1);
+        int days = DateTools.getEpochDay(year + 1, 1, 1) - jan1;
+
+        // Start with every weekday open...
+        for(int i = 0; i < days; i++) {
+            int dow = EpochDay.of(jan1 + i).getDayOfWeek();
+            if(dow != EpochDay.SATURDAY && dow != EpochDay.SUNDAY)
+                bits[i >> 6] |= 1L << (i & 63);
+        }
+
+        // ...then close the holidays.  New Year's is special: if it's on a
+        // Saturday, the NYSE doesn't close the Friday before, as that'd be in
+        // the previous year.
+        int newYears = DateTools.getEpochDay(year, 1, 1);
+        if(EpochDay.of(newYears).getDayOfWeek() == EpochDay.SUNDAY)
+            newYears++;
+        close(bits, jan1, newYears);
+
+        close(bits, jan1, nthWeekday(year, 1, Calendar.MONDAY, 3));     // MLK Day
+        close(bits, jan1, nthWeekday(year, 2, Calendar.MONDAY, 3));     // Washington's Birthday
+        close(bits, jan1, easter(year) - 2);                            // Good Friday
+        close(bits, jan1, lastWeekday(year, 5, Calendar.MONDAY));       // Memorial Day
+        if(year >= 2022)
+            close(bits, jan1, observed(year, 6, 19));                   // Juneteenth
+        close(bits, jan1, observed(year, 7, 4));                        // Independence Day
+        close(bits, jan1, nthWeekday(year, 9, Calendar.MONDAY, 1));     // Labor Day
+        close(bits, jan1, nthWeekday(year, 11, Calendar.THURSDAY, 4));  // Thanksgiving
+        close(bits, jan1, observed(year, 12, 25));                      // Christmas
+
+        for(int[] closure : SPECIAL_CLOSURES) {
+            if(closure[0] == year)
+                close(bits, jan1, DateTools.getEpochDay(closure[0], closure[1], closure[2]));
+        }
+
+        return bits;
+    }
+
+    private static void close(long[] bits, int jan1, int day) {
+        int index = day - jan1;
+
+        // An observed holiday can land outside the year (in theory, anyway).
+        if(index >= 0 && index < WORDS_PER_YEAR * 64)
+            bits[index >> 6] &= ~(1L << (index & 63));
+    }
+
+    private static int observed(int year, int month, int dayOfMonth) {
+        // Saturday holidays are observed Friday, Sunday holidays Monday.
+        int day = DateTools.getEpochDay(year, month, dayOfMonth);
+        int dow = EpochDay.of(day).getDayOfWeek();
+
+        if(dow == EpochDay.SATURDAY)
+            return day - 1;
+        else if(dow == EpochDay.SUNDAY)
+            return day + 1;
+        else
+            return day;
+    }
+
+    private static int nthWeekday(int year, int month, int dayOfWeek, int n) {
+        int first = DateTools.getEpochDay(year, month, 1);
+        int offset = (dayOfWeek - EpochDay.of(first).getDayOfWeek() + 7) % 7;
+        return first + offset + (n - 1) * 7;
+    }
+
+    private static int lastWeekday(int year, int month, int dayOfWeek) {
+        // Back up from the first of next month.
+        int last = (month == 12 ? DateTools.getEpochDay(year + 1, 1, 1) : DateTools.getEpochDay(year, month + 1, 1)) - 1;
+        int offset = (EpochDay.of(last).getDayOfWeek() - dayOfWeek + 7) % 7;
+        return last - offset;
+    }
+
+    private static int easter(int year) {
+        // The anonymous Gregorian algorithm (Meeus/Jones/Butcher).  Don't ask
+        // me how it works; it just does.
+        int a = year % 19;
+        int b = year / 100;
+        int c = year % 100;
+        int d = b / 4;
+        int e = b % 4;
+        int f = (b + 8) / 25;
+        int g = (b - f + 1) / 3;
+        int h = (19 * a + b - d - g + 15) % 30;
+        int i = c / 4;
+        int k = c % 4;
+        int l = (32 + 2 * e + 2 * i - h - k) % 7;
+        int m = (a + 11 * h + 22 * l) / 451;
+        int month = (h + l - 7 * m + 114) / 31;
+        int dayOfMonth = ((h + l - 7 * m + 114) % 31) + 1;
+
+        return DateTools.getEpochDay(year, month, dayOfMonth);
+    }
+}
@@ -7,6 +7,8 @@
  */
 package net.exclaimindustries.geohashdroid.wiki;
 
+import net.exclaimindustries.geohashdroid.R;
+
 /**
  * A <code>WikiException</code> is thrown when some problem happens with the
  * wiki.  This can be anything from bad XML to an error in logging in to
@@ -33,4 +35,23 @@ public class WikiException extends Exception {
     public int getErrorTextId() {
         return mTextId;
     }
+    
+    /**
+     * Determines if this is the sort of problem that might go away if we just
+     * wait a bit and try again.  Rate limits, login throttling, read-only
+     * mode, and edit conflicts all fall under this, as do bad XML and unknown
+     * errors, since those usually mean the wiki (or something between us and
+     * it) was having a bad moment.  Anything else (bad passwords, protected
+     * pages, spam filters, etc) will fail the same way every time.
+     * 
+     * @return true if it's worth trying again later, false if not
+     */
+    public boolean isTransient() {
+        return mTextId == R.string.wiki_error_rate_limit
+                || mTextId == R.string.wiki_error_throttled
+                || mTextId == R.string.wiki_error_read_only
+                || mTextId == R.string.wiki_error_conflict
+                || mTextId == R.string.wiki_error_xml
+                || mTextId == R.string.wiki_error_unknown;
+    }
 }
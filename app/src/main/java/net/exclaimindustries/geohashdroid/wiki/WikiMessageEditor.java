@@ -20,9 +20,9 @@ import net.exclaimindustries.geohashdroid.UnitConverter;
 import net.exclaimindustries.geohashdroid.util.GHDConstants;
 import net.exclaimindustries.geohashdroid.util.Info;
 import net.exclaimindustries.tools.DateTools;
+import net.exclaimindustries.tools.SharedHttpClient;
 
 import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.app.ProgressDialog;
 import android.content.Context;
@@ -167,7 +167,7 @@ public class WikiMessageEditor extends WikiBaseActivity {
             boolean phoneTime = prefs.getBoolean(GHDConstants.PREF_WIKI_PHONE_TIME, false);
 
             try {
-                HttpClient httpclient = new DefaultHttpClient();
+                HttpClient httpclient = SharedHttpClient.newSession();
 
                 String wpName = prefs
                         .getString(GHDConstants.PREF_WIKI_USER, "");
@@ -20,9 +20,9 @@ import net.exclaimindustries.geohashdroid.UnitConverter;
 import net.exclaimindustries.geohashdroid.util.GHDConstants;
 import net.exclaimindustries.geohashdroid.util.Info;
 import net.exclaimindustries.tools.BitmapTools;
+import net.exclaimindustries.tools.SharedHttpClient;
 
 import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.app.ProgressDialog;
 import android.content.Context;
@@ -252,7 +252,7 @@ public class WikiPictureEditor extends WikiBaseActivity {
             byte[] data = null;
 
             try {
-                HttpClient httpclient = new DefaultHttpClient();
+                HttpClient httpclient = SharedHttpClient.newSession();
                 
                 CheckBox includelocation = (CheckBox)findViewById(R.id.includelocation);
                 CheckBox stamplocation = (CheckBox)findViewById(R.id.stamplocation);
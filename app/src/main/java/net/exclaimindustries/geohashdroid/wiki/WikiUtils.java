@@ -25,6 +25,7 @@ import net.exclaimindustries.geohashdroid.util.Graticule;
 import net.exclaimindustries.geohashdroid.util.Info;
 import net.exclaimindustries.tools.DOMUtil;
 import net.exclaimindustries.tools.DateTools;
+import net.exclaimindustries.tools.SharedHttpClient;
 
 import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
@@ -109,7 +110,13 @@ public class WikiUtils {
 
         HttpEntity entity = response.getEntity();
         
-        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(entity.getContent());
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(entity.getContent());
+        } finally {
+            // The parser might not read every last byte, and the connection
+            // doesn't go back in the pool until something does.
+            SharedHttpClient.consume(entity);
+        }
     }
   
   /**
@@ -19,9 +19,15 @@ import java.util.Locale;
  */
 public class DateTools {
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMdd", Locale.ENGLISH);
-    private static final SimpleDateFormat HYPHENATED_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
-    private static final SimpleDateFormat WIKI_DATE_FORMAT = new SimpleDateFormat("HH:mm, d MMMM yyyy (z)", Locale.ENGLISH);
+    // SimpleDateFormat isn't thread-safe, and this gets called from all over
+    // the place, so everyone gets their own.  The plain date strings don't
+    // need one at all; EpochDay handles those.
+    private static final ThreadLocal<SimpleDateFormat> WIKI_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("HH:mm, d MMMM yyyy (z)", Locale.ENGLISH);
+        }
+    };
 
     /**
      * Generates a YYYYMMDD string from a given Calendar object.
@@ -30,8 +36,7 @@ public class DateTools {
      * @return a YYYYMMDD string
      */
     public static String getDateString(Calendar c) {
-        String date = DATE_FORMAT.format(c.getTime());
-        return date;
+        return EpochDay.fromCalendar(c).toDateString();
     }
     
     /**
@@ -41,10 +46,7 @@ public class DateTools {
      * @return a YYYY-MM-DD string
      */
     public static String getHyphenatedDateString(Calendar c) {
-        // Turns out the SimpleDateFormat class does all the tricky work for me.
-        // Huh.
-        String date = HYPHENATED_DATE_FORMAT.format(c.getTime());
-        return date;
+        return EpochDay.fromCalendar(c).toHyphenatedString();
     }
     
     /**
@@ -60,7 +62,41 @@ public class DateTools {
      * @return a wiki-signature-like date string
      */
     public static String getWikiDateString(Calendar c) {
-        String date = WIKI_DATE_FORMAT.format(c.getTime());
+        String date = WIKI_DATE_FORMAT.get().format(c.getTime());
         return date;
     }
+
+    /**
+     * Gets the number of days since January 1, 1970 for the date (year,
+     * month, and day-of-month fields only, so time zones and times of day
+     * don't enter into it) of the given Calendar.  This makes for a handy
+     * primitive key for a date.
+     *
+     * @param c Calendar from which to get the date
+     * @return days since the epoch (negative if before 1970)
+     */
+    public static int getEpochDay(Calendar c) {
+        return getEpochDay(c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+                c.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * Gets the number of days since January 1, 1970 for the given proleptic
+     * Gregorian date.
+     *
+     * @param year the year
+     * @param month the month, from 1 to 12 (NOT Calendar's 0 to 11)
+     * @param day the day of the month
+     * @return days since the epoch (negative if before 1970)
+     */
+    public static int getEpochDay(int year, int month, int day) {
+        // This is the usual trick of starting the year in March so leap days
+        // land at the end, then counting 400-year eras.
+        int y = (month <= 2) ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
 }
@@ -0,0 +1,252 @@
+/**
+ * EpochDay.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.tools;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * <p>
+ * An <code>EpochDay</code> is an immutable date with no time, no time zone,
+ * and no nonsense.  It's just the number of days since January 1, 1970 (in
+ * the proleptic Gregorian calendar), wrapped up with enough methods to do the
+ * sort of date arithmetic Geohashing needs: stepping days back and forth,
+ * checking weekends, and turning it into strings for URLs and databases.
+ * </p>
+ *
+ * <p>
+ * This exists because Calendar is big, mutable, needs cloning every time you
+ * want to do math on it, and its favorite formatting buddy, SimpleDateFormat,
+ * isn't thread-safe.  Use Calendar for the UI and convert at the edges with
+ * {@link #fromCalendar(Calendar)} and {@link #toCalendar()}.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class EpochDay implements Comparable<EpochDay> {
+    /** Day-of-week value for Sunday (same as Calendar.SUNDAY). */
+    public static final int SUNDAY = Calendar.SUNDAY;
+    /** Day-of-week value for Saturday (same as Calendar.SATURDAY). */
+    public static final int SATURDAY = Calendar.SATURDAY;
+
+    private final int mDay;
+
+    private EpochDay(int day) {
+        mDay = day;
+    }
+
+    /**
+     * Makes an EpochDay out of a raw day count.
+     *
+     * @param day days since January 1, 1970
+     * @return a new EpochDay
+     */
+    public static EpochDay of(int day) {
+        return new EpochDay(day);
+    }
+
+    /**
+     * Makes an EpochDay out of a year, month, and day.
+     *
+     * @param year the year
+     * @param month the month, from 1 to 12 (NOT Calendar's 0 to 11)
+     * @param dayOfMonth the day of the month
+     * @return a new EpochDay
+     */
+    public static EpochDay of(int year, int month, int dayOfMonth) {
+        return new EpochDay(DateTools.getEpochDay(year, month, dayOfMonth));
+    }
+
+    /**
+     * Makes an EpochDay out of the year, month, and day-of-month fields of a
+     * Calendar.  The time and time zone are ignored.
+     *
+     * @param c Calendar to convert
+     * @return a new EpochDay
+     */
+    public static EpochDay fromCalendar(Calendar c) {
+        return new EpochDay(DateTools.getEpochDay(c));
+    }
+
+    /**
+     * Makes an EpochDay for today, according to the device's time zone.
+     *
+     * @return today
+     */
+    public static EpochDay today() {
+        return fromCalendar(Calendar.getInstance());
+    }
+
+    /**
+     * Gets the raw day count.  This makes a fine primitive key.
+     *
+     * @return days since January 1, 1970
+     */
+    public int getDay() {
+        return mDay;
+    }
+
+    /**
+     * Gets the year.
+     *
+     * @return the year
+     */
+    public int getYear() {
+        return civil(mDay) >> 9;
+    }
+
+    /**
+     * Gets the month.
+     *
+     * @return the month, from 1 to 12 (NOT Calendar's 0 to 11)
+     */
+    public int getMonth() {
+        return (civil(mDay) >> 5) & 0xF;
+    }
+
+    /**
+     * Gets the day of the month.
+     *
+     * @return the day of the month
+     */
+    public int getDayOfMonth() {
+        return civil(mDay) & 0x1F;
+    }
+
+    /**
+     * Gets the day of the week, using Calendar's values (so SUNDAY is 1 and
+     * SATURDAY is 7).
+     *
+     * @return the day of the week
+     */
+    public int getDayOfWeek() {
+        // January 1, 1970 was a Thursday.  Calendar.THURSDAY is 5, so shift by
+        // four to land there from zero, then make sure negatives wrap right.
+        int dow = (mDay + 4) % 7;
+        if(dow < 0) dow += 7;
+        return dow + 1;
+    }
+
+    /**
+     * Makes a new EpochDay some number of days away from this one.
+     *
+     * @param days days to add (negative to go back)
+     * @return a new EpochDay (or this one, if days is zero)
+     */
+    public EpochDay plusDays(int days) {
+        return days == 0 ? this : new EpochDay(mDay + days);
+    }
+
+    /**
+     * Determines if this date is after the given one.
+     *
+     * @param other date to compare
+     * @return true if this is strictly later
+     */
+    public boolean isAfter(EpochDay other) {
+        return mDay > other.mDay;
+    }
+
+    /**
+     * Determines if this date is before the given one.
+     *
+     * @param other date to compare
+     * @return true if this is strictly earlier
+     */
+    public boolean isBefore(EpochDay other) {
+        return mDay < other.mDay;
+    }
+
+    /**
+     * Makes a new Calendar (in the device's time zone) set to midnight on this
+     * date.  This is for handing dates back to the UI.
+     *
+     * @return a new Calendar
+     */
+    public Calendar toCalendar() {
+        int civil = civil(mDay);
+        return new GregorianCalendar(civil >> 9, ((civil >> 5) & 0xF) - 1, civil & 0x1F);
+    }
+
+    /**
+     * Generates a YYYYMMDD string, same as
+     * {@link DateTools#getDateString(Calendar)}.
+     *
+     * @return a YYYYMMDD string
+     */
+    public String toDateString() {
+        int civil = civil(mDay);
+        char[] out = new char[8];
+        writeDigits(out, 0, civil >> 9, 4);
+        writeDigits(out, 4, (civil >> 5) & 0xF, 2);
+        writeDigits(out, 6, civil & 0x1F, 2);
+        return new String(out);
+    }
+
+    /**
+     * Generates a YYYY-MM-DD string, same as
+     * {@link DateTools#getHyphenatedDateString(Calendar)}.
+     *
+     * @return a YYYY-MM-DD string
+     */
+    public String toHyphenatedString() {
+        int civil = civil(mDay);
+        char[] out = new char[10];
+        writeDigits(out, 0, civil >> 9, 4);
+        out[4] = '-';
+        writeDigits(out, 5, (civil >> 5) & 0xF, 2);
+        out[7] = '-';
+        writeDigits(out, 8, civil & 0x1F, 2);
+        return new String(out);
+    }
+
+    @Override
+    public int compareTo(EpochDay other) {
+        return mDay < other.mDay ? -1 : (mDay == other.mDay ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EpochDay && ((EpochDay)o).mDay == mDay;
+    }
+
+    @Override
+    public int hashCode() {
+        return mDay;
+    }
+
+    @Override
+    public String toString() {
+        return toHyphenatedString();
+    }
+
+    private static void writeDigits(char[] out, int pos, int value, int width) {
+        for(int i = pos + width - 1; i >= pos; i--) {
+            out[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Works out the civil date for a day count and packs it into an int as
+     * (year << 9) | (month << 5) | day.  Same trick as
+     * {@link DateTools#getEpochDay(int, int, int)}, but backwards.
+     */
+    private static int civil(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = z - era * 146097;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return (year << 9) | (month << 5) | day;
+    }
+}
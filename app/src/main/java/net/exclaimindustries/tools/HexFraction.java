@@ -1,25 +1,32 @@
 /**
  * HexFraction.java
  * Copyright (C)2008 Nicholas Killewald
- * 
+ *
  * This file is distributed under the terms of the BSD license.
  * The source package should have a LICENSE file at the toplevel.
  */
 package net.exclaimindustries.tools;
 
-import java.math.BigDecimal;
-
 /**
- * Contains a static method for parsing a hex string as if it were the
- * fractional part of a number and returning its fractional float value.
- * 
+ * Contains static methods for parsing a hex string (or the raw bytes behind
+ * one) as if it were the fractional part of a number and returning its
+ * fractional double value.
+ *
  * @author Nicholas Killewald
  */
 public class HexFraction {
+    /** 2^-64, the weight of the lowest bit of a 64-bit fraction. */
+    private static final double TWO_TO_THE_MINUS_64 = 0x1.0p-64;
+
+    /**
+     * Number of hexits that fit in a long.
+     */
+    private static final int HEXITS_PER_LONG = 16;
+
     /**
      * Converts a string, presumably the fractional part of a hex number, into
      * its fractional decimal counterpart. Don't feed it a negative.
-     * 
+     *
      * @param s
      *            the hex string to convert
      * @return a float value of the hex string
@@ -27,25 +34,92 @@ public class HexFraction {
      *             parsing error with the string
      */
     public static double calculate(String s) throws NumberFormatException {
-        // We're dealing with values to the precision of 1/(16^16). I think
-        // BigDecimal is quite called for in this case.
-        BigDecimal curvalue = new BigDecimal(0);
-
-        // We need to parse the string one character at a time and continuously
-        // calculate each digit's fractional hex value. Note, this WILL hurt.
-        for (int i = 0; i < s.length(); i++) {
-            // Get the hexit.
-            String hexit = s.substring(i, i + 1);
-            // Make it into an integer.
-            int part = Integer.parseInt(hexit, 16);
-            // Now divide it out.
-            BigDecimal d1 = new BigDecimal(part);
-            BigDecimal d2 = new BigDecimal(16);
-            d2 = d2.pow(i + 1);
-            curvalue = curvalue.add(d1.divide(d2));
-            // Then repeat for the entire string.
+        // The first sixteen hexits are exactly one long's worth of bits, which
+        // is all a Geohash ever hands us.  Pack them up and let the long
+        // version do the real work.
+        int len = s.length();
+        int first = Math.min(len, HEXITS_PER_LONG);
+        long bits = 0;
+
+        for(int i = 0; i < first; i++)
+            bits = (bits << 4) | parseHexit(s, i);
+
+        // Left-align it if the string was short, so the first hexit is always
+        // the sixteenths place.
+        if(first < HEXITS_PER_LONG)
+            bits <<= 4 * (HEXITS_PER_LONG - first);
+
+        double curvalue = fromLong(bits);
+
+        // Anything past that is so far down it can only nudge the last bit or
+        // so of a double, but add it in anyway for completeness' sake.
+        double scale = TWO_TO_THE_MINUS_64;
+        for(int i = first; i < len; i++) {
+            scale /= 16;
+            curvalue += parseHexit(s, i) * scale;
         }
-        // Finally, return at will!
-        return curvalue.doubleValue();
+
+        return curvalue;
+    }
+
+    /**
+     * Converts eight bytes of a byte array, treated as the big-endian
+     * fractional part of a hex number, into its fractional decimal
+     * counterpart.  This is the same thing {@link #calculate(String)} does to
+     * sixteen hexits, only without ever making the String in the first place.
+     * Handy for feeding MD5 digests directly in.
+     *
+     * @param bytes
+     *            the bytes to convert
+     * @param offset
+     *            where in the array to start reading (eight bytes will be read
+     *            from here)
+     * @return a double value of the bytes, from 0 to 1
+     * @throws ArrayIndexOutOfBoundsException
+     *             there aren't eight bytes to read after offset
+     */
+    public static double calculate(byte[] bytes, int offset) {
+        long bits = 0;
+
+        for(int i = offset; i < offset + 8; i++)
+            bits = (bits << 8) | (bytes[i] & 0xFF);
+
+        return fromLong(bits);
+    }
+
+    /**
+     * Converts a long, treated as an unsigned 64-bit fraction (that is, bits
+     * divided by 2^64), into a double.  The result is correctly rounded, same
+     * as if it'd been worked out with BigDecimal.
+     *
+     * @param bits
+     *            the bits to convert
+     * @return a double value of the bits, from 0 to 1
+     */
+    public static double fromLong(long bits) {
+        double d;
+
+        if(bits >= 0) {
+            // The top bit's clear, so this is a plain old positive long, and
+            // Java's conversion rounds it correctly all by itself.
+            d = (double)bits;
+        } else {
+            // Otherwise, halve it so it fits in a signed long, but keep the
+            // bit we shifted off as a sticky bit so rounding still comes out
+            // the same.  Then double it back up, which is exact.
+            d = (double)((bits >>> 1) | (bits & 1)) * 2.0;
+        }
+
+        // Scaling by a power of two is exact, too.
+        return d * TWO_TO_THE_MINUS_64;
+    }
+
+    private static int parseHexit(String s, int index) throws NumberFormatException {
+        int part = Character.digit(s.charAt(index), 16);
+
+        if(part < 0)
+            throw new NumberFormatException("Not a hex digit at position " + index + ": \"" + s + "\"");
+
+        return part;
     }
 }
@@ -29,18 +29,36 @@ public class MD5Tools {
      * @return the MD5 hash of the input
      */
     public static String MD5hash(String input) {
+        byte[] digest = MD5digest(input);
+
+        if(digest == null)
+            return "";
+
+        return CharToByte.bytesToString(digest);
+    }
+
+    /**
+     * Hashes a string through the MD5 algorithm, returning the raw digest
+     * bytes instead of a hex string.  If something goes wrong with getting an
+     * MD5 instance, this returns null.
+     * 
+     * @param input
+     *            String object to hash
+     * @return the 16-byte MD5 digest of the input, or null on failure
+     */
+    public static byte[] MD5digest(String input) {
         MessageDigest diggy;
 
         try {
             diggy = MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException e) {
             // No, seriously, if this fails, we're all doomed.
-            return "";
+            return null;
         }
 
         diggy.update(CharToByte.charsToBytes(input.toCharArray()));
 
-        return CharToByte.bytesToString(diggy.digest());
+        return diggy.digest();
     }
 
 }
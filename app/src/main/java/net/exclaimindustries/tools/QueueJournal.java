@@ -0,0 +1,505 @@
+/**
+ * QueueJournal.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.tools;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>QueueJournal</code> is how {@link QueueService} keeps its queue on
+ * disk while it's running, so a process kill doesn't lose anything.  It's a
+ * single append-only file.  Every time something's added to the queue, an
+ * "enqueue" record goes on the end (BEFORE it goes in the in-memory queue),
+ * and every time something's done, a "complete" record goes on the end.  To
+ * recover, just read it front to back and keep whatever was enqueued but
+ * never completed.
+ * </p>
+ *
+ * <p>
+ * Pauses go in there, too, as "pause" and "resume" records.  That way, after
+ * a process kill, anything that was deliberately paused stays paused, and
+ * anything that was just waiting its turn (or was in the middle of being
+ * handled) can be picked right back up.  A pause that's really just waiting
+ * on a retry says so by carrying how many tries it's had so far, so those
+ * don't get mixed up with pauses that need somebody to come along and
+ * resume them.
+ * </p>
+ *
+ * <p>
+ * Each record looks like this:
+ * </p>
+ *
+ * <pre>
+ * int   length of the type, ID, and payload
+ * byte  type ({@link #TYPE_ENQUEUE}, {@link #TYPE_COMPLETE},
+ *       {@link #TYPE_PAUSE}, or {@link #TYPE_RESUME})
+ * long  ID of the entry
+ * byte[] payload (enqueue records, and pause records for retries, where
+ *       it's an int with the number of tries so far)
+ * int   CRC32 of the type, ID, and payload
+ * </pre>
+ *
+ * <p>
+ * If the process dies halfway through writing a record, that record won't
+ * check out, so recovery stops right there and chops it off.  Everything
+ * before it is still good.
+ * </p>
+ *
+ * <p>
+ * Since the file only ever grows, it gets compacted (rewritten with just the
+ * entries still pending) once completed entries start outnumbering pending
+ * ones.  The pending payloads are kept in memory for that, which is fine,
+ * since they're just the serialized Intents, not, say, the pictures they
+ * point to.
+ * </p>
+ *
+ * <p>
+ * All methods are synchronized.  None of them throw; if the disk gives us
+ * trouble, we complain in the log and carry on with the in-memory queue, which
+ * is no worse than how things used to be.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+final class QueueJournal {
+    private static final String DEBUG_TAG = "QueueJournal";
+
+    // "QJ" and a version number, right at the start of the file.
+    private static final int MAGIC = 0x514a0001;
+
+    /** Record type for something added to the queue. */
+    static final byte TYPE_ENQUEUE = 1;
+    /** Record type for something done with and removed from the queue. */
+    static final byte TYPE_COMPLETE = 2;
+    /** Record type for something that got paused. */
+    static final byte TYPE_PAUSE = 3;
+    /** Record type for something that isn't paused anymore. */
+    static final byte TYPE_RESUME = 4;
+
+    // Nothing we serialize should ever be anywhere near this big.  If a length
+    // says otherwise, the file's garbage from there on.
+    private static final int MAX_RECORD = 4 * 1024 * 1024;
+
+    // Don't bother compacting until at least this many completed records are
+    // in the file.
+    private static final int COMPACT_MIN = 32;
+
+    /**
+     * One pending entry found during {@link QueueJournal#recover()}.
+     */
+    static final class Entry {
+        final long id;
+        final byte[] payload;
+        final boolean paused;
+        // How many tries it's had, if it's paused waiting on a retry.  Zero
+        // if it's a plain pause (or not paused at all).
+        final int attempts;
+
+        Entry(long id, byte[] payload, boolean paused, int attempts) {
+            this.id = id;
+            this.payload = payload;
+            this.paused = paused;
+            this.attempts = attempts;
+        }
+    }
+
+    private final File mFile;
+    private FileOutputStream mOut;
+
+    // Everything enqueued but not yet completed, in order.
+    private final Map<Long, byte[]> mPending = new LinkedHashMap<Long, byte[]>();
+    // The pending entries that are paused right now, and how many tries each
+    // has had if it's waiting on a retry (zero if it's a plain pause).
+    private final Map<Long, Integer> mPaused = new HashMap<Long, Integer>();
+    // How many records in the file are dead weight (completed entries and
+    // their complete records).
+    private int mDead = 0;
+    private long mNextId = 1;
+
+    /**
+     * Makes a new QueueJournal.  Nothing's read or written until
+     * {@link #recover()} is called, which should be right away.
+     *
+     * @param file the journal file
+     */
+    QueueJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the journal back in, keeping whatever was enqueued but never
+     * completed, and gets it ready for appending.  Anything after a torn or
+     * corrupt record is thrown away.  This is a single pass over the file.
+     *
+     * @return the pending entries, in the order they were enqueued
+     */
+    synchronized List<Entry> recover() {
+        mPending.clear();
+        mPaused.clear();
+        mDead = 0;
+
+        long goodLength = 0;
+
+        if(mFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+
+                if(in.readInt() != MAGIC) {
+                    Log.w(DEBUG_TAG, "Journal has the wrong header, starting over...");
+                } else {
+                    goodLength = 4;
+
+                    while(true) {
+                        int read = readRecord(in);
+                        if(read < 0)
+                            break;
+                        goodLength += read;
+                    }
+                }
+            } catch (EOFException eofe) {
+                // Not even a header.  Start fresh.
+            } catch (IOException ioe) {
+                Log.e(DEBUG_TAG, "Couldn't read the journal!", ioe);
+            } finally {
+                if(in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Ignore this.
+                    }
+                }
+            }
+        }
+
+        try {
+            if(goodLength == 0) {
+                // Either there was no journal or it was useless.  Make a new
+                // one.
+                rewrite();
+            } else {
+                if(goodLength < mFile.length()) {
+                    Log.w(DEBUG_TAG, "Chopping " + (mFile.length() - goodLength) + " bad byte(s) off the end of the journal.");
+                    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                    try {
+                        raf.setLength(goodLength);
+                    } finally {
+                        raf.close();
+                    }
+                }
+
+                // If there's a lot of junk in there, now's a good time to get
+                // rid of it.
+                if(shouldCompact())
+                    rewrite();
+                else
+                    mOut = new FileOutputStream(mFile, true);
+            }
+        } catch (IOException ioe) {
+            Log.e(DEBUG_TAG, "Couldn't open the journal for writing!", ioe);
+            closeQuietly();
+        }
+
+        List<Entry> toReturn = new ArrayList<Entry>(mPending.size());
+        for(Map.Entry<Long, byte[]> e : mPending.entrySet()) {
+            Integer attempts = mPaused.get(e.getKey());
+            toReturn.add(new Entry(e.getKey(), e.getValue(), attempts != null, attempts == null ? 0 : attempts));
+        }
+
+        Log.d(DEBUG_TAG, "Recovered " + toReturn.size() + " pending entr" + (toReturn.size() == 1 ? "y" : "ies") + " from the journal.");
+        return toReturn;
+    }
+
+    // Reads one record and applies it.  Returns how many bytes it was, or -1
+    // if there isn't a good record there.
+    private int readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException eofe) {
+            return -1;
+        }
+
+        // Type and ID alone are nine bytes.
+        if(length < 9 || length > MAX_RECORD)
+            return -1;
+
+        byte[] body = new byte[length];
+        int crc;
+        try {
+            in.readFully(body);
+            crc = in.readInt();
+        } catch (EOFException eofe) {
+            // Torn write.
+            return -1;
+        }
+
+        CRC32 check = new CRC32();
+        check.update(body);
+        if((int)check.getValue() != crc)
+            return -1;
+
+        byte type = body[0];
+        long id = 0;
+        for(int i = 1; i < 9; i++)
+            id = (id << 8) | (body[i] & 0xff);
+
+        if(type == TYPE_ENQUEUE) {
+            byte[] payload = new byte[length - 9];
+            System.arraycopy(body, 9, payload, 0, payload.length);
+            mPending.put(id, payload);
+        } else if(type == TYPE_COMPLETE) {
+            // The enqueue record is now dead, and so is this one.
+            if(mPending.remove(id) != null)
+                mDead++;
+            if(mPaused.remove(id) != null)
+                mDead++;
+            mDead++;
+        } else if(type == TYPE_PAUSE) {
+            // An older pause record for the same entry is dead weight now.
+            int attempts = 0;
+            if(length >= 13) {
+                for(int i = 9; i < 13; i++)
+                    attempts = (attempts << 8) | (body[i] & 0xff);
+            }
+
+            if(!mPending.containsKey(id) || mPaused.put(id, Math.max(0, attempts)) != null)
+                mDead++;
+        } else if(type == TYPE_RESUME) {
+            // The pause record is dead now, too.
+            if(mPaused.remove(id) != null)
+                mDead++;
+            mDead++;
+        } else {
+            return -1;
+        }
+
+        if(id >= mNextId)
+            mNextId = id + 1;
+
+        return length + 8;
+    }
+
+    /**
+     * Adds an entry to the journal.  When this returns, it's on disk.
+     *
+     * @param payload the serialized entry
+     * @return the ID for the entry, to pass to {@link #complete(long)} later
+     */
+    synchronized long enqueue(byte[] payload) {
+        long id = mNextId++;
+        mPending.put(id, payload);
+        append(TYPE_ENQUEUE, id, payload);
+        return id;
+    }
+
+    /**
+     * Marks an entry as done.  It won't come back out of
+     * {@link #recover()}.  If that makes the file mostly dead weight, it gets
+     * compacted.
+     *
+     * @param id the entry's ID, as returned from {@link #enqueue(byte[])}
+     */
+    synchronized void complete(long id) {
+        if(mPending.remove(id) == null)
+            return;
+
+        append(TYPE_COMPLETE, id, null);
+        mDead += 2;
+        if(mPaused.remove(id) != null)
+            mDead++;
+
+        if(shouldCompact()) {
+            try {
+                rewrite();
+            } catch (IOException ioe) {
+                Log.e(DEBUG_TAG, "Couldn't compact the journal!", ioe);
+                closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Marks an entry as paused or not.  Paused entries come back out of
+     * {@link #recover()} flagged that way.  Nothing's written if the entry's
+     * already that way (or isn't pending at all).
+     *
+     * @param id the entry's ID, as returned from {@link #enqueue(byte[])}
+     * @param paused true if it's paused now, false if it isn't anymore
+     */
+    synchronized void setPaused(long id, boolean paused) {
+        if(paused) {
+            pause(id, 0);
+        } else {
+            if(!mPending.containsKey(id) || mPaused.remove(id) == null)
+                return;
+
+            append(TYPE_RESUME, id, null);
+            mDead += 2;
+        }
+    }
+
+    /**
+     * Marks an entry as paused waiting on a retry.  These come back out of
+     * {@link #recover()} flagged as paused with the number of tries so far,
+     * so they can be told apart from plain pauses.  Use
+     * {@link #setPaused(long, boolean)} with false to unpause it.
+     *
+     * @param id the entry's ID, as returned from {@link #enqueue(byte[])}
+     * @param attempts how many times it's been tried so far (one or more)
+     */
+    synchronized void setRetrying(long id, int attempts) {
+        pause(id, Math.max(1, attempts));
+    }
+
+    private void pause(long id, int attempts) {
+        if(!mPending.containsKey(id))
+            return;
+
+        Integer old = mPaused.put(id, attempts);
+        if(old != null) {
+            if(old == attempts)
+                return;
+
+            // The old pause record doesn't count anymore.
+            mDead++;
+        }
+
+        append(TYPE_PAUSE, id, attempts > 0 ? toBytes(attempts) : null);
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[] {
+            (byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value
+        };
+    }
+
+    /**
+     * Marks everything as done at once.
+     */
+    synchronized void clear() {
+        mPending.clear();
+        mPaused.clear();
+
+        try {
+            rewrite();
+        } catch (IOException ioe) {
+            Log.e(DEBUG_TAG, "Couldn't clear the journal!", ioe);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Closes the journal.  Everything's already on disk, so this is just
+     * tidying up.
+     */
+    synchronized void close() {
+        closeQuietly();
+    }
+
+    private boolean shouldCompact() {
+        return mDead >= COMPACT_MIN && mDead > mPending.size();
+    }
+
+    private void append(byte type, long id, byte[] payload) {
+        if(mOut == null)
+            return;
+
+        try {
+            mOut.write(makeRecord(type, id, payload));
+            // Write-ahead means it's actually ON the disk, not just somewhere
+            // on the way to it.
+            mOut.getFD().sync();
+        } catch (IOException ioe) {
+            Log.e(DEBUG_TAG, "Couldn't write to the journal!", ioe);
+            closeQuietly();
+        }
+    }
+
+    private static byte[] makeRecord(byte type, long id, byte[] payload) throws IOException {
+        int payloadLength = (payload == null ? 0 : payload.length);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(17 + payloadLength);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(9 + payloadLength);
+        out.writeByte(type);
+        out.writeLong(id);
+        if(payload != null)
+            out.write(payload);
+
+        // The checksum covers everything but the length (and itself).  A bad
+        // length gets caught anyway, since it'll put the checksum in the
+        // wrong place.
+        CRC32 check = new CRC32();
+        byte[] soFar = bytes.toByteArray();
+        check.update(soFar, 4, soFar.length - 4);
+        out.writeInt((int)check.getValue());
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    // Writes out a fresh journal with just what's pending, then swaps it in
+    // for the old one.  If we die halfway through, the old one's still there.
+    private void rewrite() throws IOException {
+        closeQuietly();
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            for(Map.Entry<Long, byte[]> e : mPending.entrySet()) {
+                data.write(makeRecord(TYPE_ENQUEUE, e.getKey(), e.getValue()));
+                Integer attempts = mPaused.get(e.getKey());
+                if(attempts != null)
+                    data.write(makeRecord(TYPE_PAUSE, e.getKey(), attempts > 0 ? toBytes(attempts) : null));
+            }
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if(!temp.renameTo(mFile))
+            throw new IOException("Couldn't rename " + temp + " to " + mFile);
+
+        mDead = 0;
+        mOut = new FileOutputStream(mFile, true);
+    }
+
+    private void closeQuietly() {
+        if(mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Ignore this.
+            }
+            mOut = null;
+        }
+    }
+}
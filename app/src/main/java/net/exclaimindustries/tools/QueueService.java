@@ -7,21 +7,40 @@
  */
 package net.exclaimindustries.tools;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.support.v4.content.WakefulBroadcastReceiver;
 import android.util.Log;
 
 /**
@@ -39,11 +58,58 @@ import android.util.Log;
  * work similarly enough under the hood to justify it.
  * </p>
  * 
+ * <p>
+ * The queue is kept on disk the whole time the service is running, not just
+ * when it gets destroyed, so a process kill won't lose anything.  Every Intent
+ * is run through {@link #serializeToDisk(Intent, OutputStream)} and written to
+ * a journal before it goes in the queue, and the journal's told when it's done
+ * with.  Pauses get written down, too, so if the process is killed, anything
+ * that was paused comes back paused and everything else picks back up as
+ * soon as the service gets its next command (a new Intent, say).  See
+ * {@link QueueJournal} for the gory details.
+ * </p>
+ * 
+ * <p>
+ * By default, one Intent is handled at a time, in order, and a
+ * {@link ReturnCode#PAUSE} holds up the whole queue.  Subclasses can opt in to
+ * handling several at once by overriding {@link #getWorkerCount()} and
+ * {@link #getOrderingKey(Intent)}.  Intents with the same ordering key are
+ * still handled one at a time and in order, and a PAUSE only holds up the
+ * Intents with that same key.  Intents with different keys run in parallel.
+ * </p>
+ * 
+ * <p>
+ * When more than one key has something ready to go, the one with the highest
+ * priority goes first (see {@link #getPriority(Intent)}), then the cheapest
+ * (see {@link #getEstimatedCost(Intent)}), then whichever came in first.  An
+ * Intent's priority goes up by one for every {@link #AGING_INTERVAL} it's been
+ * waiting, so nothing gets stuck at the back forever.  Intents with the same
+ * key never pass each other, priority or not.
+ * </p>
+ * 
+ * <p>
+ * An Intent that failed for some reason that'll probably clear up on its own
+ * can return {@link ReturnCode#RETRY}.  That holds up its key like a PAUSE,
+ * but the queue wakes itself back up after a while (longer each time, see
+ * {@link #getRetryDelay(Intent, int)}), and a {@link #COMMAND_RESUME} doesn't
+ * cut that short.  The number of tries is kept in the journal, so a process
+ * kill doesn't reset it, either.  After
+ * {@link #getMaxAttempts(Intent)} tries, or right away on a
+ * {@link ReturnCode#FAIL}, the Intent goes to the dead letters instead.  Those
+ * are kept on disk, too, and stay there until someone either sends
+ * {@link #COMMAND_REQUEUE_DEAD_LETTERS} or {@link #COMMAND_CLEAR_DEAD_LETTERS}.
+ * See {@link #getDeadLetters()}.
+ * </p>
+ * 
  * @author Nicholas Killewald
  */
 public abstract class QueueService extends Service {
     private static final String DEBUG_TAG = "QueueService";
 
+    // Message sent to the handler to get going on anything recovered from the
+    // journal that wasn't paused.  Anything else is an Intent.
+    private static final int MSG_START_RECOVERED = 1;
+    
     private volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
 
@@ -54,6 +120,11 @@ public abstract class QueueService extends Service {
         }
 
         public void handleMessage(Message msg) {
+            if(msg.what == MSG_START_RECOVERED) {
+                startRecovered();
+                return;
+            }
+            
             // Quick!  Hand this off to handleCommand!  It might start ANOTHER
             // thread to deal with this.
             handleCommand((Intent)msg.obj);
@@ -70,8 +141,25 @@ public abstract class QueueService extends Service {
          * Queue should pause until resumed later.  Useful for temporary
          * errors.  The queue will not be emptied, and the Intent which caused
          * this pause won't be removed (though see {@link #COMMAND_RESUME_SKIP_FIRST}).
+         * Only Intents with the same ordering key as this one get paused (see
+         * {@link #getOrderingKey(Intent)}), which, by default, is all of them.
          */
         PAUSE,
+        /**
+         * Queue should try this Intent again later on its own.  This works
+         * like {@link #PAUSE}, except the queue wakes back up after
+         * {@link #getRetryDelay(Intent, int)} without being told to (this
+         * needs {@link RetryReceiver} in the manifest).  Once
+         * the Intent has been tried {@link #getMaxAttempts(Intent)} times, it
+         * gets moved to the dead letters and the queue carries on.
+         */
+        RETRY,
+        /**
+         * This Intent is never going to work, so move it to the dead letters
+         * and carry on with the rest of the queue.  It can still be requeued
+         * later with {@link #COMMAND_REQUEUE_DEAD_LETTERS}.
+         */
+        FAIL,
         /**
          * Queue should stop entirely and not be resumed.  This implies the
          * queue will be emptied.
@@ -80,12 +168,18 @@ public abstract class QueueService extends Service {
     }
     
     /**
-     * Internal prefix of serialized intent data.  Don't change this unless you
-     * know you'll be running multiple QueueServices, which is the sole reason
-     * it's not static or final.
+     * Internal prefix of serialized intent data.  The journal file is named
+     * after it, too.  Don't change this unless you know you'll be running
+     * multiple QueueServices, which is the sole reason it's not static or
+     * final.
      */
     protected String mInternalQueueFilePrefix = "Queue";
     
+    // Appended to mInternalQueueFilePrefix to name the journal.
+    private static final String JOURNAL_SUFFIX = ".journal";
+    // Appended to mInternalQueueFilePrefix to name the dead letter journal.
+    private static final String DEAD_LETTER_SUFFIX = ".dead";
+    
     /**
      * Send an Intent with this extra data in it, set to one of the command
      * statics, to send a command.
@@ -94,11 +188,16 @@ public abstract class QueueService extends Service {
     
     /**
      * Command code sent to ask a paused QueueService to resume processing.
+     * This only resumes what was paused with a {@link ReturnCode#PAUSE};
+     * anything waiting on a {@link ReturnCode#RETRY} keeps waiting.
      */
     public static final int COMMAND_RESUME = 0;
     /**
      * Command code sent to ask a paused QueueService to resume processing,
-     * skipping the first thing in the queue.
+     * skipping the first thing in the queue.  That is, the Intent that caused
+     * the pause.  If more than one ordering key is paused, the Intent that
+     * paused each one is skipped.  Skipped Intents go to the dead letters, so
+     * they can still be requeued later.
      */
     public static final int COMMAND_RESUME_SKIP_FIRST = 1;
     /**
@@ -107,13 +206,137 @@ public abstract class QueueService extends Service {
      * NOT guaranteed to stop the queue if it is currently not paused.
      */
     public static final int COMMAND_ABORT = 2;
+    /**
+     * Command code sent to put everything in the dead letters back on the end
+     * of the queue, attempt counts reset.  Unlike the other commands, this
+     * works whether or not the queue is paused.
+     */
+    public static final int COMMAND_REQUEUE_DEAD_LETTERS = 3;
+    /**
+     * Command code sent to throw away everything in the dead letters for
+     * good.  This also works whether or not the queue is paused.
+     */
+    public static final int COMMAND_CLEAR_DEAD_LETTERS = 4;
+    // Sent by the alarm when a retry is due.  Nobody else should send this.
+    private static final int COMMAND_RETRY_DUE = 5;
+    
+    // The QueueService a retry alarm is for, as a ComponentName.
+    private static final String EXTRA_RETRY_SERVICE = "net.exclaimindustries.tools.QUEUE_RETRY_SERVICE";
+    
+    /**
+     * <p>
+     * This gets the retry alarm and wakes up the QueueService it's for.  The
+     * alarm's only guaranteed to keep the device awake until this returns, so
+     * it hangs on to a wakelock of its own until the queue's back up and
+     * running (that is, until {@link #onQueueStart()} has returned, which is
+     * where you'd take your own wakelock).
+     * </p>
+     * 
+     * <p>
+     * If you're using {@link ReturnCode#RETRY}, this has to be declared in
+     * the manifest (it doesn't need any intent-filters).
+     * </p>
+     */
+    public static class RetryReceiver extends WakefulBroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            ComponentName service = intent.getParcelableExtra(EXTRA_RETRY_SERVICE);
+            
+            if(service == null) {
+                Log.w(DEBUG_TAG, "Retry alarm didn't say what it was for, ignoring...");
+                return;
+            }
+            
+            Intent i = new Intent();
+            i.setComponent(service);
+            i.putExtra(COMMAND_EXTRA, COMMAND_RETRY_DUE);
+            startWakefulService(context, i);
+        }
+    }
     
     private Queue<Intent> mQueue;
-    private Thread mThread;
+    
+    /**
+     * How long an Intent has to wait in the queue to go up one priority
+     * level, in milliseconds.
+     */
+    public static final long AGING_INTERVAL = 2 * 60 * 1000L;
+    
+    /** The default first wait after a {@link ReturnCode#RETRY}, in milliseconds. */
+    public static final long RETRY_BASE_DELAY = 30 * 1000L;
+    /** The default longest wait after a {@link ReturnCode#RETRY}, in milliseconds. */
+    public static final long RETRY_MAX_DELAY = 30 * 60 * 1000L;
+    /** The default number of tries before an Intent goes to the dead letters. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    
+    private QueueJournal mJournal;
+    
+    // What we know about each Intent in the queue.
+    private static final class QueueEntry {
+        Object key;
+        long journalId;
+        long enqueued;
+        int priority;
+        long cost;
+        // How many times this has come back RETRY so far.
+        int attempts;
+    }
+    
+    // The QueueEntry for each Intent in the queue.  This goes by identity, not
+    // equals(), since Intents don't really do equals() anyway.
+    private final Map<Intent, QueueEntry> mEntries = Collections.synchronizedMap(new IdentityHashMap<Intent, QueueEntry>());
+    
+    private QueueJournal mDeadJournal;
+    
+    // Everything that's been given up on, and its ID in mDeadJournal, in the
+    // order they were given up on.  Intent doesn't override equals() or
+    // hashCode(), so this goes by identity, too.  Guarded by itself.
+    private final Map<Intent, Long> mDeadLetters = new LinkedHashMap<Intent, Long>();
     
     // Whether or not the queue is currently paused.
     private volatile boolean mIsPaused;
     
+    // Whether something came back from the journal that needs sorting out as
+    // soon as we get our first command.
+    private boolean mHasRecovered = false;
+    
+    // Something that came back from the journal (or the old queue files) at
+    // onCreate time, waiting to be tracked once the subclass is ready for it.
+    private static final class RecoveredEntry {
+        Intent intent;
+        long journalId;
+        boolean paused;
+        int attempts;
+    }
+    
+    // Everything recovered that hasn't been tracked yet, in queue order.
+    // Filled in by onCreate, emptied by startRecovered on the handler thread.
+    private final List<RecoveredEntry> mRecovered = new ArrayList<RecoveredEntry>();
+    
+    // The ordering key used for Intents that don't have one.
+    private static final Object NULL_KEY = new Object();
+    
+    // Everything about workers and keys below is guarded by this.
+    private final Object mWorkerLock = new Object();
+    // Keys with an Intent being handled right now.
+    private final Set<Object> mBusyKeys = new HashSet<Object>();
+    // Keys that are paused, and the Intent that paused each one, in the order
+    // they paused.
+    private final Map<Object, Intent> mPausedKeys = new LinkedHashMap<Object, Intent>();
+    // Keys that are paused waiting on a retry, and when (in elapsedRealtime)
+    // they get to go again.  Every key in here is also in mPausedKeys.
+    private final Map<Object, Long> mRetryAt = new HashMap<Object, Long>();
+    private final Random mRandom = new Random();
+    private int mActiveWorkers = 0;
+    // The retry alarm's Intent, if we're holding on to its wakelock until the
+    // first worker's through onQueueStart.
+    private Intent mRetryWakeful;
+    // Whether this run's first worker has gotten through onQueueStart yet.
+    private boolean mStarted = false;
+    // Goes up every time the queue is stopped, so any workers still busy from
+    // before then know to just quietly go away.
+    private int mGeneration = 0;
+    
     public QueueService() {
         super();
         
@@ -128,55 +351,47 @@ public abstract class QueueService extends Service {
     public void onCreate() {
         super.onCreate();
         
-        // To recreate, we want to go through everything we have in storage in
-        // the same order we wrote it out.
-        String files[] = fileList();
+        // To recreate, first read back the journal.  Anything in there that
+        // wasn't completed goes back in the queue, in the same order it went
+        // in the first time.
+        mJournal = new QueueJournal(new File(getFilesDir(), mInternalQueueFilePrefix + JOURNAL_SUFFIX));
         
-        // But the only files we're interested in are Queue# files.
-        int count = 0;
-        
-        for(String s : files) {
-            if(s.startsWith(mInternalQueueFilePrefix))
-                count++;
-        }
-        
-        if(count >= 1) {
-            // Now, open each one in order and have the deserializer deserialize
-            // them.  And because we're being paranoid today, make sure we
-            // account for gaps in the numbering.
-            int processed = 0;
-            
-            int i = 0;
+        for(QueueJournal.Entry entry : mJournal.recover()) {
+            Intent intent = deserializeFromDisk(new ByteArrayInputStream(entry.payload));
             
-            while(processed < count) {
-                try {
-                    // All the queue files are named Queue#.  We know there are
-                    // as many as the count variable.  We don't know if all
-                    // those digits exist, though, so track how many files we
-                    // deserialized and stop when we run out.  I really hope we
-                    // don't wind up in an infinite loop here.
-                    InputStream is = openFileInput(mInternalQueueFilePrefix + i);
-                    
-                    Intent intent = deserializeFromDisk(is);
-                    if(intent != null) mQueue.add(intent);
-                    
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                        // Ignore this.
-                    }
-                    
-                    deleteFile(mInternalQueueFilePrefix + i);
-                    processed++;
-                } catch (FileNotFoundException e) {
-                    // If we get here, we're apparently out of order.
-                    Log.w(DEBUG_TAG, "Couldn't find " + mInternalQueueFilePrefix + i + ", apparently we missed a number when writing...");
-                }
-                
-                i++;
+            if(intent == null) {
+                // The deserializer didn't like it, so it'll never like it.
+                // Get rid of it for good.
+                mJournal.complete(entry.id);
+            } else {
+                recovered(intent, entry.id, entry.paused, entry.attempts);
             }
+        }
+        
+        // Then, if there's anything left over from before we had a journal,
+        // bring that in, too.
+        migrateQueueFiles();
+        
+        // The dead letters come back the same way, minus the queue.
+        mDeadJournal = new QueueJournal(new File(getFilesDir(), mInternalQueueFilePrefix + DEAD_LETTER_SUFFIX));
+        
+        for(QueueJournal.Entry entry : mDeadJournal.recover()) {
+            Intent intent = deserializeFromDisk(new ByteArrayInputStream(entry.payload));
             
-            // Always assume that a non-empty queue involved a pause somewhere.
+            if(intent == null)
+                mDeadJournal.complete(entry.id);
+            else
+                mDeadLetters.put(intent, entry.id);
+        }
+        
+        // Working out keys, priorities, and costs for all that has to wait
+        // until the first command comes in.  Those are all up to the
+        // subclass, which isn't done setting up yet (and working out a cost
+        // might mean going to the disk, which we shouldn't be doing on the
+        // main thread anyway).  Until then, we're paused as far as anyone can
+        // tell.
+        if(!mQueue.isEmpty()) {
+            mHasRecovered = true;
             mIsPaused = true;
         }
         
@@ -191,21 +406,13 @@ public abstract class QueueService extends Service {
 
     @Override
     public void onDestroy() {
-        // Before destruction, serialize!  Make it snappy!
-        int i = 0;
+        // Everything's already in the journal, so there's nothing to
+        // serialize.  Just close it up.
+        mJournal.close();
+        mDeadJournal.close();
         
-        if(mQueue != null) {
-            for(Intent in : mQueue) {
-                try {
-                    serializeToDisk(in, openFileOutput(mInternalQueueFilePrefix + i, MODE_PRIVATE));
-                } catch (FileNotFoundException e) {
-                    // If we get an exception, complain about it and just move
-                    // on.
-                    Log.e(DEBUG_TAG, "Couldn't write queue entry to persistant storage!  Stack trace follows...");
-                    e.printStackTrace();
-                }
-                i++;
-            }
+        synchronized(mWorkerLock) {
+            releaseRetryWakeLock();
         }
         
         mServiceLooper.quit();
@@ -213,6 +420,155 @@ public abstract class QueueService extends Service {
         super.onDestroy();
     }
 
+    /**
+     * Brings in any Queue# files left over from back when the queue was only
+     * written out at onDestroy time.  Each one goes in the journal and then
+     * gets deleted, so this only ever happens once.
+     */
+    private void migrateQueueFiles() {
+        // The only files we're interested in are Queue# files, and we want
+        // them in numeric order.  The journal itself starts with the same
+        // prefix, so make sure the rest is all digits.
+        List<Integer> numbers = new ArrayList<Integer>();
+        
+        for(String s : fileList()) {
+            if(!s.startsWith(mInternalQueueFilePrefix))
+                continue;
+            
+            String rest = s.substring(mInternalQueueFilePrefix.length());
+            if(rest.isEmpty() || rest.length() > 9)
+                continue;
+            
+            boolean digits = true;
+            for(int i = 0; i < rest.length(); i++) {
+                if(!Character.isDigit(rest.charAt(i))) {
+                    digits = false;
+                    break;
+                }
+            }
+            
+            if(digits)
+                numbers.add(Integer.valueOf(rest));
+        }
+        
+        if(numbers.isEmpty())
+            return;
+        
+        Collections.sort(numbers);
+        Log.d(DEBUG_TAG, "Migrating " + numbers.size() + " old queue file(s) to the journal...");
+        
+        for(Integer i : numbers) {
+            String name = mInternalQueueFilePrefix + i;
+            
+            try {
+                InputStream is = openFileInput(name);
+                
+                Intent intent = deserializeFromDisk(is);
+                if(intent != null) recovered(intent, writeToJournal(intent), false, 0);
+                
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore this.
+                }
+            } catch (FileNotFoundException e) {
+                // It was there a second ago...
+                Log.w(DEBUG_TAG, "Couldn't open " + name + ", skipping it...");
+            }
+            
+            deleteFile(name);
+        }
+    }
+    
+    /**
+     * Writes the Intent to the journal, THEN adds it to the queue.
+     * 
+     * @param intent the Intent to add
+     */
+    private void addToQueue(Intent intent) {
+        track(intent, writeToJournal(intent));
+        mQueue.add(intent);
+    }
+    
+    private long writeToJournal(Intent intent) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializeToDisk(intent, bytes);
+        
+        return mJournal.enqueue(bytes.toByteArray());
+    }
+    
+    /**
+     * Adds something recovered at onCreate time to the queue, but holds off
+     * on tracking it until {@link #startRecovered()}.
+     */
+    private void recovered(Intent intent, long journalId, boolean paused, int attempts) {
+        RecoveredEntry r = new RecoveredEntry();
+        r.intent = intent;
+        r.journalId = journalId;
+        r.paused = paused;
+        r.attempts = attempts;
+        
+        mRecovered.add(r);
+        mQueue.add(intent);
+    }
+    
+    private void track(Intent intent, long journalId) {
+        // The key, priority, and cost get worked out just the once.  The key
+        // gets looked at for everything in the queue every time a worker
+        // looks for something to do, and working out the cost might mean
+        // going to the disk or something.
+        QueueEntry entry = new QueueEntry();
+        entry.key = makeKey(intent);
+        entry.journalId = journalId;
+        entry.enqueued = SystemClock.elapsedRealtime();
+        entry.priority = getPriority(intent);
+        entry.cost = Math.max(0, getEstimatedCost(intent));
+        
+        mEntries.put(intent, entry);
+    }
+    
+    /**
+     * Removes the given Intent from the queue and tells the journal it's done
+     * with.
+     * 
+     * @param intent the Intent to remove
+     */
+    private void removeFromQueue(Intent intent) {
+        QueueEntry entry = mEntries.remove(intent);
+        if(entry != null)
+            mJournal.complete(entry.journalId);
+        
+        // Intent doesn't override equals(), so this goes by identity.
+        mQueue.remove(intent);
+    }
+    
+    /**
+     * Moves the given Intent from the queue to the dead letters.  It goes in
+     * the dead letter journal first, so if we die in between, it winds up in
+     * both places, not neither.
+     * 
+     * @param intent the Intent to give up on
+     */
+    private void deadLetter(Intent intent) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializeToDisk(intent, bytes);
+        
+        synchronized(mDeadLetters) {
+            mDeadLetters.put(intent, mDeadJournal.enqueue(bytes.toByteArray()));
+        }
+        
+        removeFromQueue(intent);
+    }
+    
+    /**
+     * Empties the queue and the journal both.
+     */
+    private void clearQueue() {
+        mJournal.clear();
+        mEntries.clear();
+        mQueue.clear();
+    }
+    
     /**
      * Gets an iterator to the current queue.
      * 
@@ -230,9 +586,42 @@ public abstract class QueueService extends Service {
     public int getSize() {
         return mQueue.size();
     }
+    
+    /**
+     * Gets a copy of the dead letters, that is, everything that got a
+     * {@link ReturnCode#FAIL}, ran out of retries, or was skipped with
+     * {@link #COMMAND_RESUME_SKIP_FIRST}.  They're in the order they were
+     * given up on.
+     * 
+     * @return a list of the dead letters
+     */
+    public List<Intent> getDeadLetters() {
+        synchronized(mDeadLetters) {
+            return new ArrayList<Intent>(mDeadLetters.keySet());
+        }
+    }
+    
+    /**
+     * Gets how many dead letters there are.
+     * 
+     * @return the number of dead letters
+     */
+    public int getDeadLetterCount() {
+        synchronized(mDeadLetters) {
+            return mDeadLetters.size();
+        }
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        // The first command after a process kill sorts out anything that was
+        // in line when it died.  This can't happen in onCreate, since
+        // subclasses aren't done setting up yet at that point.
+        if(mHasRecovered) {
+            mHasRecovered = false;
+            mServiceHandler.sendEmptyMessage(MSG_START_RECOVERED);
+        }
+        
         // Here's a trick I picked up from IntentService...
         Message msg = mServiceHandler.obtainMessage();
         msg.arg1 = startId;
@@ -244,6 +633,58 @@ public abstract class QueueService extends Service {
         return Service.START_NOT_STICKY;
     }
     
+    /**
+     * Sorts out everything recovered from the journal, now that the subclass
+     * is ready for it, and starts up whatever wasn't paused.  This runs on the
+     * handler thread.
+     */
+    private void startRecovered() {
+        synchronized(mWorkerLock) {
+            long now = SystemClock.elapsedRealtime();
+            
+            for(RecoveredEntry r : mRecovered) {
+                track(r.intent, r.journalId);
+                
+                if(!r.paused)
+                    continue;
+                
+                // Anything that was paused when we went down is still
+                // paused.  It's up to whoever paused it to resume it, same as
+                // always.
+                Object key = getKey(r.intent);
+                if(mPausedKeys.containsKey(key))
+                    continue;
+                
+                mPausedKeys.put(key, r.intent);
+                
+                // Anything that was waiting on a retry is still waiting, but
+                // we don't know how long it had left, so it gets a whole new
+                // wait.  That also covers a reboot, which takes the old alarm
+                // with it.  If an old alarm's still out there, it'll just
+                // find nothing due yet.
+                if(r.attempts > 0) {
+                    mEntries.get(r.intent).attempts = r.attempts;
+                    mRetryAt.put(key, now + getRetryDelay(r.intent, r.attempts));
+                }
+            }
+            
+            mRecovered.clear();
+            
+            if(!mRetryAt.isEmpty()) {
+                Log.d(DEBUG_TAG, mRetryAt.size() + " recovered key(s) waiting on a retry.");
+                scheduleRetry();
+            }
+            
+            // Everything else was just in line (or in progress) when the
+            // process died, so that gets going again now.
+            if(countReadyKeys() > 0) {
+                Log.d(DEBUG_TAG, "Picking up where we left off before the process died...");
+                mIsPaused = false;
+                startWorkers();
+            }
+        }
+    }
+    
     /**
      * <p>
      * Handles the Intent sent in.  Specifically, this looks at the Intent,
@@ -262,84 +703,350 @@ public abstract class QueueService extends Service {
             // If so, take command.  Make sure it's a valid command.
             int command = intent.getIntExtra(COMMAND_EXTRA, -1);
             
-            if(!isPaused()) {
-                Log.w(DEBUG_TAG, "The queue isn't paused, ignoring the command...");
+            // The dead letter commands don't care if we're paused or not.
+            if(command == COMMAND_REQUEUE_DEAD_LETTERS) {
+                requeueDeadLetters();
                 return;
-            }
-            
-            if(command == -1) {
-                // INVALID!
-                Log.w(DEBUG_TAG, "Command Intent didn't have a valid command in it!");
+            } else if(command == COMMAND_CLEAR_DEAD_LETTERS) {
+                Log.d(DEBUG_TAG, "Throwing away " + getDeadLetterCount() + " dead letter(s)...");
+                synchronized(mDeadLetters) {
+                    mDeadJournal.clear();
+                    mDeadLetters.clear();
+                }
                 return;
-            }
-            
-            if(command != COMMAND_RESUME && command != COMMAND_ABORT && command != COMMAND_RESUME_SKIP_FIRST) {
-                Log.w(DEBUG_TAG, "I don't know what sort of command " + command + " is supposed to be, ignoring...");
+            } else if(command == COMMAND_RETRY_DUE) {
+                // This one came in holding a wakelock, so it ALWAYS has to
+                // get let go, paused or not.
+                synchronized(mWorkerLock) {
+                    boolean fresh = (mActiveWorkers == 0);
+                    releaseDueRetries();
+                    
+                    if(fresh && mActiveWorkers > 0) {
+                        // A new run's starting.  Keep the device awake until
+                        // its first worker's through onQueueStart.
+                        releaseRetryWakeLock();
+                        mRetryWakeful = intent;
+                        return;
+                    }
+                }
+                
+                WakefulBroadcastReceiver.completeWakefulIntent(intent);
                 return;
             }
-
-            // The thread should NOT be active right now!  If it is, we're in
-            // trouble!
-            if(mThread != null && mThread.isAlive()) {
-                Log.e(DEBUG_TAG, "isPaused returned true, but the thread is still alive?  What?");
-                // Last ditch effort: Try to interrupt the thread to death.
-                mThread.interrupt();
-            }
             
-            mIsPaused = false;
-            
-            // It's a good command, send it off!
-            if(command == COMMAND_RESUME) {
-                // Simply restart the thread.  The queue will start from where
-                // it left off.
-                Log.d(DEBUG_TAG, "Restarting the thread now...");
-                doNewThread();
-            } else if(command == COMMAND_RESUME_SKIP_FIRST) {
-                Log.d(DEBUG_TAG, "Restarting the thread now, skipping the first Intent...");
-                if(mQueue.isEmpty()) {
-                    Log.w(DEBUG_TAG, "The queue is empty!  There's nothing to skip!");
-                } else {
-                    mQueue.remove();
+            synchronized(mWorkerLock) {
+                // If anything at all is paused, that's good enough.  In the
+                // usual one-at-a-time case, that means the whole queue is.
+                if(mPausedKeys.isEmpty()) {
+                    Log.w(DEBUG_TAG, "The queue isn't paused, ignoring the command...");
+                    return;
                 }
-                doNewThread();
-            } else {
-                // This is a COMMAND_ABORT.  Simply empty the queue (but call
-                // the callback first).
+                
+                if(command == -1) {
+                    // INVALID!
+                    Log.w(DEBUG_TAG, "Command Intent didn't have a valid command in it!");
+                    return;
+                }
+                
+                if(command != COMMAND_RESUME && command != COMMAND_ABORT && command != COMMAND_RESUME_SKIP_FIRST) {
+                    Log.w(DEBUG_TAG, "I don't know what sort of command " + command + " is supposed to be, ignoring...");
+                    return;
+                }
+                
+                // It's a good command, send it off!
+                if(command == COMMAND_RESUME) {
+                    // Simply unpause everything that was paused.  The queue
+                    // will start from where it left off.  Anything waiting on
+                    // a retry keeps waiting on its alarm; that's not what
+                    // whoever sent this was resuming.
+                    Log.d(DEBUG_TAG, "Restarting the queue now...");
+                    resumePaused();
+                    return;
+                } else if(command == COMMAND_RESUME_SKIP_FIRST) {
+                    // Skipped doesn't mean forgotten.  Those go to the dead
+                    // letters in case anybody wants them back.
+                    List<Intent> skipped = new ArrayList<Intent>();
+                    for(Map.Entry<Object, Intent> e : mPausedKeys.entrySet()) {
+                        if(!mRetryAt.containsKey(e.getKey()))
+                            skipped.add(e.getValue());
+                    }
+                    
+                    Log.d(DEBUG_TAG, "Restarting the queue now, skipping " + skipped.size() + " Intent(s) that caused a pause...");
+                    for(Intent i : skipped)
+                        deadLetter(i);
+                    resumePaused();
+                    return;
+                }
+                
+                // This is a COMMAND_ABORT.  Anything still running is on its
+                // own now.
                 Log.d(DEBUG_TAG, "Emptying out the queue (removing " + mQueue.size() + " Intents)...");
-                onQueueEmpty(false);
-                mQueue.clear();
-                stopSelf();
+                stopWorkers();
             }
+            
+            // Simply empty the queue (but call the callback first).
+            onQueueEmpty(false);
+            clearQueue();
+            stopSelf();
         } else {
             // If this isn't a control message, add the intent to the queue.
             Log.d(DEBUG_TAG, "Enqueueing an Intent!");
-            mQueue.add(intent);
-            
-            // Next, if the thread isn't already running (AND we're not paused),
-            // make it run.  If it IS running, we'll just process the next one
-            // in turn.
-            if(isPaused() && resumeOnNewIntent()) {
-                Log.d(DEBUG_TAG, "Queue was paused, resuming it now!");
-                
-                if(mThread != null && mThread.isAlive()) {
-                    Log.e(DEBUG_TAG, "isPaused returned true, but the thread is still alive?  What?");
-                    // Last ditch effort: Try to interrupt the thread to death.
-                    mThread.interrupt();
+            enqueue(intent);
+        }
+    }
+    
+    /**
+     * Adds the Intent to the queue and gets a worker going on it, if it can
+     * go right now.
+     * 
+     * @param intent the Intent to add
+     */
+    private void enqueue(Intent intent) {
+        addToQueue(intent);
+        
+        synchronized(mWorkerLock) {
+            // Next, if there's a worker free (AND this isn't paused), make it
+            // run.  If not, we'll just process this one in turn.
+            if(mPausedKeys.containsKey(getKey(intent))) {
+                if(resumeOnNewIntent() && !mRetryAt.containsKey(getKey(intent))) {
+                    Log.d(DEBUG_TAG, "Queue was paused, resuming it now!");
+                    resumePaused();
                 }
-                
+            } else {
+                // Nothing with this key is paused, so it can go ahead even if
+                // other keys are.
                 mIsPaused = false;
-                doNewThread();
-            } else if(!isPaused() && (mThread == null || !mThread.isAlive())) {
-                Log.d(DEBUG_TAG, "Starting the thread fresh...");
-                doNewThread();
+                startWorkers();
+            }
+        }
+    }
+    
+    /**
+     * Puts all the dead letters back on the end of the queue.  Each one goes
+     * back in the queue's journal before it comes out of the dead letter
+     * journal, same as {@link #deadLetter(Intent)} but the other way around.
+     */
+    private void requeueDeadLetters() {
+        // Take them all out of the map first.  Once one's back in the queue,
+        // a worker might grab it and give up on it again before we're done
+        // here, and that needs to make a NEW dead letter, not trip over the
+        // old one.
+        List<Intent> intents = new ArrayList<Intent>();
+        List<Long> ids = new ArrayList<Long>();
+        
+        synchronized(mDeadLetters) {
+            for(Map.Entry<Intent, Long> e : mDeadLetters.entrySet()) {
+                intents.add(e.getKey());
+                ids.add(e.getValue());
+            }
+            
+            mDeadLetters.clear();
+        }
+        
+        Log.d(DEBUG_TAG, "Requeueing " + intents.size() + " dead letter(s)...");
+        
+        for(int i = 0; i < intents.size(); i++) {
+            enqueue(intents.get(i));
+            mDeadJournal.complete(ids.get(i));
+        }
+    }
+    
+    // Everything from here down to QueueWorker must be called with
+    // mWorkerLock held.
+    
+    private Object getKey(Intent i) {
+        QueueEntry entry = mEntries.get(i);
+        return (entry != null ? entry.key : makeKey(i));
+    }
+    
+    private Object makeKey(Intent i) {
+        Object key = getOrderingKey(i);
+        return (key == null ? NULL_KEY : key);
+    }
+    
+    private void startWorkers() {
+        if(mActiveWorkers == 0) {
+            // The first worker of a run calls onQueueStart, then brings in
+            // any more workers that can be used.
+            Log.d(DEBUG_TAG, "Starting the queue fresh...");
+            mStarted = false;
+            newWorker(true);
+        } else if(mStarted) {
+            addWorkers();
+        }
+    }
+    
+    private void addWorkers() {
+        // One worker per key that's busy or has something ready to go, up to
+        // the limit.
+        int wanted = Math.min(Math.max(1, getWorkerCount()), mBusyKeys.size() + countReadyKeys());
+        
+        while(mActiveWorkers < wanted)
+            newWorker(false);
+    }
+    
+    private void newWorker(boolean first) {
+        mActiveWorkers++;
+        new Thread(new QueueWorker(mGeneration, first), "QueueService Runner").start();
+    }
+    
+    private void releaseRetryWakeLock() {
+        if(mRetryWakeful != null) {
+            WakefulBroadcastReceiver.completeWakefulIntent(mRetryWakeful);
+            mRetryWakeful = null;
+        }
+    }
+    
+    private void stopWorkers() {
+        // Anybody still busy will notice the generation changed and leave
+        // without touching anything.
+        mGeneration++;
+        mActiveWorkers = 0;
+        mBusyKeys.clear();
+        mPausedKeys.clear();
+        mRetryAt.clear();
+        scheduleRetry();
+        mIsPaused = false;
+    }
+    
+    private void pauseKey(Object key, Intent i, boolean retrying) {
+        // The journal needs to know, so that this stays paused even if the
+        // process doesn't.  It also needs to know if this is just waiting on
+        // a retry, so it doesn't wind up waiting on a resume instead.
+        mPausedKeys.put(key, i);
+        
+        QueueEntry entry = mEntries.get(i);
+        if(entry != null) {
+            if(retrying)
+                mJournal.setRetrying(entry.journalId, entry.attempts);
+            else
+                mJournal.setPaused(entry.journalId, true);
+        }
+    }
+    
+    private void unpauseKey(Object key) {
+        Intent i = mPausedKeys.remove(key);
+        if(i == null)
+            return;
+        
+        QueueEntry entry = mEntries.get(i);
+        if(entry != null)
+            mJournal.setPaused(entry.journalId, false);
+    }
+    
+    private void resumePaused() {
+        // Only the keys that were actually paused.  The ones waiting on a
+        // retry stay in mRetryAt until their alarm comes around.
+        for(Object key : new ArrayList<Object>(mPausedKeys.keySet())) {
+            if(!mRetryAt.containsKey(key))
+                unpauseKey(key);
+        }
+        mIsPaused = false;
+        startWorkers();
+    }
+    
+    private void releaseDueRetries() {
+        // Only keys waiting on a retry ever get let go here.  If the process
+        // got killed since the alarm was set, startRecovered has already put
+        // those back in mRetryAt with a fresh wait, so an old alarm just
+        // finds nothing due.
+        if(mRetryAt.isEmpty())
+            return;
+        
+        // Let anything go that's due.  Alarms can go off late, but never
+        // early, so anything not due yet is still waiting on a later alarm.
+        long now = SystemClock.elapsedRealtime();
+        boolean released = false;
+        
+        Iterator<Map.Entry<Object, Long>> it = mRetryAt.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Object, Long> e = it.next();
+            if(e.getValue() <= now) {
+                unpauseKey(e.getKey());
+                it.remove();
+                released = true;
             }
         }
+        
+        scheduleRetry();
+        
+        if(released) {
+            Log.d(DEBUG_TAG, "Retrying now, " + mRetryAt.size() + " key(s) still waiting...");
+            mIsPaused = false;
+            startWorkers();
+        }
     }
     
-    private void doNewThread() {
-        // Only call this if the old thread isn't running.
-        mThread = new Thread(new QueueThread(), "QueueService Runner");
-        mThread.start();
+    private void scheduleRetry() {
+        // One alarm, for whatever's due soonest.  That one'll set up the next.
+        AlarmManager alarm = (AlarmManager)getSystemService(ALARM_SERVICE);
+        // This goes through RetryReceiver so there's a wakelock held until
+        // the queue gets going again.  The action's just there so that two
+        // different QueueServices don't stomp on each other's alarms.
+        Intent intent = new Intent(this, RetryReceiver.class);
+        intent.setAction(EXTRA_RETRY_SERVICE + "." + getClass().getName());
+        intent.putExtra(EXTRA_RETRY_SERVICE, new ComponentName(this, getClass()));
+        PendingIntent pending = PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        
+        if(mRetryAt.isEmpty()) {
+            alarm.cancel(pending);
+        } else {
+            long soonest = Long.MAX_VALUE;
+            for(Long at : mRetryAt.values())
+                soonest = Math.min(soonest, at);
+            
+            alarm.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, soonest, pending);
+        }
+    }
+    
+    private Intent nextReady() {
+        // The first Intent for each key is the only one that can go, and only
+        // if nothing else with that key is being handled or is paused.  Of
+        // those, take the best one.  Ties go to whoever came first.
+        Set<Object> seen = new HashSet<Object>();
+        long now = SystemClock.elapsedRealtime();
+        
+        Intent best = null;
+        long bestPriority = 0;
+        long bestCost = 0;
+        
+        for(Intent i : mQueue) {
+            QueueEntry entry = mEntries.get(i);
+            Object key = (entry != null ? entry.key : makeKey(i));
+            
+            if(!seen.add(key) || mBusyKeys.contains(key) || mPausedKeys.containsKey(key))
+                continue;
+            
+            long priority = 0;
+            long cost = 0;
+            
+            if(entry != null) {
+                priority = entry.priority + Math.max(0, now - entry.enqueued) / AGING_INTERVAL;
+                cost = entry.cost;
+            }
+            
+            if(best == null || priority > bestPriority || (priority == bestPriority && cost < bestCost)) {
+                best = i;
+                bestPriority = priority;
+                bestCost = cost;
+            }
+        }
+        
+        return best;
+    }
+    
+    private int countReadyKeys() {
+        Set<Object> seen = new HashSet<Object>();
+        int count = 0;
+        
+        for(Intent i : mQueue) {
+            Object key = getKey(i);
+            
+            if(seen.add(key) && !mBusyKeys.contains(key) && !mPausedKeys.containsKey(key))
+                count++;
+        }
+        
+        return count;
     }
 
     /* (non-Javadoc)
@@ -350,18 +1057,84 @@ public abstract class QueueService extends Service {
         return null;
     }
     
-    private class QueueThread implements Runnable {
+    private class QueueWorker implements Runnable {
+        private final int mMyGeneration;
+        private final boolean mFirst;
+        
+        public QueueWorker(int generation, boolean first) {
+            mMyGeneration = generation;
+            mFirst = first;
+        }
 
         @Override
         public void run() {
-            // Now!  Loop through the queue!
-            Intent i;
-            
-            if(!mQueue.isEmpty())
-                onQueueStart();
+            if(mFirst) {
+                if(!mQueue.isEmpty())
+                    onQueueStart();
+                
+                // Now that that's done, bring in any help we can use.  Also,
+                // if the retry alarm woke us up, the subclass has its own
+                // wakelock by now, so let go of the alarm's.
+                synchronized(mWorkerLock) {
+                    releaseRetryWakeLock();
+                    
+                    if(mMyGeneration != mGeneration)
+                        return;
+                    
+                    mStarted = true;
+                    addWorkers();
+                }
+            }
             
-            while(!mQueue.isEmpty()) {
-                i = mQueue.peek();
+            // Now!  Loop through the queue!
+            while(true) {
+                Intent i;
+                Object key;
+                boolean allDone = false;
+                Intent pausedOn = null;
+                
+                synchronized(mWorkerLock) {
+                    if(mMyGeneration != mGeneration)
+                        return;
+                    
+                    i = nextReady();
+                    
+                    if(i == null) {
+                        // Nothing left that we can do.  If we're the last
+                        // one out, figure out why.
+                        mActiveWorkers--;
+                        if(mActiveWorkers > 0)
+                            return;
+                        
+                        if(mQueue.isEmpty()) {
+                            allDone = true;
+                        } else if(!mPausedKeys.isEmpty()) {
+                            // Everything left is paused.  Report the most
+                            // recent pause.
+                            for(Intent paused : mPausedKeys.values())
+                                pausedOn = paused;
+                            mIsPaused = true;
+                        }
+                        
+                        key = null;
+                    } else {
+                        key = getKey(i);
+                        mBusyKeys.add(key);
+                    }
+                }
+                
+                if(i == null) {
+                    if(allDone) {
+                        // If we got here, then hey!  The queue's done!
+                        Log.d(DEBUG_TAG, "Processing complete.");
+                        onQueueEmpty(true);
+                        stopSelf();
+                    } else if(pausedOn != null) {
+                        Log.d(DEBUG_TAG, "Everything left is paused.");
+                        onQueuePause(pausedOn);
+                    }
+                    return;
+                }
 
                 Log.d(DEBUG_TAG, "Processing intent...");
                 
@@ -369,34 +1142,72 @@ public abstract class QueueService extends Service {
                 
                 Log.d(DEBUG_TAG, "Intent processed, return code is " + r);
                 
-                // Return check!
-                if(r == ReturnCode.STOP) {
-                    // If the return code we got instructed us to stop entirely,
-                    // wipe the queue and bail out.
-                    Log.d(DEBUG_TAG, "Return said to stop, stopping now and abandoning " + mQueue.size() + " Intent(s).");
-                    onQueueEmpty(false);
-                    mQueue.clear();
-                    stopSelf();
-                    return;
-                } else if(r == ReturnCode.CONTINUE) {
-                    // CONTINUE means processing was a success, so we can yoink
-                    // the Intent from the front of the queue and scrap it.
-                    Log.d(DEBUG_TAG, "Return said to continue.");
-                    mQueue.remove();
-                } else if(r == ReturnCode.PAUSE) {
-                    // If we were told to pause, well, pause.  We'll be told to
-                    // try again later.
-                    Log.d(DEBUG_TAG, "Return said to pause.");
-
-                    mIsPaused = true;
-                    onQueuePause(i);
-                    return;
+                synchronized(mWorkerLock) {
+                    // If the queue got stopped while we were busy, none of
+                    // this matters anymore.
+                    if(mMyGeneration != mGeneration)
+                        return;
+                    
+                    mBusyKeys.remove(key);
+                    
+                    // Return check!
+                    if(r == ReturnCode.STOP) {
+                        // If the return code we got instructed us to stop
+                        // entirely, wipe the queue and bail out.
+                        Log.d(DEBUG_TAG, "Return said to stop, stopping now and abandoning " + mQueue.size() + " Intent(s).");
+                        stopWorkers();
+                    } else if(r == ReturnCode.CONTINUE) {
+                        // CONTINUE means processing was a success, so we can
+                        // yoink the Intent from the queue and scrap it.
+                        Log.d(DEBUG_TAG, "Return said to continue.");
+                        removeFromQueue(i);
+                        
+                        // That might've freed up the next one with this key
+                        // for somebody else to take.
+                        addWorkers();
+                        continue;
+                    } else if(r == ReturnCode.PAUSE) {
+                        // If we were told to pause, well, pause this key.
+                        // We'll be told to try again later.
+                        Log.d(DEBUG_TAG, "Return said to pause.");
+                        pauseKey(key, i, false);
+                        if(mRetryAt.remove(key) != null)
+                            scheduleRetry();
+                        continue;
+                    } else if(r == ReturnCode.RETRY) {
+                        QueueEntry entry = mEntries.get(i);
+                        int attempts = 1;
+                        if(entry != null)
+                            attempts = ++entry.attempts;
+                        
+                        if(attempts >= getMaxAttempts(i)) {
+                            Log.w(DEBUG_TAG, "Return said to retry, but that was try " + attempts + ", giving up on it.");
+                            deadLetter(i);
+                            addWorkers();
+                        } else {
+                            // Hold up this key like a pause, but set an alarm
+                            // to come back to it.
+                            long delay = getRetryDelay(i, attempts);
+                            Log.d(DEBUG_TAG, "Return said to retry, trying again in " + (delay / 1000) + " second(s).");
+                            pauseKey(key, i, true);
+                            mRetryAt.put(key, SystemClock.elapsedRealtime() + delay);
+                            scheduleRetry();
+                        }
+                        continue;
+                    } else if(r == ReturnCode.FAIL) {
+                        Log.w(DEBUG_TAG, "Return said it failed, moving it to the dead letters.");
+                        deadLetter(i);
+                        addWorkers();
+                        continue;
+                    }
                 }
+                
+                // That was a STOP.
+                onQueueEmpty(false);
+                clearQueue();
+                stopSelf();
+                return;
             }
-            // If we got here, then hey!  The thread's done!
-            Log.d(DEBUG_TAG, "Processing complete.");
-            onQueueEmpty(true);
-            stopSelf();
         }
     }
     
@@ -419,10 +1230,106 @@ public abstract class QueueService extends Service {
      * @return true to resume on a new Intent, false to remain paused
      */
     protected abstract boolean resumeOnNewIntent();
+    
+    /**
+     * Gets how many Intents can be handled at once.  By default, this is one,
+     * meaning everything's handled one at a time, in order.  Return more than
+     * that to handle Intents with different ordering keys (see
+     * {@link #getOrderingKey(Intent)}) in parallel.  If you do,
+     * {@link #handleIntent(Intent)} will get called from several threads at
+     * once, so make sure it can take it.
+     * 
+     * @return the most Intents to handle at once
+     */
+    protected int getWorkerCount() {
+        return 1;
+    }
+    
+    /**
+     * <p>
+     * Gets the ordering key for the given Intent.  Intents with equal keys
+     * (as per equals() and hashCode()) are always handled one at a time, in
+     * the order they came in, and a {@link ReturnCode#PAUSE} only holds up
+     * Intents with the same key as the one that paused.  By default, this
+     * returns null for everything, meaning everything's in the same line.
+     * </p>
+     * 
+     * <p>
+     * This is only called once per Intent, when it's added to the queue (or
+     * read back in at onCreate time), so it's fine if it has to dig through
+     * the extras a bit.  The key should never change after that.
+     * </p>
+     * 
+     * @param i the Intent in question
+     * @return its key (null is a key like any other)
+     */
+    protected Object getOrderingKey(Intent i) {
+        return null;
+    }
+    
+    /**
+     * Gets the priority of the given Intent.  When more than one ordering key
+     * has an Intent ready, the highest priority goes first.  Waiting in the
+     * queue bumps this up by one every {@link #AGING_INTERVAL}.  This is only
+     * called once per Intent, when it's added to the queue (or read back in at
+     * onCreate time).  By default, everything's zero.
+     * 
+     * @param i the Intent in question
+     * @return its priority (higher goes sooner)
+     */
+    protected int getPriority(Intent i) {
+        return 0;
+    }
+    
+    /**
+     * Gets a rough guess of how much work the given Intent is, in whatever
+     * units make sense (bytes to upload, for instance).  Between two Intents
+     * of the same priority, the cheaper one goes first.  Like
+     * {@link #getPriority(Intent)}, this is only called once per Intent.  By
+     * default, everything's zero.
+     * 
+     * @param i the Intent in question
+     * @return its estimated cost (zero or more)
+     */
+    protected long getEstimatedCost(Intent i) {
+        return 0;
+    }
+
+    /**
+     * Gets how many times the given Intent can come back
+     * {@link ReturnCode#RETRY} before it's given up on and moved to the dead
+     * letters.  By default, this is {@link #DEFAULT_MAX_ATTEMPTS}.
+     * 
+     * @param i the Intent in question
+     * @return the most tries it gets (one or more)
+     */
+    protected int getMaxAttempts(Intent i) {
+        return DEFAULT_MAX_ATTEMPTS;
+    }
+    
+    /**
+     * Gets how long to wait before trying the given Intent again after a
+     * {@link ReturnCode#RETRY}.  By default, this starts at
+     * {@link #RETRY_BASE_DELAY} and doubles every time up to
+     * {@link #RETRY_MAX_DELAY}, give or take a quarter at random so a bunch of
+     * things that failed together don't all come back together.
+     * 
+     * @param i the Intent in question
+     * @param attempts how many times it's been tried so far (one or more)
+     * @return how long to wait, in milliseconds
+     */
+    protected long getRetryDelay(Intent i, int attempts) {
+        long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(Math.max(0, attempts - 1), 16));
+        long spread = delay / 2;
+        
+        return delay - spread / 2 + (long)(mRandom.nextDouble() * spread);
+    }
 
     /**
      * Subclasses get this called every time something from the queue comes in
-     * to be processed.  This will not be called on the main thread.  There will
+     * to be processed.  This will not be called on the main thread, and if
+     * {@link #getWorkerCount()} is more than one, it might be called from
+     * several threads at once.  There will
      * be no callback on successful processing of an individual Intent, but
      * {@link #onQueuePause(Intent)} will be called if the queue is paused, and
      * {@link #onQueueEmpty(boolean)} will be called at the end of all processing.
@@ -445,8 +1352,21 @@ public abstract class QueueService extends Service {
      * <p>
      * This gets called if the queue needs to be paused for some reason.  The
      * Intent that caused the pause will be included.  The thread will be killed
-     * after this callback returns.  However, {@link #isPaused()} will return
-     * false if called during this callback.  Try not to block it.
+     * after this callback returns.  Try not to block it.
+     * </p>
+     * 
+     * <p>
+     * If Intents are handled in parallel, this is only called once nothing
+     * else can be done, that is, when everything left in the queue has an
+     * ordering key that's paused.  The Intent given is the most recent one to
+     * cause a pause.
+     * </p>
+     * 
+     * <p>
+     * A key waiting on a {@link ReturnCode#RETRY} counts as paused, too, so
+     * this also gets called if everything left is waiting to be retried.  In
+     * that case, the queue will start itself back up (with another call to
+     * {@link #onQueueStart()}) when the time comes.
      * </p>
      * 
      * <p>
@@ -489,16 +1409,17 @@ public abstract class QueueService extends Service {
      * Serializes the given Intent to disk for later re-reading.  Note that at
      * this point, an Intent is solely used as a means of storing data.  Which,
      * really, it can be, though I doubt that's why it was made.  This gets
-     * called at onDestroy time for each Intent left in the queue (if any are
-     * left at all) so that they can be recreated at onCreate time to persist
-     * the Service's state (there doesn't appear to be an onSaveInstanceState
-     * like you'd get with Activities).
+     * called once for each Intent as it comes in, before it goes in the queue,
+     * so that it can be recreated at onCreate time to persist the Service's
+     * state (there doesn't appear to be an onSaveInstanceState like you'd get
+     * with Activities).  The stream is in memory and goes to the journal once
+     * this returns, so make sure to flush anything you wrapped around it.
      * </p>
      * 
      * <p>
      * Note that no checking is done to ensure you actually wrote anything to
-     * the stream.  If the result is a zero-byte file, that's your
-     * responsibility to handle it at deserialize time.
+     * the stream.  If the result is zero bytes, that's your responsibility to
+     * handle it at deserialize time.
      * </p>
      * 
      * @param i the Intent to serialize
@@ -0,0 +1,163 @@
+/**
+ * SharedHttpClient.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * <p>
+ * <code>SharedHttpClient</code> hands out HttpClients that all share one
+ * process-wide, thread-safe pool of keep-alive connections.  Setting up a new
+ * TCP connection for every short request costs more than the request itself
+ * on a slow mobile link, so everything that talks HTTP should come through
+ * here instead of making its own DefaultHttpClient.
+ * </p>
+ *
+ * <p>
+ * There are two flavors.  {@link #get()} is one client for everybody, which is
+ * fine for anything that doesn't care about cookies (like stock fetches).
+ * {@link #newSession()} makes a new client with its own cookies, for anything
+ * that logs in somewhere (like the wiki), so two sessions don't trample each
+ * other's logins.  Those are cheap; the connections underneath still come out
+ * of the same pool.
+ * </p>
+ *
+ * <p>
+ * Remember that a pooled connection only goes back in the pool when its
+ * response has been read all the way through (or the request's aborted).  Use
+ * {@link #consume(HttpEntity)} when you're done with a response.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class SharedHttpClient {
+    /** Default time to wait for a connection to be made, in milliseconds. */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    /** Default time to wait on data from a connection, in milliseconds. */
+    public static final int DEFAULT_READ_TIMEOUT = 20000;
+    /** Default maximum connections to keep open to any one host. */
+    public static final int DEFAULT_MAX_PER_ROUTE = 4;
+    /** Default maximum connections to keep open, total. */
+    public static final int DEFAULT_MAX_TOTAL = 12;
+
+    // How long a connection can sit idle in the pool before we close it.
+    // Servers tend to drop them after about this long anyway.
+    private static final long IDLE_TIMEOUT = 30;
+
+    private static HttpParams mParams;
+    private static ClientConnectionManager mConnManager;
+    private static DefaultHttpClient mClient;
+
+    private SharedHttpClient() { }
+
+    private static synchronized void init() {
+        if(mConnManager != null)
+            return;
+
+        mParams = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(mParams, DEFAULT_CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(mParams, DEFAULT_READ_TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(mParams, true);
+        HttpProtocolParams.setUseExpectContinue(mParams, false);
+        ConnManagerParams.setMaxTotalConnections(mParams, DEFAULT_MAX_TOTAL);
+        ConnManagerParams.setMaxConnectionsPerRoute(mParams, new ConnPerRouteBean(DEFAULT_MAX_PER_ROUTE));
+        // Don't wait forever on the pool, either.
+        ConnManagerParams.setTimeout(mParams, DEFAULT_CONNECT_TIMEOUT);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        mConnManager = new ThreadSafeClientConnManager(mParams, registry);
+        mClient = new DefaultHttpClient(mConnManager, mParams);
+    }
+
+    /**
+     * Gets the shared HttpClient.  Don't use this for anything where cookies
+     * matter; everybody shares the same cookie jar here.
+     *
+     * @return the shared HttpClient
+     */
+    public static HttpClient get() {
+        init();
+        closeIdleConnections();
+        return mClient;
+    }
+
+    /**
+     * Makes a new HttpClient with its own cookies, but using the shared
+     * connection pool.  Use this for anything that logs in.
+     *
+     * @return a new HttpClient
+     */
+    public static HttpClient newSession() {
+        init();
+        closeIdleConnections();
+        return new DefaultHttpClient(mConnManager, mParams);
+    }
+
+    /**
+     * Changes the connection and read timeouts.  This affects every client,
+     * including ones already handed out.
+     *
+     * @param connectTimeout time to wait for a connection, in milliseconds
+     * @param readTimeout time to wait on data, in milliseconds
+     */
+    public static synchronized void setTimeouts(int connectTimeout, int readTimeout) {
+        init();
+        HttpConnectionParams.setConnectionTimeout(mParams, connectTimeout);
+        HttpConnectionParams.setSoTimeout(mParams, readTimeout);
+        ConnManagerParams.setTimeout(mParams, connectTimeout);
+    }
+
+    /**
+     * Closes any pooled connections that have been sitting around unused for
+     * a while.  This gets called every time a client is handed out, so you
+     * shouldn't ever need to call it yourself.
+     */
+    public static void closeIdleConnections() {
+        if(mConnManager != null) {
+            mConnManager.closeExpiredConnections();
+            mConnManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Reads out whatever's left of a response so its connection can go back
+     * in the pool.  Any exception along the way is ignored, since at worst
+     * the connection gets thrown away instead of reused.
+     *
+     * @param entity the response entity (can be null)
+     */
+    public static void consume(HttpEntity entity) {
+        if(entity == null)
+            return;
+
+        try {
+            entity.consumeContent();
+        } catch (Exception e) {
+            // Whatever.  We're done with it anyway.
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * WikiIntentCodecTest.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import net.exclaimindustries.geohashdroid.BuildConfig;
+import net.exclaimindustries.geohashdroid.util.Graticule;
+import net.exclaimindustries.geohashdroid.util.Info;
+import net.exclaimindustries.tools.EpochDay;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Intent;
+import android.location.Location;
+import android.net.Uri;
+
+/**
+ * Tests for {@link WikiIntentCodec}.  Robolectric's only here so Intent, Uri,
+ * and Location are real things and not stubs that throw.
+ *
+ * @author Nicholas Killewald
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class WikiIntentCodecTest {
+    private static final double DELTA = 0.0;
+
+    private TimeZone mOldZone;
+
+    @Before
+    public void setUp() {
+        mOldZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mOldZone);
+    }
+
+    @Test
+    public void roundTripGraticule() throws IOException {
+        Intent i = makeIntent(new Graticule(37, false, 122, true), EpochDay.of(2015, 3, 14));
+
+        assertSameExtras(i, read(write(i)));
+    }
+
+    @Test
+    public void roundTripGlobalhash() throws IOException {
+        Intent i = makeIntent(null, EpochDay.of(2015, 3, 14));
+
+        Intent back = read(write(i));
+        assertSameExtras(i, back);
+        assertTrue(getInfo(back).isGlobalHash());
+    }
+
+    @Test
+    public void roundTripSouthEast() throws IOException {
+        // Zero graticules and south/east flags are the easy ones to get
+        // wrong, so throw those in too.
+        Intent i = makeIntent(new Graticule(0, true, 0, false), EpochDay.of(2008, 5, 21));
+
+        assertSameExtras(i, read(write(i)));
+    }
+
+    @Test
+    public void roundTripEmpty() throws IOException {
+        Intent back = read(write(new Intent()));
+
+        assertNull(back.getSerializableExtra(WikiService.EXTRA_TIMESTAMP));
+        assertNull(back.getParcelableExtra(WikiService.EXTRA_LOCATION));
+        assertNull(back.getParcelableExtra(WikiService.EXTRA_IMAGE));
+        assertNull(back.getParcelableExtra(WikiService.EXTRA_INFO));
+        assertNull(back.getStringExtra(WikiService.EXTRA_MESSAGE));
+    }
+
+    @Test
+    public void roundTripPartial() throws IOException {
+        // Just an Info and a message, which is what a plain message post
+        // without a location looks like.
+        Intent i = new Intent();
+        i.putExtra(WikiService.EXTRA_INFO, new Info(51.25, -0.75, new Graticule(51, false, 0, true), EpochDay.of(2015, 1, 2).toCalendar()));
+        i.putExtra(WikiService.EXTRA_MESSAGE, "");
+
+        Intent back = read(write(i));
+        assertSameExtras(i, back);
+        assertNull(back.getParcelableExtra(WikiService.EXTRA_LOCATION));
+        assertNull(back.getParcelableExtra(WikiService.EXTRA_IMAGE));
+    }
+
+    @Test
+    public void roundTripAwkwardMessage() throws IOException {
+        // Newlines and colons were what the old format choked on.
+        Intent i = makeIntent(new Graticule(1, false, 2, false), EpochDay.of(2015, 6, 1));
+        i.putExtra(WikiService.EXTRA_MESSAGE, "Line one\nline:two\r\n漢字 😀");
+
+        assertSameExtras(i, read(write(i)));
+    }
+
+    @Test
+    public void migrateTextGraticule() throws IOException {
+        Intent i = makeIntent(new Graticule(37, false, 122, true), EpochDay.of(2015, 3, 14));
+
+        Intent back = read(writeOldText(i));
+        assertSameExtras(i, back);
+
+        // And it should survive going out in the new format, too.
+        assertSameExtras(i, read(write(back)));
+    }
+
+    @Test
+    public void migrateTextGlobalhash() throws IOException {
+        // The old format wrote a globalhash's final coordinates rather than
+        // the hash values, so this makes sure those get turned back.
+        Intent i = makeIntent(null, EpochDay.of(2015, 3, 14));
+
+        Intent back = read(writeOldText(i));
+        Info info = getInfo(back);
+        assertTrue(info.isGlobalHash());
+        assertEquals(getInfo(i).getLatitude(), info.getLatitude(), 1e-9);
+        assertEquals(getInfo(i).getLongitude(), info.getLongitude(), 1e-9);
+        assertEquals(getInfo(i).getEpochDay(), info.getEpochDay());
+
+        Info again = getInfo(read(write(back)));
+        assertEquals(info.getLatitudeHash(), again.getLatitudeHash(), DELTA);
+        assertEquals(info.getLongitudeHash(), again.getLongitudeHash(), DELTA);
+        assertEquals(info.getEpochDay(), again.getEpochDay());
+    }
+
+    @Test
+    public void migrateTextEmpty() throws IOException {
+        // The old format turned a completely empty file into an Intent with
+        // nothing in it, so that should keep working.
+        Intent back = read(new byte[0]);
+
+        assertNull(back.getParcelableExtra(WikiService.EXTRA_INFO));
+        assertNull(back.getStringExtra(WikiService.EXTRA_MESSAGE));
+    }
+
+    @Test
+    public void dateSurvivesTimeZoneChange() throws IOException {
+        // Queue it up somewhere well behind UTC...
+        TimeZone.setDefault(TimeZone.getTimeZone("Pacific/Honolulu"));
+        EpochDay day = EpochDay.of(2015, 3, 14);
+        Intent i = makeIntent(new Graticule(21, false, 157, true), day);
+        byte[] data = write(i);
+
+        // ...then fly somewhere well ahead of it before it gets sent.
+        TimeZone.setDefault(TimeZone.getTimeZone("Pacific/Kiritimati"));
+        assertEquals(day, getInfo(read(data)).getEpochDay());
+    }
+
+    @Test
+    public void truncatedRecordsThrow() throws IOException {
+        byte[] data = write(makeIntent(new Graticule(37, false, 122, true), EpochDay.of(2015, 3, 14)));
+
+        // Everything in a record is needed, so any prefix of it is bad.
+        for(int len = 1; len < data.length; len++) {
+            try {
+                read(Arrays.copyOf(data, len));
+                fail("Truncated to " + len + " of " + data.length + " bytes, but it read anyway");
+            } catch (IOException ioe) {
+                // Good.
+            }
+        }
+    }
+
+    @Test
+    public void unknownVersionThrows() throws IOException {
+        byte[] data = write(makeIntent(null, EpochDay.of(2015, 3, 14)));
+        data[1] = (byte)99;
+
+        try {
+            read(data);
+            fail("Read a record with an unknown version");
+        } catch (IOException ioe) {
+            // Good.
+        }
+    }
+
+    @Test
+    public void mutatedRecordsOnlyThrowIOException() throws IOException {
+        // Whatever garbage ends up on disk, the queue should only ever see an
+        // IOException, never something it doesn't know to catch.  Fixed seed,
+        // so any failure is repeatable.
+        Random rand = new Random(8675309);
+        byte[] good = write(makeIntent(new Graticule(37, false, 122, true), EpochDay.of(2015, 3, 14)));
+
+        for(int n = 0; n < 5000; n++) {
+            byte[] data = good.clone();
+            int changes = rand.nextInt(4) + 1;
+
+            for(int c = 0; c < changes; c++)
+                data[rand.nextInt(data.length)] = (byte)rand.nextInt(256);
+
+            tryRead(data);
+        }
+
+        for(int n = 0; n < 5000; n++) {
+            byte[] data = new byte[rand.nextInt(64)];
+            rand.nextBytes(data);
+
+            // Make half of them look binary, so they get past the first check.
+            if(data.length > 0 && rand.nextBoolean())
+                data[0] = (byte)WikiIntentCodec.MAGIC;
+
+            tryRead(data);
+        }
+    }
+
+    private static void tryRead(byte[] data) {
+        try {
+            read(data);
+        } catch (IOException ioe) {
+            // That's fine.
+        } catch (RuntimeException re) {
+            fail("Got " + re + " reading " + Arrays.toString(data));
+        }
+    }
+
+    private static Intent makeIntent(Graticule g, EpochDay day) {
+        Intent i = new Intent();
+
+        Calendar timestamp = Calendar.getInstance();
+        timestamp.setTimeInMillis(1426343400000L);
+        i.putExtra(WikiService.EXTRA_TIMESTAMP, timestamp);
+
+        Location loc = new Location("");
+        loc.setLatitude(37.421542);
+        loc.setLongitude(-122.085589);
+        i.putExtra(WikiService.EXTRA_LOCATION, loc);
+
+        i.putExtra(WikiService.EXTRA_IMAGE, Uri.parse("content://media/external/images/media/1234"));
+        // Info wants the final coordinates for a graticule, but the raw hash
+        // values for a globalhash.
+        double lat = 0.123456789;
+        double lon = 0.987654321;
+        if(g != null) {
+            lat = (g.getLatitude() + lat) * (g.isSouth() ? -1 : 1);
+            lon = (g.getLongitude() + lon) * (g.isWest() ? -1 : 1);
+        }
+        i.putExtra(WikiService.EXTRA_INFO, new Info(lat, lon, g, day.toCalendar()));
+        i.putExtra(WikiService.EXTRA_MESSAGE, "Reached the point!");
+
+        return i;
+    }
+
+    private static Info getInfo(Intent i) {
+        Info toReturn = i.getParcelableExtra(WikiService.EXTRA_INFO);
+        assertNotNull(toReturn);
+        return toReturn;
+    }
+
+    private static void assertSameExtras(Intent expected, Intent actual) {
+        Calendar eTime = (Calendar)expected.getSerializableExtra(WikiService.EXTRA_TIMESTAMP);
+        Calendar aTime = (Calendar)actual.getSerializableExtra(WikiService.EXTRA_TIMESTAMP);
+        if(eTime == null)
+            assertNull(aTime);
+        else
+            assertEquals(eTime.getTimeInMillis(), aTime.getTimeInMillis());
+
+        Location eLoc = expected.getParcelableExtra(WikiService.EXTRA_LOCATION);
+        Location aLoc = actual.getParcelableExtra(WikiService.EXTRA_LOCATION);
+        if(eLoc == null) {
+            assertNull(aLoc);
+        } else {
+            assertEquals(eLoc.getLatitude(), aLoc.getLatitude(), DELTA);
+            assertEquals(eLoc.getLongitude(), aLoc.getLongitude(), DELTA);
+        }
+
+        Uri eUri = expected.getParcelableExtra(WikiService.EXTRA_IMAGE);
+        Uri aUri = actual.getParcelableExtra(WikiService.EXTRA_IMAGE);
+        if(eUri == null)
+            assertNull(aUri);
+        else
+            assertEquals(eUri.toString(), aUri.toString());
+
+        Info eInfo = expected.getParcelableExtra(WikiService.EXTRA_INFO);
+        Info aInfo = actual.getParcelableExtra(WikiService.EXTRA_INFO);
+        if(eInfo == null) {
+            assertNull(aInfo);
+        } else {
+            assertNotNull(aInfo);
+            assertEquals(eInfo.getLatitude(), aInfo.getLatitude(), DELTA);
+            assertEquals(eInfo.getLongitude(), aInfo.getLongitude(), DELTA);
+            assertEquals(eInfo.getEpochDay(), aInfo.getEpochDay());
+            assertEquals(eInfo.isGlobalHash(), aInfo.isGlobalHash());
+            if(!eInfo.isGlobalHash())
+                assertEquals(eInfo.getGraticule(), aInfo.getGraticule());
+        }
+
+        String eMessage = expected.getStringExtra(WikiService.EXTRA_MESSAGE);
+        String aMessage = actual.getStringExtra(WikiService.EXTRA_MESSAGE);
+        if(eMessage == null || eMessage.isEmpty())
+            assertFalse(aMessage != null && !aMessage.isEmpty());
+        else
+            assertEquals(eMessage, aMessage);
+    }
+
+    private static byte[] write(Intent i) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WikiIntentCodec.write(i, out);
+        return out.toByteArray();
+    }
+
+    private static Intent read(byte[] data) throws IOException {
+        return WikiIntentCodec.read(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Writes an Intent the way the queue used to, before the binary format.
+     * This is just the old serializer, so there's something to migrate from.
+     */
+    private static byte[] writeOldText(Intent i) throws IOException {
+        StringBuilder builder = new StringBuilder();
+
+        Calendar cal = (Calendar)i.getSerializableExtra(WikiService.EXTRA_TIMESTAMP);
+        if(cal != null)
+            builder.append(cal.getTimeInMillis());
+        builder.append('\n');
+
+        Location loc = i.getParcelableExtra(WikiService.EXTRA_LOCATION);
+        if(loc != null)
+            builder.append(Double.toString(loc.getLatitude())).append(':').append(Double.toString(loc.getLongitude()));
+        builder.append('\n');
+
+        Uri uri = i.getParcelableExtra(WikiService.EXTRA_IMAGE);
+        if(uri != null)
+            builder.append(uri.toString());
+        builder.append('\n');
+
+        Info info = i.getParcelableExtra(WikiService.EXTRA_INFO);
+        if(info != null) {
+            builder.append(Double.toString(info.getLatitude())).append(':')
+                    .append(Double.toString(info.getLongitude())).append(':')
+                    .append(Long.toString(info.getDate().getTime())).append(':');
+
+            if(!info.isGlobalHash()) {
+                Graticule g = info.getGraticule();
+                builder.append(g.getLatitude()).append(':')
+                        .append(g.isSouth() ? '1' : '0').append(':')
+                        .append(g.getLongitude()).append(':')
+                        .append(g.isWest() ? '1' : '0');
+            }
+        }
+        builder.append('\n');
+
+        String message = i.getStringExtra(WikiService.EXTRA_MESSAGE);
+        if(message != null)
+            builder.append(Uri.encode(message));
+
+        return builder.toString().getBytes("UTF-8");
+    }
+}
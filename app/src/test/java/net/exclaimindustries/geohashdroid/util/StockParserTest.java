@@ -0,0 +1,164 @@
+/**
+ * StockParserTest.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link StockParser}.
+ *
+ * @author Nicholas Killewald
+ */
+public class StockParserTest {
+    @Test
+    public void plainStocks() throws IOException {
+        assertParses("17776.12", "17776.12");
+        assertParses("17776", "17776");
+        assertParses("0.5", "0.5");
+        assertParses(".5", ".5");
+        assertParses("5.", "5.");
+    }
+
+    @Test
+    public void surroundingWhitespaceIsTrimmed() throws IOException {
+        assertParses("17776.12", "17776.12\n");
+        assertParses("17776.12", "  17776.12\r\n");
+        assertParses("17776.12", "\t17776.12 ");
+    }
+
+    @Test
+    public void garbageIsRejected() throws IOException {
+        assertRejected("");
+        assertRejected("   \n");
+        assertRejected(".");
+        assertRejected("1.2.3");
+        assertRejected("177 76.12");
+        assertRejected("-17776.12");
+        assertRejected("+17776.12");
+        assertRejected("1e4");
+        assertRejected("17,776.12");
+        assertRejected("<html><body>404 Not Found</body></html>");
+    }
+
+    @Test
+    public void nonAsciiIsRejected() {
+        // Fullwidth digits, which would turn into something else entirely if
+        // they got squashed down to a byte.
+        assertNull(StockParser.parse("\uff11\uff12\uff13"));
+        // And one that WOULD squash into a '1'.
+        assertNull(StockParser.parse("\u0131"));
+    }
+
+    @Test
+    public void nullIsRejected() {
+        assertNull(StockParser.parse((String)null));
+    }
+
+    @Test
+    public void lengthLimit() throws IOException {
+        String longest = repeat('1', StockParser.MAX_LENGTH);
+        assertParses(longest, longest);
+        assertRejected(longest + "1");
+
+        // Whitespace counts against the limit, too.
+        assertRejected(longest + "\n");
+    }
+
+    @Test
+    public void streamStopsAtGarbage() throws IOException {
+        byte[] html = ("<!DOCTYPE html>" + repeat('x', 100000)).getBytes("US-ASCII");
+        ByteArrayInputStream stream = new ByteArrayInputStream(html);
+
+        assertNull(StockParser.parse(stream));
+        assertTrue("read " + (html.length - stream.available()) + " bytes",
+                html.length - stream.available() <= StockParser.MAX_LENGTH + 1);
+    }
+
+    @Test
+    public void streamStopsWhenTooLong() throws IOException {
+        byte[] digits = repeat('1', 100000).getBytes("US-ASCII");
+        ByteArrayInputStream stream = new ByteArrayInputStream(digits);
+
+        assertNull(StockParser.parse(stream));
+        assertTrue(digits.length - stream.available() <= StockParser.MAX_LENGTH + 1);
+    }
+
+    @Test
+    public void streamHandlesShortReads() throws IOException {
+        // Some streams hand things over a byte at a time.
+        assertEquals("17776.12", StockParser.parse(new TrickleInputStream(" 17776.12\n".getBytes("US-ASCII"))));
+        assertNull(StockParser.parse(new TrickleInputStream("17776.1x".getBytes("US-ASCII"))));
+    }
+
+    @Test
+    public void bufferIsReusedCleanly() throws IOException {
+        // A long one, then a short one.  Nothing from the first should leak
+        // into the second.
+        assertParses("17776.12345", "17776.12345");
+        assertParses("9", "9");
+        assertParses("9", stream("9"));
+    }
+
+    private static void assertParses(String expected, String input) throws IOException {
+        assertEquals(expected, StockParser.parse(input));
+        assertEquals(expected, StockParser.parse(stream(input)));
+    }
+
+    private static void assertParses(String expected, InputStream input) throws IOException {
+        assertEquals(expected, StockParser.parse(input));
+    }
+
+    private static void assertRejected(String input) throws IOException {
+        assertNull(StockParser.parse(input));
+        assertNull(StockParser.parse(stream(input)));
+    }
+
+    private static InputStream stream(String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("US-ASCII"));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static class TrickleInputStream extends InputStream {
+        private final byte[] mData;
+        private int mPos = 0;
+
+        TrickleInputStream(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int read() {
+            return (mPos < mData.length ? mData[mPos++] & 0xff : -1);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if(mPos >= mData.length)
+                return -1;
+            if(length == 0)
+                return 0;
+
+            buffer[offset] = mData[mPos++];
+            return 1;
+        }
+    }
+}
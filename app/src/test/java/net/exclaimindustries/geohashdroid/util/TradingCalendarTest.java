@@ -0,0 +1,156 @@
+/**
+ * TradingCalendarTest.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.exclaimindustries.tools.EpochDay;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TradingCalendar}.  The dates come straight off the NYSE's
+ * published holiday schedules.
+ *
+ * @author Nicholas Killewald
+ */
+public class TradingCalendarTest {
+    @Test
+    public void weekdaysAreOpen() {
+        // A plain old week in 2015, Monday through Friday.
+        for(int day = 9; day <= 13; day++)
+            assertOpen(2015, 3, day);
+    }
+
+    @Test
+    public void weekendsAreClosed() {
+        assertClosed(2015, 3, 14);
+        assertClosed(2015, 3, 15);
+    }
+
+    @Test
+    public void regularHolidays2015() {
+        assertClosed(2015, 1, 1);   // New Year's
+        assertClosed(2015, 1, 19);  // MLK Day
+        assertClosed(2015, 2, 16);  // Washington's Birthday
+        assertClosed(2015, 4, 3);   // Good Friday
+        assertClosed(2015, 5, 25);  // Memorial Day
+        assertClosed(2015, 9, 7);   // Labor Day
+        assertClosed(2015, 11, 26); // Thanksgiving
+        assertClosed(2015, 12, 25); // Christmas
+
+        // The days around them are still business as usual.
+        assertOpen(2015, 1, 2);
+        assertOpen(2015, 4, 2);
+        assertOpen(2015, 11, 27);
+        assertOpen(2015, 12, 24);
+    }
+
+    @Test
+    public void goodFridayFollowsEaster() {
+        assertClosed(2016, 3, 25);
+        assertClosed(2019, 4, 19);
+        assertClosed(2024, 3, 29);
+        assertOpen(2019, 3, 29);
+    }
+
+    @Test
+    public void memorialDayIsTheLastMonday() {
+        // May 2016 has five Mondays; the fourth one is open.
+        assertOpen(2016, 5, 23);
+        assertClosed(2016, 5, 30);
+    }
+
+    @Test
+    public void saturdayHolidaysMoveToFriday() {
+        // Independence Day 2015 was a Saturday.
+        assertClosed(2015, 7, 3);
+        assertOpen(2015, 7, 6);
+
+        // So was Christmas 2021.
+        assertClosed(2021, 12, 24);
+        assertOpen(2021, 12, 27);
+    }
+
+    @Test
+    public void sundayHolidaysMoveToMonday() {
+        assertClosed(2016, 12, 26); // Christmas
+        assertClosed(2017, 1, 2);   // New Year's
+        assertClosed(2022, 6, 20);  // Juneteenth
+        assertOpen(2022, 6, 17);
+    }
+
+    @Test
+    public void saturdayNewYearsDoesNotCloseTheYearBefore() {
+        // January 1, 2022 was a Saturday, and the NYSE was open on New
+        // Year's Eve anyway.
+        assertOpen(2021, 12, 31);
+        assertOpen(2022, 1, 3);
+    }
+
+    @Test
+    public void juneteenthStartsIn2022() {
+        // June 18, 2021 would've been the observed day, but it wasn't a
+        // holiday yet.
+        assertOpen(2021, 6, 18);
+        assertClosed(2023, 6, 19);
+    }
+
+    @Test
+    public void specialClosures() {
+        for(int day = 11; day <= 14; day++)
+            assertClosed(2001, 9, day);
+        assertOpen(2001, 9, 10);
+        assertOpen(2001, 9, 17);
+
+        assertClosed(2012, 10, 29);
+        assertClosed(2012, 10, 30);
+        assertOpen(2012, 10, 31);
+
+        assertClosed(2018, 12, 5);
+        assertClosed(2025, 1, 9);
+    }
+
+    @Test
+    public void outsideTheRangeOnlyWeekendsCount() {
+        // Christmas 1990 was a Tuesday, but that's before holidays are
+        // accounted for.
+        assertOpen(1990, 12, 25);
+        assertClosed(1990, 12, 29);
+        assertOpen(2100, 12, 24);
+        assertClosed(2100, 12, 25);
+    }
+
+    @Test
+    public void onOrBeforeSkipsBackToTheLastTradingDay() {
+        EpochDay open = EpochDay.of(2015, 3, 13);
+        assertEquals(open, TradingCalendar.onOrBefore(open));
+
+        // Saturday and Sunday go back to Friday.
+        assertEquals(open, TradingCalendar.onOrBefore(EpochDay.of(2015, 3, 14)));
+        assertEquals(open, TradingCalendar.onOrBefore(EpochDay.of(2015, 3, 15)));
+
+        // A Friday holiday and the weekend after it go back to Thursday.
+        assertEquals(EpochDay.of(2015, 7, 2), TradingCalendar.onOrBefore(EpochDay.of(2015, 7, 5)));
+
+        // The longest run we know of.
+        assertEquals(EpochDay.of(2001, 9, 10), TradingCalendar.onOrBefore(EpochDay.of(2001, 9, 16)));
+    }
+
+    private static void assertOpen(int year, int month, int day) {
+        assertTrue(year + "-" + month + "-" + day + " should be open",
+                TradingCalendar.isTradingDay(EpochDay.of(year, month, day)));
+    }
+
+    private static void assertClosed(int year, int month, int day) {
+        assertFalse(year + "-" + month + "-" + day + " should be closed",
+                TradingCalendar.isTradingDay(EpochDay.of(year, month, day)));
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * QueueJournalTest.java
+ * Copyright (C)2015 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import net.exclaimindustries.geohashdroid.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link QueueJournal}.  It's all plain java.io; Robolectric's only
+ * here so its log messages have somewhere to go.
+ *
+ * @author Nicholas Killewald
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class QueueJournalTest {
+    // Should match QueueJournal.COMPACT_MIN.
+    private static final int COMPACT_MIN = 32;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private QueueJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "Queue.journal");
+        mJournal = open();
+    }
+
+    @After
+    public void tearDown() {
+        mJournal.close();
+    }
+
+    @Test
+    public void emptyJournalRecoversNothing() {
+        assertTrue(mJournal.recover().isEmpty());
+        assertTrue(mFile.exists());
+    }
+
+    @Test
+    public void pendingEntriesComeBackInOrder() {
+        long a = mJournal.enqueue(bytes("A"));
+        long b = mJournal.enqueue(bytes("B"));
+        long c = mJournal.enqueue(bytes("C"));
+        mJournal.complete(b);
+
+        List<QueueJournal.Entry> entries = reopen();
+
+        assertEquals(2, entries.size());
+        assertEntry(entries.get(0), a, "A", false, 0);
+        assertEntry(entries.get(1), c, "C", false, 0);
+    }
+
+    @Test
+    public void idsKeepGoingUpAfterRecovery() {
+        long a = mJournal.enqueue(bytes("A"));
+        mJournal.complete(mJournal.enqueue(bytes("B")));
+
+        reopen();
+        long c = mJournal.enqueue(bytes("C"));
+
+        assertTrue(c > a + 1);
+    }
+
+    @Test
+    public void tornWriteIsChoppedOff() throws IOException {
+        long a = mJournal.enqueue(bytes("A"));
+        long goodLength = mFile.length();
+        mJournal.enqueue(bytes("B"));
+        mJournal.close();
+
+        // Pretend we died halfway through writing B.
+        truncate(mFile.length() - 3);
+
+        List<QueueJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), a, "A", false, 0);
+        assertEquals(goodLength, mFile.length());
+
+        // And it should be perfectly happy to keep going from there.
+        long c = mJournal.enqueue(bytes("C"));
+        entries = reopen();
+        assertEquals(2, entries.size());
+        assertEntry(entries.get(1), c, "C", false, 0);
+    }
+
+    @Test
+    public void tornLengthIsChoppedOff() throws IOException {
+        mJournal.enqueue(bytes("A"));
+        long goodLength = mFile.length();
+        mJournal.close();
+
+        // Two bytes of the next record's length made it, and nothing else.
+        append(new byte[] {0, 0});
+
+        assertEquals(1, reopen().size());
+        assertEquals(goodLength, mFile.length());
+    }
+
+    @Test
+    public void badChecksumStopsRecovery() throws IOException {
+        long a = mJournal.enqueue(bytes("A"));
+        long goodLength = mFile.length();
+        mJournal.enqueue(bytes("B"));
+        mJournal.enqueue(bytes("C"));
+        mJournal.close();
+
+        // B's payload is the last byte before its checksum.  Flip a bit in it.
+        // C comes after it, so that's gone too, even though it's fine.
+        long bPayload = goodLength + 4 + 9;
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(bPayload);
+            int old = raf.read();
+            raf.seek(bPayload);
+            raf.write(old ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        List<QueueJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), a, "A", false, 0);
+        assertEquals(goodLength, mFile.length());
+    }
+
+    @Test
+    public void absurdLengthStopsRecovery() throws IOException {
+        mJournal.enqueue(bytes("A"));
+        long goodLength = mFile.length();
+        mJournal.close();
+
+        append(new byte[] {(byte)0x7f, (byte)0xff, (byte)0xff, (byte)0xff, 1, 2, 3});
+
+        assertEquals(1, reopen().size());
+        assertEquals(goodLength, mFile.length());
+    }
+
+    @Test
+    public void wrongHeaderStartsOver() throws IOException {
+        mJournal.enqueue(bytes("A"));
+        mJournal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.writeInt(0x12345678);
+        } finally {
+            raf.close();
+        }
+
+        assertTrue(reopen().isEmpty());
+        assertEquals(4, mFile.length());
+    }
+
+    @Test
+    public void completingEnoughCompacts() {
+        // One that sticks around, so there's something to compact down to.
+        long keep = mJournal.enqueue(bytes("K"));
+        long compactLength = mFile.length();
+
+        // Each enqueue/complete pair is two dead records.  One short of the
+        // limit, nothing happens...
+        for(int i = 0; i < COMPACT_MIN / 2 - 1; i++)
+            mJournal.complete(mJournal.enqueue(bytes("X")));
+        assertTrue(mFile.length() > compactLength);
+
+        // ...and one more does it.
+        mJournal.complete(mJournal.enqueue(bytes("X")));
+        assertEquals(compactLength, mFile.length());
+
+        List<QueueJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), keep, "K", false, 0);
+    }
+
+    @Test
+    public void resumesCountAsDeadWeight() {
+        long keep = mJournal.enqueue(bytes("K"));
+        long compactLength = mFile.length();
+
+        // A pause and its resume are two dead records, same as a completed
+        // entry.  Get one short of the limit that way...
+        for(int i = 0; i < COMPACT_MIN / 2 - 1; i++) {
+            mJournal.setPaused(keep, true);
+            mJournal.setPaused(keep, false);
+        }
+
+        // ...then the last two from a completed entry.
+        mJournal.complete(mJournal.enqueue(bytes("X")));
+        assertEquals(compactLength, mFile.length());
+    }
+
+    @Test
+    public void recoveryCountsDeadWeightToo() {
+        long keep = mJournal.enqueue(bytes("K"));
+        long compactLength = mFile.length();
+
+        // Setting pauses never compacts on its own, so this ends up right at
+        // the limit without having compacted yet.
+        for(int i = 0; i < COMPACT_MIN / 2 - 1; i++)
+            mJournal.complete(mJournal.enqueue(bytes("X")));
+        mJournal.setPaused(keep, true);
+        mJournal.setPaused(keep, false);
+        assertTrue(mFile.length() > compactLength);
+
+        // Recovery has to count it all back up the same way to notice.
+        List<QueueJournal.Entry> entries = reopen();
+        assertEquals(compactLength, mFile.length());
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), keep, "K", false, 0);
+    }
+
+    @Test
+    public void notEnoughDeadWeightDoesNotCompact() {
+        // Lots of dead records, but even more live ones.
+        for(int i = 0; i < COMPACT_MIN; i++)
+            mJournal.enqueue(bytes("K"));
+        long before = mFile.length();
+
+        for(int i = 0; i < COMPACT_MIN / 2; i++)
+            mJournal.complete(mJournal.enqueue(bytes("X")));
+
+        assertTrue(mFile.length() > before);
+        assertEquals(COMPACT_MIN, reopen().size());
+    }
+
+    @Test
+    public void pausesAndResumesReplay() {
+        long a = mJournal.enqueue(bytes("A"));
+        long b = mJournal.enqueue(bytes("B"));
+        long c = mJournal.enqueue(bytes("C"));
+        long d = mJournal.enqueue(bytes("D"));
+
+        mJournal.setPaused(a, true);
+        mJournal.setPaused(b, true);
+        mJournal.setPaused(a, false);
+        mJournal.setRetrying(c, 2);
+        mJournal.setRetrying(c, 3);
+
+        List<QueueJournal.Entry> entries = reopen();
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(0), a, "A", false, 0);
+        assertEntry(entries.get(1), b, "B", true, 0);
+        assertEntry(entries.get(2), c, "C", true, 3);
+        assertEntry(entries.get(3), d, "D", false, 0);
+
+        // Whatever came back paused can be resumed, and THAT sticks, too.
+        mJournal.setPaused(b, false);
+        mJournal.setPaused(c, false);
+
+        entries = reopen();
+        assertFalse(entries.get(1).paused);
+        assertFalse(entries.get(2).paused);
+        assertEquals(0, entries.get(2).attempts);
+    }
+
+    @Test
+    public void pausesSurviveCompaction() {
+        long a = mJournal.enqueue(bytes("A"));
+        long b = mJournal.enqueue(bytes("B"));
+        mJournal.setPaused(a, true);
+        mJournal.setRetrying(b, 4);
+
+        for(int i = 0; i < COMPACT_MIN; i++)
+            mJournal.complete(mJournal.enqueue(bytes("X")));
+
+        List<QueueJournal.Entry> entries = reopen();
+        assertEquals(2, entries.size());
+        assertEntry(entries.get(0), a, "A", true, 0);
+        assertEntry(entries.get(1), b, "B", true, 4);
+    }
+
+    @Test
+    public void completingAPausedEntryForgetsThePause() {
+        long a = mJournal.enqueue(bytes("A"));
+        mJournal.setPaused(a, true);
+        mJournal.complete(a);
+
+        // Pausing something that's not pending doesn't do anything.
+        mJournal.setPaused(a, true);
+
+        assertTrue(reopen().isEmpty());
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        mJournal.enqueue(bytes("A"));
+        mJournal.setPaused(mJournal.enqueue(bytes("B")), true);
+        mJournal.clear();
+
+        assertTrue(reopen().isEmpty());
+        assertEquals(4, mFile.length());
+    }
+
+    private QueueJournal open() {
+        QueueJournal journal = new QueueJournal(mFile);
+        journal.recover();
+        return journal;
+    }
+
+    private List<QueueJournal.Entry> reopen() {
+        mJournal.close();
+        mJournal = new QueueJournal(mFile);
+        return mJournal.recover();
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void append(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private static void assertEntry(QueueJournal.Entry entry, long id, String payload, boolean paused, int attempts) {
+        assertEquals(id, entry.id);
+        assertArrayEquals(bytes(payload), entry.payload);
+        assertEquals(paused, entry.paused);
+        assertEquals(attempts, entry.attempts);
+    }
+}